@@ -0,0 +1,245 @@
+package isv.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.function.Supplier;
+
+/**
+ * A small benchmark harness in the style of JMH, kept dependency free so it
+ * runs wherever the simulator does. Each benchmark is run by a fixed number of
+ * threads for a warmup period whose results are thrown away, then for a number
+ * of timed iterations. Every operation is timed, so besides throughput the
+ * harness reports the latency distribution.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public final class BenchmarkRunner
+{
+
+	/**
+	 * One invocation of the code being measured
+	 */
+	public interface Operation
+	{
+		void run() throws Exception;
+	}
+
+	// per thread cap on recorded latencies, enough for the percentiles
+	private static final int MAX_SAMPLES_PER_THREAD = 1 << 20;
+
+	// never equal to a result, but read on every consume, so the JIT has to
+	// compute the result to compare it
+	private static volatile Object bait = new Object();
+	private static volatile Object sink;
+
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final long iterationNanos;
+
+	/**
+	 * @param warmupIterations
+	 *            iterations run before measuring
+	 * @param measurementIterations
+	 *            iterations that are measured
+	 * @param iterationMillis
+	 *            length of each iteration
+	 */
+	public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis)
+	{
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationNanos = iterationMillis * 1000000L;
+	}
+
+	/**
+	 * Hands a result to the harness, so the JIT can't eliminate the work that
+	 * computed it
+	 *
+	 * @param result
+	 *            what an operation computed
+	 */
+	public static void consume(Object result)
+	{
+		if (result == bait)
+		{
+			sink = result;
+		}
+	}
+
+	/**
+	 * Runs a benchmark and prints a line of results
+	 *
+	 * @param name
+	 *            the benchmark, including its parameters
+	 * @param threads
+	 *            number of threads calling the operation concurrently
+	 * @param operations
+	 *            called once per thread for that thread's operation, so state
+	 *            that isn't thread safe can be kept per thread
+	 * @return the measured results
+	 * @throws Exception
+	 */
+	public Result run(String name, int threads, Supplier<Operation> operations) throws Exception
+	{
+		for (int i = 0; i < warmupIterations; i++)
+		{
+			iteration(threads, operations);
+		}
+
+		List<Worker> measured = new ArrayList<>();
+		for (int i = 0; i < measurementIterations; i++)
+		{
+			measured.addAll(iteration(threads, operations));
+		}
+
+		Result result = new Result(name, threads, measured, measurementIterations * iterationNanos);
+		System.out.println(result);
+		return result;
+	}
+
+	private List<Worker> iteration(int threads, Supplier<Operation> operations) throws Exception
+	{
+		CyclicBarrier start = new CyclicBarrier(threads);
+		CountDownLatch done = new CountDownLatch(threads);
+		List<Worker> workers = new ArrayList<>();
+		for (int i = 0; i < threads; i++)
+		{
+			Worker worker = new Worker(operations.get(), start, done);
+			workers.add(worker);
+			new Thread(worker, "bench-" + i).start();
+		}
+		done.await();
+
+		for (Worker worker : workers)
+		{
+			if (worker.failure != null)
+			{
+				throw worker.failure;
+			}
+		}
+		return workers;
+	}
+
+	/**
+	 * Calls one thread's operation until the iteration is over
+	 */
+	private class Worker implements Runnable
+	{
+		private final Operation operation;
+		private final CyclicBarrier start;
+		private final CountDownLatch done;
+		private long[] samples = new long[1024];
+		private int sampleCount;
+		private long operationCount;
+		private Exception failure;
+
+		Worker(Operation operation, CyclicBarrier start, CountDownLatch done)
+		{
+			this.operation = operation;
+			this.start = start;
+			this.done = done;
+		}
+
+		public void run()
+		{
+			try
+			{
+				start.await();
+				long end = System.nanoTime() + iterationNanos;
+				long now;
+				do
+				{
+					long before = System.nanoTime();
+					operation.run();
+					now = System.nanoTime();
+					record(now - before);
+				} while (now < end);
+			} catch (Exception e)
+			{
+				failure = e;
+			} finally
+			{
+				done.countDown();
+			}
+		}
+
+		private void record(long latency)
+		{
+			operationCount++;
+			if (sampleCount == samples.length)
+			{
+				if (sampleCount == MAX_SAMPLES_PER_THREAD)
+				{
+					return;
+				}
+				samples = Arrays.copyOf(samples, sampleCount * 2);
+			}
+			samples[sampleCount++] = latency;
+		}
+	}
+
+	/**
+	 * Throughput and latency of one benchmark
+	 */
+	public static class Result
+	{
+		private final String name;
+		private final int threads;
+		private final double opsPerSecond;
+		private final long[] sorted;
+
+		Result(String name, int threads, List<Worker> workers, long measuredNanos)
+		{
+			this.name = name;
+			this.threads = threads;
+
+			long operations = 0;
+			int sampleCount = 0;
+			for (Worker worker : workers)
+			{
+				operations += worker.operationCount;
+				sampleCount += worker.sampleCount;
+			}
+			this.opsPerSecond = operations * 1e9 / measuredNanos;
+
+			sorted = new long[sampleCount];
+			int offset = 0;
+			for (Worker worker : workers)
+			{
+				System.arraycopy(worker.samples, 0, sorted, offset, worker.sampleCount);
+				offset += worker.sampleCount;
+			}
+			Arrays.sort(sorted);
+		}
+
+		public double getOpsPerSecond()
+		{
+			return opsPerSecond;
+		}
+
+		/**
+		 * @param quantile
+		 *            between 0 and 1
+		 * @return the latency at the quantile in nanoseconds
+		 */
+		public long latency(double quantile)
+		{
+			if (sorted.length == 0)
+			{
+				return 0;
+			}
+			return sorted[Math.min(sorted.length - 1, (int) (quantile * sorted.length))];
+		}
+
+		public String toString()
+		{
+			return String.format(Locale.ROOT, "%-64s %3d threads %14.1f ops/s   p50 %10.1f us   p99 %10.1f us   p99.9 %10.1f us   max %10.1f us",
+					name, threads, opsPerSecond, latency(0.5) / 1e3, latency(0.99) / 1e3, latency(0.999) / 1e3,
+					latency(1.0) / 1e3);
+		}
+	}
+}
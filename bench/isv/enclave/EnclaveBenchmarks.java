@@ -0,0 +1,556 @@
+package isv.enclave;
+
+import isv.bench.BenchmarkRunner;
+import isv.client.General;
+import isv.metrics.ProtocolTracer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+/**
+ * Benchmarks for the enclave's ecall and attestation hot paths. Run with
+ *
+ * <pre>
+ * java isv.enclave.EnclaveBenchmarks --roster-size=2,100000 --threads=1,4
+ * </pre>
+ *
+ * Options, all optional:
+ * <ul>
+ * <li>--roster-size=N,... Generals in the enclave roster</li>
+ * <li>--threads=N,... threads calling each benchmark at once</li>
+ * <li>--warmup=N warmup iterations, thrown away</li>
+ * <li>--iterations=N measured iterations</li>
+ * <li>--iteration-ms=N length of each iteration</li>
+ * <li>--bench=regex only run the benchmarks whose names match</li>
+ * </ul>
+ *
+ * Every General in a benchmark roster shares one RSA key pair under its own
+ * name, so large rosters can be built without generating millions of keys.
+ * Signatures are over the name, so each General's requests still verify
+ * against its own roster entry.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class EnclaveBenchmarks
+{
+
+	// how many distinct Generals send signed requests
+	private static final int SIGNED_GENERALS = 256;
+	private static final int POOLED_ENCLAVES = 64;
+	// bytes pushed through SealedStream per operation, and the chunk sizes
+	private static final int STREAM_PAYLOAD = 8 * 1024 * 1024;
+	private static final int[] STREAM_CHUNK_SIZES = { 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024 };
+	// an authAndLaunch frame carrying a 2048 bit RSA signature
+	private static final int SECURE_FRAME = 5 + 1 + 4 + 4 + 2 + 256;
+	private static final String LAUNCHED = EcallStatus.LAUNCHED.message();
+
+	private int[] rosterSizes = { 2, 100000 };
+	private int[] threadCounts = { 1, Runtime.getRuntime().availableProcessors() };
+	private int warmup = 3;
+	private int iterations = 5;
+	private long iterationMillis = 1000;
+	private Pattern filter = Pattern.compile(".*");
+
+	public static void main(String[] args) throws Exception
+	{
+		EnclaveBenchmarks benchmarks = new EnclaveBenchmarks();
+		for (String arg : args)
+		{
+			int split = arg.indexOf('=');
+			if (!arg.startsWith("--") || split < 0)
+			{
+				throw new IllegalArgumentException("Unrecognized argument " + arg);
+			}
+			String value = arg.substring(split + 1);
+			switch (arg.substring(2, split))
+			{
+			case "roster-size":
+				benchmarks.rosterSizes = parseList(value);
+				break;
+			case "threads":
+				benchmarks.threadCounts = parseList(value);
+				break;
+			case "warmup":
+				benchmarks.warmup = Integer.parseInt(value);
+				break;
+			case "iterations":
+				benchmarks.iterations = Integer.parseInt(value);
+				break;
+			case "iteration-ms":
+				benchmarks.iterationMillis = Long.parseLong(value);
+				break;
+			case "bench":
+				benchmarks.filter = Pattern.compile(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unrecognized option " + arg);
+			}
+		}
+		benchmarks.runAll();
+	}
+
+	private static int[] parseList(String value)
+	{
+		return Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+	}
+
+	private void runAll() throws Exception
+	{
+		BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, iterationMillis);
+		General template = new General(1, "general1", 12345L);
+
+		for (int rosterSize : rosterSizes)
+		{
+			RosterFixture roster = new RosterFixture(template, rosterSize);
+			for (int threads : threadCounts)
+			{
+				ecallBenchmarks(runner, roster, threads);
+			}
+		}
+
+		for (int threads : threadCounts)
+		{
+			attestationBenchmarks(runner, template, threads);
+		}
+
+		for (int threads : threadCounts)
+		{
+			streamBenchmarks(runner, threads);
+			secureChannelBenchmarks(runner, threads);
+		}
+	}
+
+	private void ecallBenchmarks(BenchmarkRunner runner, RosterFixture roster, int threads) throws Exception
+	{
+		String size = "[rosterSize=" + roster.names.length + "]";
+
+		for (EnclaveOptions.Mode mode : EnclaveOptions.Mode.values())
+		{
+			String name = "ThreadWorker.authAndLaunch" + size + "[mode=" + mode.name().toLowerCase() + "]";
+			if (selected(name))
+			{
+				Enclave enclave = roster.newEnclave(mode);
+				runner.run(name, threads, () -> {
+					ThreadWorker worker = new ThreadWorker(enclave);
+					RosterEntry[] generals = roster.entries(enclave.getRoster());
+					int[] next = { ThreadLocalRandom.current().nextInt(SIGNED_GENERALS) };
+					return () -> {
+						int i = next[0]++ % roster.signed;
+						// every call authorizes, rather than finding the General
+						// already did after the first pass
+						generals[i].setHasAuthorized(false);
+						String status = worker.authAndLaunch(roster.names[i], roster.signatures[i]);
+						if (LAUNCHED.equals(status))
+						{
+							enclave.setAuthCount(0);
+						}
+						BenchmarkRunner.consume(status);
+					};
+				});
+			}
+		}
+
+		// the same ecall routed through a pool of enclaves, one shard per core
+		int shards = Runtime.getRuntime().availableProcessors();
+		String name = "EnclavePool.authAndLaunch" + size + "[shards=" + shards + "]";
+		if (selected(name))
+		{
+			// the pooled enclaves share one roster, but each has its own state
+			Roster generals = roster.newEnclave(EnclaveOptions.Mode.VULNERABLE).getRoster();
+			EnclavePool pool = new EnclavePool(shards, enclave -> enclave.setRoster(generals));
+			int[] eids = IntStream.range(0, POOLED_ENCLAVES).map(i -> pool.create()).toArray();
+			// a worker per enclave, used only on the enclave's shard
+			ThreadWorker[] workers = new ThreadWorker[eids.length];
+			for (int i = 0; i < eids.length; i++)
+			{
+				workers[i] = pool.call(eids[i], ThreadWorker::new);
+			}
+			RosterEntry[] entries = roster.entries(generals);
+			runner.run(name, threads, () -> {
+				int[] next = { ThreadLocalRandom.current().nextInt(SIGNED_GENERALS) };
+				return () -> {
+					int i = next[0]++;
+					int general = i % roster.signed;
+					ThreadWorker worker = workers[i % eids.length];
+					BenchmarkRunner.consume(pool.call(eids[i % eids.length], enclave -> {
+						entries[general].setHasAuthorized(false);
+						String status = worker.authAndLaunch(roster.names[general], roster.signatures[general]);
+						if (LAUNCHED.equals(status))
+						{
+							enclave.setAuthCount(0);
+						}
+						return status;
+					}));
+				};
+			});
+			pool.close();
+		}
+
+		name = "ThreadWorker.validateGeneral" + size;
+		if (selected(name))
+		{
+			Enclave enclave = roster.newEnclave(EnclaveOptions.Mode.VULNERABLE);
+			runner.run(name, threads, () -> {
+				ThreadWorker worker = new ThreadWorker(enclave);
+				int[] next = { ThreadLocalRandom.current().nextInt(SIGNED_GENERALS) };
+				return () -> {
+					int i = next[0]++ % roster.signed;
+					if (!worker.validateGeneral(roster.names[i], roster.signatures[i]))
+					{
+						throw new IllegalStateException("Signature of " + roster.names[i] + " did not verify");
+					}
+				};
+			});
+		}
+
+		name = "ThreadWorker.getGeneral" + size;
+		if (selected(name))
+		{
+			Enclave enclave = roster.newEnclave(EnclaveOptions.Mode.VULNERABLE);
+			runner.run(name, threads, () -> {
+				ThreadWorker worker = new ThreadWorker(enclave);
+				return () -> {
+					String general = roster.names[ThreadLocalRandom.current().nextInt(roster.names.length)];
+					RosterEntry entry = worker.getGeneral(general);
+					if (entry == null)
+					{
+						throw new IllegalStateException(general + " is missing from the roster");
+					}
+					BenchmarkRunner.consume(entry);
+				};
+			});
+		}
+	}
+
+	private void attestationBenchmarks(BenchmarkRunner runner, General template, int threads) throws Exception
+	{
+		if (selected("General.sign"))
+		{
+			runner.run("General.sign", threads, () -> () -> BenchmarkRunner.consume(template.sign()));
+		}
+
+		if (selected("General.generateKeyPair"))
+		{
+			AtomicLong seeds = new AtomicLong();
+			runner.run("General.generateKeyPair", threads,
+					() -> () -> BenchmarkRunner.consume(template.generateKeyPair(seeds.incrementAndGet())));
+		}
+
+		for (KeyExchange keyExchange : KeyExchange.available())
+		{
+			String kex = "[kex=" + keyExchange.getName() + "]";
+			if (selected("Enclave.sgx_ra_init" + kex))
+			{
+				runner.run("Enclave.sgx_ra_init" + kex, threads, () -> {
+					Enclave enclave = new Enclave("testfile.txt", -1);
+					return () -> enclave.sgx_ra_init(null, keyExchange);
+				});
+			}
+
+			if (selected("Enclave.computeSharedKey" + kex))
+			{
+				byte[] peerPublicKey = keyExchange.generateKeyPair().getPublic().getEncoded();
+				runner.run("Enclave.computeSharedKey" + kex, threads, () -> {
+					Enclave enclave = new Enclave("testfile.txt", -1);
+					enclave.sgx_ra_init(null, keyExchange);
+					return () -> {
+						if (enclave.computeSharedKey(peerPublicKey) == null)
+						{
+							throw new IllegalStateException("computeSharedKey failed");
+						}
+					};
+				});
+			}
+		}
+
+		if (selected("Enclave.GetQuote"))
+		{
+			runner.run("Enclave.GetQuote", threads, () -> {
+				Enclave enclave = new Enclave("testfile.txt", -1);
+				return () -> {
+					if (enclave.GetQuote() == null)
+					{
+						throw new IllegalStateException("GetQuote failed");
+					}
+				};
+			});
+		}
+
+		// a quote the cache hasn't seen, and a batch of them
+		if (selected("QuoteSigner.sign"))
+		{
+			AtomicInteger eids = new AtomicInteger();
+			runner.run("QuoteSigner.sign", threads,
+					() -> () -> BenchmarkRunner.consume(QuoteSigner.getDefault().sign(eids.incrementAndGet())));
+		}
+
+		if (selected("QuoteSigner.quotes[batch=64]"))
+		{
+			int[] eids = IntStream.range(0, 64).toArray();
+			runner.run("QuoteSigner.quotes[batch=64]", threads,
+					() -> () -> BenchmarkRunner.consume(QuoteSigner.getDefault().quotes(eids)));
+		}
+
+		// the cost of tracing a message, left on in production
+		if (selected("ProtocolTracer.trace"))
+		{
+			runner.run("ProtocolTracer.trace", threads, () -> {
+				int[] session = { 0 };
+				return () -> ProtocolTracer.trace(session[0]++, ProtocolTracer.Message.ECALL, 64,
+						ProtocolTracer.Outcome.RECEIVED);
+			});
+		}
+	}
+
+	/**
+	 * Encrypts and decrypts a payload in direct buffers with SealedStream, for
+	 * each chunk size, and reports the throughput in MB/s as well
+	 */
+	private void streamBenchmarks(BenchmarkRunner runner, int threads) throws Exception
+	{
+		for (int chunkSize : STREAM_CHUNK_SIZES)
+		{
+			String chunk = "[chunk=" + chunkSize / 1024 + "k]";
+			int sealedLength = (int) SealedStream.sealedLength(STREAM_PAYLOAD, chunkSize);
+
+			String name = "SealedStream.encrypt" + chunk;
+			if (selected(name))
+			{
+				BenchmarkRunner.Result result = runner.run(name, threads, () -> {
+					try
+					{
+						SealedStream encryptor = SealedStream.encryptor(chunkSize);
+						ByteBuffer plain = randomDirect(STREAM_PAYLOAD);
+						ByteBuffer sealed = ByteBuffer.allocateDirect(sealedLength);
+						return () -> {
+							plain.rewind();
+							sealed.clear();
+							encryptor.start(sealed);
+							encryptor.finish(plain, sealed);
+						};
+					} catch (GeneralSecurityException e)
+					{
+						throw new IllegalStateException(e);
+					}
+				});
+				printMegabytes(name, threads, result);
+			}
+
+			name = "SealedStream.decrypt" + chunk;
+			if (selected(name))
+			{
+				BenchmarkRunner.Result result = runner.run(name, threads, () -> {
+					try
+					{
+						SealedStream encryptor = SealedStream.encryptor(chunkSize);
+						SealedStream decryptor = SealedStream.decryptor();
+						ByteBuffer sealed = ByteBuffer.allocateDirect(sealedLength);
+						encryptor.start(sealed);
+						encryptor.finish(randomDirect(STREAM_PAYLOAD), sealed);
+						ByteBuffer opened = ByteBuffer.allocateDirect(STREAM_PAYLOAD);
+						return () -> {
+							sealed.rewind();
+							opened.clear();
+							decryptor.start(sealed);
+							decryptor.finish(sealed, opened);
+						};
+					} catch (GeneralSecurityException e)
+					{
+						throw new IllegalStateException(e);
+					}
+				});
+				printMegabytes(name, threads, result);
+			}
+		}
+	}
+
+	/**
+	 * Seals an authAndLaunch frame into a SecureChannel record on the General's
+	 * side and opens it on the enclave's, the cost a secure channel adds to
+	 * each ecall
+	 */
+	private void secureChannelBenchmarks(BenchmarkRunner runner, int threads) throws Exception
+	{
+		String name = "SecureChannel.record[frame=" + SECURE_FRAME + "]";
+		if (!selected(name))
+		{
+			return;
+		}
+		runner.run(name, threads, () -> {
+			try
+			{
+				SecureChannel[] channels = secureChannelPair();
+				byte[] frame = new byte[SECURE_FRAME];
+				ThreadLocalRandom.current().nextBytes(frame);
+				ByteBuffer plain = ByteBuffer.wrap(frame);
+				Loopback records = new Loopback();
+				return () -> {
+					plain.rewind();
+					channels[0].write(plain, records.out);
+					records.flip();
+					BenchmarkRunner.consume(channels[1].read(records.in));
+				};
+			} catch (Exception e)
+			{
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	/**
+	 * @return the General's and the enclave's ends of a secure channel, keyed
+	 *         by a handshake over pipes
+	 */
+	private static SecureChannel[] secureChannelPair() throws Exception
+	{
+		PipedOutputStream toEnclave = new PipedOutputStream();
+		PipedOutputStream toGeneral = new PipedOutputStream();
+		DataInputStream enclaveIn = new DataInputStream(new PipedInputStream(toEnclave, 8192));
+		DataInputStream generalIn = new DataInputStream(new PipedInputStream(toGeneral, 8192));
+
+		CompletableFuture<SecureChannel> enclaveEnd = CompletableFuture.supplyAsync(() -> {
+			try
+			{
+				enclaveIn.read();
+				return SecureChannel.accept(new Enclave(), enclaveIn, new DataOutputStream(toGeneral));
+			} catch (Exception e)
+			{
+				throw new IllegalStateException(e);
+			}
+		});
+		SecureChannel generalEnd = SecureChannel.connect(generalIn, new DataOutputStream(toEnclave),
+				KeyExchange.available().get(0), QuoteSigner.getDefault().getPublicKey());
+		return new SecureChannel[] { generalEnd, enclaveEnd.get() };
+	}
+
+	/**
+	 * Bytes written to it are read back from the same array, so a record's
+	 * round trip allocates and copies nothing outside the channel
+	 */
+	private static final class Loopback extends ByteArrayOutputStream
+	{
+		private final Readback readback = new Readback();
+		final DataOutputStream out = new DataOutputStream(this);
+		final DataInputStream in = new DataInputStream(readback);
+
+		/**
+		 * Makes what was written since the last flip readable from in
+		 */
+		void flip()
+		{
+			readback.reset(buf, count);
+			reset();
+		}
+	}
+
+	private static final class Readback extends ByteArrayInputStream
+	{
+		Readback()
+		{
+			super(new byte[0]);
+		}
+
+		void reset(byte[] bytes, int length)
+		{
+			buf = bytes;
+			pos = 0;
+			count = length;
+			mark = 0;
+		}
+	}
+
+	private static ByteBuffer randomDirect(int length)
+	{
+		byte[] bytes = new byte[length];
+		ThreadLocalRandom.current().nextBytes(bytes);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+		buffer.put(bytes).flip();
+		return buffer;
+	}
+
+	private static void printMegabytes(String name, int threads, BenchmarkRunner.Result result)
+	{
+		System.out.println(String.format(Locale.ROOT, "%-64s %3d threads %14.1f MB/s", name, threads,
+				result.getOpsPerSecond() * STREAM_PAYLOAD / 1e6));
+	}
+
+	private boolean selected(String name)
+	{
+		return filter.matcher(name).find();
+	}
+
+	/**
+	 * A roster of Generals sharing one key pair, and signed requests for the
+	 * first few of them
+	 */
+	private static class RosterFixture
+	{
+		private final General template;
+		private final String[] names;
+		private final String[] signatures;
+		private final int signed;
+
+		RosterFixture(General template, int size) throws Exception
+		{
+			this.template = template;
+			this.names = new String[size];
+			for (int i = 0; i < size; i++)
+			{
+				names[i] = "general" + (i + 1);
+			}
+
+			signed = Math.min(size, SIGNED_GENERALS);
+			signatures = new String[signed];
+			for (int i = 0; i < signed; i++)
+			{
+				template.setName(names[i]);
+				signatures[i] = template.sign();
+			}
+			template.setName("general1");
+		}
+
+		/**
+		 * @return the roster's entries for the signed Generals, in order
+		 */
+		RosterEntry[] entries(Roster roster)
+		{
+			RosterEntry[] entries = new RosterEntry[signed];
+			for (int i = 0; i < signed; i++)
+			{
+				entries[i] = roster.get(names[i]);
+			}
+			return entries;
+		}
+
+		Enclave newEnclave(EnclaveOptions.Mode mode)
+		{
+			Enclave enclave = new Enclave();
+			enclave.setRoster(new Roster(names.length));
+			if (mode == EnclaveOptions.Mode.HARDENED)
+			{
+				enclave.setAuthorization(new HardenedAuthorization());
+			}
+
+			byte[] publicKey = template.getPub().getEncoded();
+			for (int i = 0; i < names.length; i++)
+			{
+				enclave.getRoster().add(i + 1, names[i], publicKey);
+			}
+			return enclave;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package isv.attestation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The connection remote attestation runs over. Every message is a frame,
+ * [type, length, payload], so text like msg0 and binary values like keys and
+ * quotes can share one stream without Base64 or line endings getting in the
+ * way.
+ *
+ * Writes are buffered until flush, so a flight of several messages goes out
+ * together. A deadline, once set, bounds every read that follows.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class AttestationChannel implements Closeable
+{
+	public static final byte TEXT = 1;
+	public static final byte BINARY = 2;
+
+	// far beyond any key, quote or ticket
+	private static final int MAX_FRAME_LENGTH = 1 << 16;
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private long deadline;
+
+	public AttestationChannel(Socket socket) throws IOException
+	{
+		this.socket = socket;
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * @param deadline
+	 *            the currentTimeMillis by which every later read must have
+	 *            finished, or 0 for none
+	 */
+	public void setDeadline(long deadline)
+	{
+		this.deadline = deadline;
+	}
+
+	public void writeText(String text) throws IOException
+	{
+		write(TEXT, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public void writeBinary(byte[] value) throws IOException
+	{
+		write(BINARY, value);
+	}
+
+	private void write(byte type, byte[] payload) throws IOException
+	{
+		out.writeByte(type);
+		out.writeInt(payload.length);
+		out.write(payload);
+	}
+
+	/**
+	 * Sends every message written since the last flush
+	 */
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+
+	public String readText() throws IOException
+	{
+		return new String(read(TEXT), StandardCharsets.UTF_8);
+	}
+
+	public byte[] readBinary() throws IOException
+	{
+		return read(BINARY);
+	}
+
+	private byte[] read(byte expectedType) throws IOException
+	{
+		awaitDeadline();
+		int type = in.read();
+		if (type < 0)
+		{
+			throw new EOFException("Peer closed the attestation channel");
+		}
+		if (type != expectedType)
+		{
+			throw new ProtocolException("Expected a " + name(expectedType) + " frame but got " + name((byte) type));
+		}
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FRAME_LENGTH)
+		{
+			throw new ProtocolException("Bad frame length " + length);
+		}
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return payload;
+	}
+
+	private void awaitDeadline() throws IOException
+	{
+		if (deadline == 0)
+		{
+			return;
+		}
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0)
+		{
+			throw new SocketTimeoutException();
+		}
+		socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+	}
+
+	private static String name(byte type)
+	{
+		return type == TEXT ? "text" : type == BINARY ? "binary" : "unknown (" + type + ")";
+	}
+
+	public void close() throws IOException
+	{
+		socket.close();
+	}
+}
@@ -1,12 +1,18 @@
 package isv.attestation;
 
 import isv.enclave.EnclaveManagement;
+import isv.enclave.KeyExchange;
+import isv.enclave.KeyPairPool;
+import isv.enclave.QuoteSigner;
+import isv.metrics.Histogram;
+import isv.metrics.MetricsRegistry;
+import isv.metrics.ProtocolTracer;
+import isv.metrics.ProtocolTracer.Message;
+import isv.metrics.ProtocolTracer.Outcome;
 
 import java.net.Socket;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.PublicKey;
-import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
 
 /**
@@ -16,13 +22,130 @@ import java.io.*;
  */
 public class RemoteAttestation {
 
+	// time spent on each message, indexed by message number: msg0 until the
+	// answer and key arrive, msg1 until msg2 arrives, msg2 verifying it and
+	// quoting, msg3 until msg4 arrives and msg4 checking the verdict
+	private static final Histogram[] PHASES = MetricsRegistry.getDefault().histograms(
+			"isv_attestation_phase_seconds", "Time spent on each attestation message",
+			new String[] { "side", "enclave", "message" }, "msg0", "msg1", "msg2", "msg3", "msg4");
+
 	Socket socket;
 	int DEFAULT_PORT = 1111; // default is usually 80
 	String ip;
 	int port;
-	BufferedReader in;
-	PrintWriter out;
+	AttestationChannel channel;
 	EnclaveManagement em;
+	// send msg0 and msg1 in one flight
+	boolean optimistic = true;
+	boolean attested;
+	boolean resumed;
+
+	/**
+	 * Attests a number of enclaves at once, as happens when a machine boots.
+	 * Options, all optional: --host=localhost, --port=1111, --enclaves=1,
+	 * --reconnects=0, how many more times each enclave attests after the first,
+	 * --key-exchange=x25519,ffdhe2048, the key exchanges to offer the server,
+	 * --lock-step=false, true to wait for the server's choice of key
+	 * exchange before sending msg1, --metrics=false, true to print the
+	 * metrics when done, --trace=file, to dump the protocol trace to when
+	 * done, and --attestation-key=file, to export the attestation public key
+	 * the enclaves' quotes are signed with for the server to check them
+	 */
+	public static void main(String[] args) throws Exception {
+		String host = "localhost";
+		int port = 1111;
+		int enclaves = 1;
+		int reconnects = 0;
+		boolean optimistic = true;
+		boolean metrics = false;
+		String trace = null;
+		String attestationKey = null;
+		List<KeyExchange> keyExchanges = KeyExchange.available();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (!arg.startsWith("--") || split < 0) {
+				throw new IllegalArgumentException("Unrecognized argument " + arg);
+			}
+			String value = arg.substring(split + 1);
+			switch (arg.substring(2, split)) {
+			case "host":
+				host = value;
+				break;
+			case "port":
+				port = Integer.parseInt(value);
+				break;
+			case "enclaves":
+				enclaves = Integer.parseInt(value);
+				break;
+			case "reconnects":
+				reconnects = Integer.parseInt(value);
+				break;
+			case "key-exchange":
+				keyExchanges = KeyExchange.forNames(value);
+				break;
+			case "lock-step":
+				optimistic = !Boolean.parseBoolean(value);
+				break;
+			case "metrics":
+				metrics = Boolean.parseBoolean(value);
+				break;
+			case "trace":
+				trace = value;
+				break;
+			case "attestation-key":
+				attestationKey = value;
+				break;
+			default:
+				throw new IllegalArgumentException("Unrecognized option " + arg);
+			}
+		}
+
+		if (attestationKey != null) {
+			QuoteSigner.getDefault().exportPublicKey(new File(attestationKey));
+		}
+
+		String serverHost = host;
+		int serverPort = port;
+		List<KeyExchange> offered = keyExchanges;
+		boolean earlyMessage1 = optimistic;
+		int attestations = reconnects + 1;
+		AtomicInteger attested = new AtomicInteger();
+		AtomicInteger resumed = new AtomicInteger();
+		Thread[] threads = new Thread[enclaves];
+		long start = System.nanoTime();
+		for (int i = 0; i < enclaves; i++) {
+			threads[i] = new Thread(() -> {
+				EnclaveManagement em = new EnclaveManagement(offered);
+				for (int attestation = 0; attestation < attestations; attestation++) {
+					RemoteAttestation ra = new RemoteAttestation(em, serverHost, serverPort, earlyMessage1);
+					try {
+						if (ra.isAttested()) {
+							attested.incrementAndGet();
+							if (ra.isResumed()) {
+								resumed.incrementAndGet();
+							}
+						}
+					} finally {
+						// a failed attestation leaves its socket open too
+						ra.close();
+					}
+				}
+			}, "enclave-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		System.out.println(attested.get() + " of " + enclaves * attestations + " attestations succeeded, "
+				+ resumed.get() + " by resumption, in " + (System.nanoTime() - start) / 1000000 + " ms");
+		System.out.println(KeyPairPool.getDefault());
+		if (metrics) {
+			MetricsRegistry.getDefault().writeText(System.out);
+		}
+		if (trace != null) {
+			System.out.println(ProtocolTracer.dump(new File(trace)) + " traced messages written to " + trace);
+		}
+	}
 
 	public RemoteAttestation(EnclaveManagement em) {
 		this.em = em;
@@ -32,17 +155,27 @@ public class RemoteAttestation {
 	}
 
 	public RemoteAttestation(EnclaveManagement em, String ip, int port) {
+		this(em, ip, port, true);
+	}
+
+	/**
+	 * @param optimistic
+	 *            send msg1 with msg0 rather than waiting for the server to pick
+	 *            the key exchange, which saves a round trip when the server
+	 *            picks the enclave's preferred one
+	 */
+	public RemoteAttestation(EnclaveManagement em, String ip, int port, boolean optimistic) {
 		this.em = em;
 		this.ip = ip;
 		this.port = port;
+		this.optimistic = optimistic;
 		connect();
 	}
 
 	public void connect() {
 		try {
-			socket = new Socket(ip, DEFAULT_PORT);
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			out = new PrintWriter(socket.getOutputStream(), true);
+			socket = new Socket(ip, port);
+			channel = new AttestationChannel(socket);
 			System.out.println("Connected");
 			provisionRequest();
 			attestEnclave();
@@ -64,54 +197,121 @@ public class RemoteAttestation {
 	}
 
 	public void attestEnclave() {
-		// How to get public key from service provider, sign and verify with it?
-		PublicKey spPubKey;
-
+		// traced under the enclave id, along with the message in flight
+		int session = em.getEnclaveId();
+		Message inFlight = Message.RESUME;
 		try {
-			
-			//This code is duplicated in the Server
-			//Eventually we will have the server sent the public key over to the user as part of the handshake
-			KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DSA", "SUN");
-			SecureRandom random = SecureRandom.getInstance("SHA1PRNG", "SUN");
-			keyGen.initialize(1024, random);
-			KeyPair pair = keyGen.generateKeyPair();
-			PublicKey spPub = pair.getPublic();
-			
-			String m0 = em.getMessage0(spPub);
-			out.print(m0 + "\r\n");
-			String m0Response = in.readLine();
+			// an enclave that attested recently resumes in one round trip
+			String resume = em.getResumeMessage();
+			if (resume != null) {
+				channel.writeText(resume);
+				channel.flush();
+				ProtocolTracer.trace(session, Message.RESUME, resume.length(), Outcome.SENT);
+				String verdict = channel.readText();
+				ProtocolTracer.trace(session, Message.RESUME, verdict.length(), Outcome.RECEIVED);
+				if (em.verifyResumeResponse(verdict)) {
+					attested = true;
+					resumed = true;
+					return;
+				}
+				System.out.println("Resumption failed with Server response " + verdict);
+			}
+
+			// text and binary messages are framed on the one channel, and the
+			// service provider's key comes with the answer to msg0
+			long mark = System.nanoTime();
+			inFlight = Message.MSG0;
+			String m0 = em.getMessage0(optimistic);
+			channel.writeText(m0);
+			ProtocolTracer.trace(session, Message.MSG0, m0.length(), Outcome.SENT);
+			if (optimistic) {
+				// msg1 goes in the same flight, using the enclave's preferred key exchange
+				byte[] m1 = em.getMessage1();
+				channel.writeBinary(m1);
+				ProtocolTracer.trace(session, Message.MSG1, m1.length, Outcome.SENT);
+			}
+			channel.flush();
+			String m0Response = channel.readText();
 
 			if(!em.verifyMessage0Response(m0Response))
 			{
-				System.out.println("Attestation failed: unknown group ID");
+				System.out.println("Attestation failed: server answered msg0 with " + m0Response);
+				return;
 			}
+			byte[] spPublicKey = channel.readBinary();
+			ProtocolTracer.trace(session, Message.MSG0, m0Response.length() + spPublicKey.length, Outcome.RECEIVED);
+			em.receiveServiceProviderKey(spPublicKey);
+			mark = PHASES[0].recordSince(mark);
 
-			socket.getOutputStream().write(em.getMessage1());
+			// if the server didn't take the early msg1, fall back to lock step
+			inFlight = Message.MSG1;
+			if (!em.isEarlyAccepted()) {
+				byte[] m1 = em.getMessage1();
+				channel.writeBinary(m1);
+				channel.flush();
+				ProtocolTracer.trace(session, Message.MSG1, m1.length, Outcome.SENT);
+			}
+
+			// msg2 is the server's key exchange value and its signature
+			inFlight = Message.MSG2;
+			byte[] spKey = channel.readBinary();
+			byte[] spSignature = channel.readBinary();
+			ProtocolTracer.trace(session, Message.MSG2, spKey.length + spSignature.length, Outcome.RECEIVED);
+			mark = PHASES[1].recordSince(mark);
+			byte[] quote = em.processMessage2(spKey, spSignature);
+			mark = PHASES[2].recordSince(mark);
+			// the simulated quote is null if the enclave could not sign it
+			inFlight = Message.MSG3;
+			byte[] m3 = quote == null ? new byte[0] : quote;
+			channel.writeBinary(m3);
+			channel.writeText(Integer.toString(em.getEnclaveId()));
+			channel.flush();
+			ProtocolTracer.trace(session, Message.MSG3, m3.length, Outcome.SENT);
 
-			String m2 = in.readLine();
-			socket.getOutputStream().write(em.processMessage2(m2));
-			
-			String m4 = in.readLine();
+			inFlight = Message.MSG4;
+			String m4 = channel.readText();
+			ProtocolTracer.trace(session, Message.MSG4, m4.length(), Outcome.RECEIVED);
+			mark = PHASES[3].recordSince(mark);
 
-			if (!em.verifyMessage4(m4)) {
+			boolean trusted = em.verifyMessage4(m4);
+			PHASES[4].recordSince(mark);
+			if (!trusted) {
+				ProtocolTracer.trace(session, Message.MSG4, m4.length(), Outcome.FAILED);
 				System.out.println("Attestation Failed with Server response " + m4);
+				return;
 			}
+			attested = true;
 		} catch (Exception e) {
+			ProtocolTracer.trace(session, inFlight, 0, Outcome.FAILED);
 			System.out.println(e.getMessage());
+			ProtocolTracer.dumpOnError("enclave " + session + " failed to attest");
 		}
 	}
 
 	/**
-	 * Disconnects socket from connection and closes BufferedReader and PrintWriter
+	 * @return true if the server vouched for the enclave in message 4
+	 */
+	public boolean isAttested() {
+		return attested;
+	}
+
+	/**
+	 * @return true if the enclave was attested by presenting a resumption
+	 *         ticket rather than in full
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	/**
+	 * Disconnects socket from connection
 	 * 
 	 */
 	public void close() {
-		try {
-			in.close();
-		} catch (Exception e) {
-			System.err.println("Failure to close BufferedReader (RemoteAttestation.close) : " + e);
+		if (socket == null) {
+			// never connected
+			return;
 		}
-		out.close();
 		try {
 			socket.close();
 		} catch (Exception e) {
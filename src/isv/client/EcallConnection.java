@@ -0,0 +1,388 @@
+package isv.client;
+
+import isv.enclave.EcallFrame;
+import isv.enclave.KeyExchange;
+import isv.enclave.QuoteSigner;
+import isv.enclave.SecureChannel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A persistent connection from the environment code to the enclave. Every
+ * request is tagged with a request id, [request-id : generals-name :
+ * generals-signature], so several requests can be pipelined over the one
+ * socket and their responses matched up as they come back in order.
+ *
+ * The enclave has to be started with --keep-alive for the connection to carry
+ * more than one request.
+ *
+ * A binary connection sends EcallFrames instead, carrying the General's id and
+ * raw signature rather than the name and Base64 text.
+ *
+ * A secure connection opens a SecureChannel first, and seals every request
+ * and response, text or binary, in its own record. It is only opened if the
+ * enclave's quote checks out against the platform's attestation key.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class EcallConnection implements Closeable
+{
+	private final Socket socket;
+	private final boolean binary;
+	private final DataOutputStream enclaveOut;
+	private BufferedReader enclaveIn;
+	private DataInputStream frameIn;
+	private EcallFrame frame;
+	private ByteBuffer frameOut;
+	private SecureChannel channel;
+	private int nextRequestId = 1;
+
+	public EcallConnection(String host, int port) throws IOException
+	{
+		this(host, port, false);
+	}
+
+	/**
+	 * @param binary
+	 *            send binary EcallFrames rather than text requests
+	 */
+	public EcallConnection(String host, int port, boolean binary) throws IOException
+	{
+		this(host, port, binary, false);
+	}
+
+	/**
+	 * @param binary
+	 *            send binary EcallFrames rather than text requests
+	 * @param secure
+	 *            encrypt the connection with a SecureChannel, checking the
+	 *            enclave's quote against the attestation key it published in
+	 *            the working directory
+	 */
+	public EcallConnection(String host, int port, boolean binary, boolean secure) throws IOException
+	{
+		this(host, port, binary, secure,
+				secure ? readAttestationKey(new File(QuoteSigner.DEFAULT_PUBLIC_KEY_PATH)) : null);
+	}
+
+	/**
+	 * @param binary
+	 *            send binary EcallFrames rather than text requests
+	 * @param secure
+	 *            encrypt the connection with a SecureChannel
+	 * @param attestationKey
+	 *            the key the enclave's quote must be signed with, see
+	 *            readAttestationKey
+	 */
+	public EcallConnection(String host, int port, boolean binary, boolean secure, PublicKey attestationKey)
+			throws IOException
+	{
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		this.binary = binary;
+		enclaveOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		if (binary || secure)
+		{
+			frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			frame = new EcallFrame();
+			frameOut = ByteBuffer.allocate(512);
+		} else
+		{
+			enclaveIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		}
+
+		if (secure)
+		{
+			try
+			{
+				channel = SecureChannel.connect(frameIn, enclaveOut, KeyExchange.available().get(0), attestationKey);
+			} catch (GeneralSecurityException | IOException e)
+			{
+				socket.close();
+				throw new IOException("Could not open a secure channel to the enclave", e);
+			}
+		}
+	}
+
+	/**
+	 * @param file
+	 *            the attestation key as the enclave published it
+	 * @return the key to check secure channel quotes against
+	 * @throws IOException
+	 *             if the file can't be read or holds no key
+	 */
+	public static PublicKey readAttestationKey(File file) throws IOException
+	{
+		try
+		{
+			return QuoteSigner.readPublicKey(file);
+		} catch (GeneralSecurityException e)
+		{
+			throw new IOException(file + " does not hold an attestation key", e);
+		}
+	}
+
+	/**
+	 * Asks the enclave to authorize the launch on behalf of the General
+	 *
+	 * @param general
+	 *            the General making the request
+	 * @return the status returned by the enclave
+	 * @throws Exception
+	 */
+	public String call(General general) throws Exception
+	{
+		return pipeline(Collections.singletonList(general)).get(0);
+	}
+
+	/**
+	 * Sends a request for every General before reading any of the responses.
+	 * Responses are buffered by the enclave until they are read, so keep the
+	 * number of requests in one pipeline reasonable.
+	 *
+	 * @param generals
+	 *            the Generals making requests, in order
+	 * @return the status returned by the enclave for each request, in order
+	 * @throws Exception
+	 */
+	public List<String> pipeline(List<General> generals) throws Exception
+	{
+		int firstRequestId = nextRequestId;
+		for (General general : generals)
+		{
+			send(nextRequestId++, general, general.signRaw());
+		}
+		enclaveOut.flush();
+
+		List<String> results = new ArrayList<>(generals.size());
+		for (int i = 0; i < generals.size(); i++)
+		{
+			results.add(receive(firstRequestId + i, i, generals.size()));
+		}
+		return results;
+	}
+
+	/**
+	 * Sends every General's authorization in a single batch frame. The enclave
+	 * checks the signatures in parallel and applies them in this order. Only
+	 * available on a binary connection.
+	 *
+	 * @param generals
+	 *            the Generals making requests, in order
+	 * @return the status returned by the enclave for each entry, in order
+	 * @throws Exception
+	 */
+	public List<String> batch(List<General> generals) throws Exception
+	{
+		if (!binary)
+		{
+			throw new IllegalStateException("Batches need a binary connection");
+		}
+		if (generals.size() > EcallFrame.MAX_BATCH_SIZE)
+		{
+			throw new IllegalArgumentException("At most " + EcallFrame.MAX_BATCH_SIZE + " entries per batch");
+		}
+
+		int[] generalIds = new int[generals.size()];
+		byte[][] signatures = new byte[generals.size()][];
+		for (int i = 0; i < generals.size(); i++)
+		{
+			generalIds[i] = generals.get(i).getId();
+			signatures[i] = generals.get(i).signRaw();
+		}
+
+		int requestId = nextRequestId++;
+		ByteBuffer request = ByteBuffer.allocate(EcallFrame.batchRequestLength(signatures));
+		EcallFrame.encodeBatchAuthAndLaunch(request, requestId, generalIds, signatures);
+		request.flip();
+		write(request);
+		enclaveOut.flush();
+
+		receive(requestId, 0, 1);
+		List<String> results = new ArrayList<>(frame.getEntryCount());
+		for (int i = 0; i < frame.getEntryCount(); i++)
+		{
+			results.add(frame.getStatus(i).message());
+		}
+		return results;
+	}
+
+	/**
+	 * Sends one request without waiting for its response, for callers that
+	 * read the responses on another thread with receive. A General signs only
+	 * its name, so a signature made earlier can be sent again.
+	 *
+	 * @param general
+	 *            the General making the request
+	 * @param signature
+	 *            the General's raw signature
+	 * @return the id of the request
+	 * @throws IOException
+	 */
+	public int submit(General general, byte[] signature) throws IOException
+	{
+		int requestId = nextRequestId++;
+		send(requestId, general, signature);
+		enclaveOut.flush();
+		return requestId;
+	}
+
+	/**
+	 * Reads the next response, which must be for the given request since the
+	 * enclave answers in order
+	 *
+	 * @param requestId
+	 *            the id returned by submit
+	 * @return the status returned by the enclave
+	 * @throws IOException
+	 */
+	public String receive(int requestId) throws IOException
+	{
+		return receive(requestId, 0, 1);
+	}
+
+	private void send(int requestId, General general, byte[] signature) throws IOException
+	{
+		if (binary)
+		{
+			if (frameOut.capacity() < EcallFrame.requestLength(signature))
+			{
+				frameOut = ByteBuffer.allocate(EcallFrame.requestLength(signature));
+			}
+			frameOut.clear();
+			EcallFrame.encodeAuthAndLaunch(frameOut, requestId, general.getId(), signature);
+			frameOut.flip();
+			write(frameOut);
+		} else
+		{
+			String request = requestId + ":" + general.getName() + ":"
+					+ Base64.getEncoder().encodeToString(signature) + "\n";
+			if (channel != null)
+			{
+				write(ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII)));
+			} else
+			{
+				enclaveOut.writeBytes(request);
+			}
+		}
+	}
+
+	/**
+	 * Writes an encoded request, sealing it if the connection is secure
+	 *
+	 * @param request
+	 *            the request, in read mode
+	 */
+	private void write(ByteBuffer request) throws IOException
+	{
+		if (channel == null)
+		{
+			enclaveOut.write(request.array(), request.position(), request.remaining());
+			return;
+		}
+		try
+		{
+			channel.write(request, enclaveOut);
+		} catch (GeneralSecurityException e)
+		{
+			throw new IOException(e);
+		}
+	}
+
+	private String receive(int expectedRequestId, int received, int total) throws IOException
+	{
+		int requestId;
+		String result;
+		if (channel != null)
+		{
+			ByteBuffer response;
+			try
+			{
+				response = channel.read(frameIn);
+			} catch (GeneralSecurityException e)
+			{
+				throw new IOException("Could not open the enclave's response", e);
+			}
+			if (response == null)
+			{
+				throw closedAfter(received, total);
+			}
+			if (binary)
+			{
+				if (!response.hasRemaining() || response.get(response.position()) != EcallFrame.MAGIC
+						|| !frame.decode(response))
+				{
+					throw new ProtocolException("Expected an ecall frame from the enclave");
+				}
+				requestId = frame.getRequestId();
+				result = frame.getStatus().message();
+			} else
+			{
+				String line = new String(response.array(), response.position(), response.remaining(),
+						StandardCharsets.US_ASCII).trim();
+				int split = line.indexOf(':');
+				requestId = Integer.parseInt(line.substring(0, split));
+				result = line.substring(split + 1);
+			}
+		} else if (binary)
+		{
+			int magic = frameIn.read();
+			if (magic < 0)
+			{
+				throw closedAfter(received, total);
+			}
+			if ((byte) magic != EcallFrame.MAGIC)
+			{
+				throw new ProtocolException("Expected an ecall frame from the enclave");
+			}
+			frame.read(frameIn);
+			requestId = frame.getRequestId();
+			result = frame.getStatus().message();
+		} else
+		{
+			String response = enclaveIn.readLine();
+			if (response == null)
+			{
+				throw closedAfter(received, total);
+			}
+			int split = response.indexOf(':');
+			requestId = Integer.parseInt(response.substring(0, split));
+			result = response.substring(split + 1);
+		}
+
+		if (requestId != expectedRequestId)
+		{
+			throw new IOException("Expected response to request " + expectedRequestId + " but got " + requestId);
+		}
+		return result;
+	}
+
+	private static EOFException closedAfter(int received, int total)
+	{
+		return new EOFException("Enclave closed the connection after " + received + " of " + total + " responses");
+	}
+
+	public void close() throws IOException
+	{
+		socket.close();
+	}
+}
@@ -1,12 +1,10 @@
 package isv.client;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
@@ -20,6 +18,7 @@ import java.util.Base64;
  */
 public class General
 {
+	private int id;
 	private String name;
 	private long seed;
 	private KeyPair pair;
@@ -27,43 +26,83 @@ public class General
 	private PrivateKey privKey;
 	private PublicKey pubKey;
 
+	private static final String KEY_ALGORITHM = "RSA";
+	private static final int KEY_SIZE = 2048;
+
+	// Signature objects are not thread safe, so each thread keeps its own
+	// rather than looking one up for every request
+	private static final ThreadLocal<Signature> SIGNERS = ThreadLocal.withInitial(() -> {
+		try
+		{
+			return Signature.getInstance("SHA256withRSA");
+		} catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	});
+
 	public General(String name, long seed)
 	{
 		this.setName(name);
 		this.setSeed(seed);
-		this.setPair(this.generateKeyPair(seed));
+		this.setPair(KeyPairCache.getDefault().get(name, seed, KEY_ALGORITHM, KEY_SIZE,
+				() -> this.generateKeyPair(seed)));
 		this.setPriv(this.pair.getPrivate());
 		this.setPub(this.pair.getPublic());
 		this.setHasAuthorized(false);
 	}
 
-	public static void main(String[] args) throws IOException
+	/**
+	 * @param id
+	 *            the General's id in the enclave roster, used by the binary
+	 *            ecall protocol in place of the name
+	 */
+	public General(int id, String name, long seed)
 	{
+		this(name, seed);
+		this.setId(id);
+	}
 
-		General g1 = new General("general1", 12345L);
-		General g2 = new General("general2", 56789L);
+	/**
+	 * The General with the given id in the simulation's roster. general1 and
+	 * general2 are the two Generals of the attack simulation, any further
+	 * Generals are numbered after them and seeded from their id, so the
+	 * enclave and the load generator build the same roster.
+	 * 
+	 * @param id
+	 *            the General's id, starting at 1
+	 * @return the General
+	 */
+	public static General rosterGeneral(int id)
+	{
+		switch (id)
+		{
+		case 1:
+			return new General(1, "general1", 12345L);
+		case 2:
+			return new General(2, "general2", 56789L);
+		default:
+			return new General(id, "general" + id, 12345L * id);
+		}
+	}
 
-		General activeGeneral = g1;
+	public static void main(String[] args) throws IOException
+	{
 
-		Socket s = new Socket("localhost", 9090);
+		General g1 = new General(1, "general1", 12345L);
+		General g2 = new General(2, "general2", 56789L);
 
-		DataOutputStream enclaveOut = new DataOutputStream(s.getOutputStream());
-		BufferedReader enclaveIn = new BufferedReader(new InputStreamReader(s.getInputStream()));
+		General activeGeneral = g1;
 
-		try
+		try (EcallConnection enclave = new EcallConnection("localhost", 9090))
 		{
-			String signature = activeGeneral.sign();
-			enclaveOut.writeBytes(activeGeneral.getName() + ":" + signature + "\n");
+			String answer = enclave.call(activeGeneral);
+			System.out.println(answer);
 		} catch (Exception e)
 		{
 			e.printStackTrace();
 			return;
 		}
-		// Sending Alices public key to Bob
-
-		BufferedReader input = new BufferedReader(new InputStreamReader(s.getInputStream()));
-		String answer = input.readLine();
-		System.out.println(answer);
 		System.exit(0);
 	}
 
@@ -73,11 +112,11 @@ public class General
 		KeyPair pair = null;
 		try
 		{
-			KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+			KeyPairGenerator keyGen = KeyPairGenerator.getInstance(KEY_ALGORITHM);
 
 			SecureRandom random = SecureRandom.getInstance("SHA1PRNG", "SUN");
 			random.setSeed(s);
-			keyGen.initialize(2048, random);
+			keyGen.initialize(KEY_SIZE, random);
 
 			pair = keyGen.generateKeyPair();
 		} catch (Exception e)
@@ -90,16 +129,39 @@ public class General
 	}
 
 	public String sign() throws Exception
+	{
+		return Base64.getEncoder().encodeToString(signRaw());
+	}
+
+	/**
+	 * @return the raw signature, as sent over the binary ecall protocol
+	 * @throws Exception
+	 */
+	public byte[] signRaw() throws Exception
 	{
 		String plaintext = this.name;
 
-		Signature privateSignature = Signature.getInstance("SHA256withRSA");
+		Signature privateSignature = SIGNERS.get();
 		privateSignature.initSign(privKey);
-		privateSignature.update(plaintext.getBytes());
+		privateSignature.update(plaintext.getBytes(StandardCharsets.UTF_8));
+
+		return privateSignature.sign();
+	}
 
-		byte[] signature = privateSignature.sign();
+	/**
+	 * Generals are known to the enclave by name, so two Generals are the same
+	 * if their names are
+	 */
+	@Override
+	public boolean equals(Object other)
+	{
+		return other instanceof General && name.equals(((General) other).name);
+	}
 
-		return Base64.getEncoder().encodeToString(signature);
+	@Override
+	public int hashCode()
+	{
+		return name.hashCode();
 	}
 
 	public boolean hasAuthorized()
@@ -112,6 +174,16 @@ public class General
 		this.hasAuthorized = hasAuthorized;
 	}
 
+	public int getId()
+	{
+		return id;
+	}
+
+	public void setId(int id)
+	{
+		this.id = id;
+	}
+
 	public long getSeed()
 	{
 		return seed;
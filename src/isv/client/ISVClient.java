@@ -1,10 +1,10 @@
 package isv.client;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import isv.enclave.QuoteSigner;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
+import java.util.Arrays;
 
 
 public class ISVClient
@@ -18,28 +18,34 @@ public class ISVClient
 	public static void main(String[] args) throws IOException
 	{
 
-		General g1 = new General("general1", 12345L);
-		General g2 = new General("general2", 56789L);
+		General g1 = new General(1, "general1", 12345L);
+		General g2 = new General(2, "general2", 56789L);
 
 		General activeGeneral = g1;
 
-		Socket s = new Socket("localhost", 9090);
-
-		DataOutputStream enclaveOut = new DataOutputStream(s.getOutputStream());
-		BufferedReader input = new BufferedReader(new InputStreamReader(s.getInputStream()));
+		// --binary sends the request as a binary EcallFrame, --secure over a
+		// SecureChannel whose quote is checked against --attestation-key=path
+		boolean binary = Arrays.asList(args).contains("--binary");
+		boolean secure = Arrays.asList(args).contains("--secure");
+		String attestationKey = QuoteSigner.DEFAULT_PUBLIC_KEY_PATH;
+		for (String arg : args)
+		{
+			if (arg.startsWith("--attestation-key="))
+			{
+				attestationKey = arg.substring("--attestation-key=".length());
+			}
+		}
 
-		try
+		try (EcallConnection enclave = new EcallConnection("localhost", 9090, binary, secure,
+				secure ? EcallConnection.readAttestationKey(new File(attestationKey)) : null))
 		{
-			String signature = activeGeneral.sign();
-			enclaveOut.writeBytes(activeGeneral.getName() + ":" + signature + "\n");
+			String answer = enclave.call(activeGeneral);
+			System.out.println(answer);
 		} catch (Exception e)
 		{
 			e.printStackTrace();
 			return;
 		}
-
-		String answer = input.readLine();
-		System.out.println(answer);
 		System.exit(0);
 	}
 
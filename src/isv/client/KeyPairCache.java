@@ -0,0 +1,348 @@
+package isv.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A file backed cache of the Generals' key pairs. A General's key pair is
+ * derived from its seed, so rather than searching for the same RSA primes on
+ * every start the encoded keys are kept in a local file, memory mapped when
+ * the cache is opened, and only generated and appended when they are missing.
+ *
+ * The file is given by the isv.keyPairCache system property, and is
+ * general-keys.cache in the working directory by default. Setting the
+ * property to an empty string turns the file off, so keys are generated once
+ * per run and only cached in memory.
+ *
+ * The file holds the Generals' private keys unencrypted. It is only meant for
+ * the simulation's seeded, and so already reproducible, keys.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class KeyPairCache
+{
+	public static final String PATH_PROPERTY = "isv.keyPairCache";
+	private static final String DEFAULT_PATH = "general-keys.cache";
+
+	private static final int MAGIC = 0x4B504331;
+
+	private static KeyPairCache defaultCache;
+
+	private final File file;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private MappedByteBuffer mapped;
+	// where the whole records this process has seen end; anything after it is
+	// checked again under the file lock before appending
+	private long validEnd = 4;
+	// set if the file is something other than a key pair cache, which is
+	// never written to
+	private boolean foreign;
+
+	/**
+	 * @param file
+	 *            the cache file, created on the first miss, or null to only
+	 *            cache in memory
+	 */
+	public KeyPairCache(File file)
+	{
+		this.file = file;
+		if (file != null && file.isFile())
+		{
+			try
+			{
+				load();
+			} catch (IOException e)
+			{
+				System.out.println("Could not read key pair cache " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return the cache the Generals share, at the path given by the
+	 *         isv.keyPairCache system property
+	 */
+	public static synchronized KeyPairCache getDefault()
+	{
+		if (defaultCache == null)
+		{
+			String path = System.getProperty(PATH_PROPERTY, DEFAULT_PATH);
+			defaultCache = new KeyPairCache(path.isEmpty() ? null : new File(path));
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * Looks up a key pair, generating and storing it if it isn't cached
+	 *
+	 * @param name
+	 *            the General the key pair belongs to
+	 * @param seed
+	 *            the seed the key pair is generated from
+	 * @param algorithm
+	 *            the key algorithm
+	 * @param keySize
+	 *            the key size in bits
+	 * @param generator
+	 *            generates the key pair on a miss
+	 * @return the key pair, or null if it wasn't cached and could not be
+	 *         generated
+	 */
+	public KeyPair get(String name, long seed, String algorithm, int keySize, Supplier<KeyPair> generator)
+	{
+		String key = name + ':' + seed + ':' + algorithm + ':' + keySize;
+		Entry entry = entries.get(key);
+		if (entry != null)
+		{
+			try
+			{
+				return entry.keyPair(algorithm);
+			} catch (GeneralSecurityException e)
+			{
+				System.out.println("Discarding cached key pair for " + name + ": " + e.getMessage());
+			}
+		}
+
+		KeyPair pair = generator.get();
+		if (pair == null)
+		{
+			return null;
+		}
+		entries.put(key, new Entry(pair));
+		if (file != null)
+		{
+			try
+			{
+				append(key, pair);
+			} catch (IOException e)
+			{
+				System.out.println("Could not write key pair cache " + file + ": " + e.getMessage());
+			}
+		}
+		return pair;
+	}
+
+	/**
+	 * Maps the file and indexes its records without decoding any keys.
+	 * Records are [key length, key, public key length, X.509 public key,
+	 * private key length, PKCS#8 private key]. A buffer can map at most
+	 * Integer.MAX_VALUE bytes, so only the records in the first 2 GB are
+	 * indexed and any past them are generated again on a miss.
+	 */
+	private void load() throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+		}
+
+		if (!mapped.hasRemaining())
+		{
+			// an empty file, which append gives a header
+			return;
+		}
+		if (mapped.remaining() < 4 || mapped.getInt() != MAGIC)
+		{
+			// someone else's file, so leave it alone
+			foreign = true;
+			throw new IOException("not a key pair cache, it will not be written to");
+		}
+		while (mapped.hasRemaining())
+		{
+			try
+			{
+				byte[] key = new byte[length()];
+				mapped.get(key);
+				int publicLength = length();
+				int publicOffset = skip(publicLength);
+				int privateLength = length();
+				int privateOffset = skip(privateLength);
+				entries.put(new String(key, StandardCharsets.UTF_8),
+						new Entry(publicOffset, publicLength, privateOffset, privateLength));
+				validEnd = mapped.position();
+			} catch (RuntimeException e)
+			{
+				// a record cut short by a crash while it was being written,
+				// still being written by another process, or running past
+				// the end of the mapping
+				break;
+			}
+		}
+	}
+
+	private int length()
+	{
+		int length = mapped.getInt();
+		if (length < 0 || length > mapped.remaining())
+		{
+			throw new BufferUnderflowException();
+		}
+		return length;
+	}
+
+	private int skip(int length)
+	{
+		int offset = mapped.position();
+		mapped.position(offset + length);
+		return offset;
+	}
+
+	private synchronized void append(String key, KeyPair pair) throws IOException
+	{
+		if (foreign)
+		{
+			return;
+		}
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		byte[] publicKey = pair.getPublic().getEncoded();
+		byte[] privateKey = pair.getPrivate().getEncoded();
+		ByteBuffer record = ByteBuffer.allocate(12 + keyBytes.length + publicKey.length + privateKey.length);
+		record.putInt(keyBytes.length).put(keyBytes);
+		record.putInt(publicKey.length).put(publicKey);
+		record.putInt(privateKey.length).put(privateKey);
+		record.flip();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			// other processes may share the file, so write one record at a
+			// time
+			FileLock lock = channel.lock();
+			try
+			{
+				long end = wholeRecordsEnd(channel);
+				if (end < channel.size())
+				{
+					// no one else is writing while we hold the lock, so this
+					// is a record torn by a crash
+					channel.truncate(end);
+				}
+				channel.position(end);
+				while (record.hasRemaining())
+				{
+					channel.write(record);
+				}
+				validEnd = channel.position();
+			} finally
+			{
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * Checks the records appended since this process last looked, as other
+	 * processes may have added some, writing the header if the file has none
+	 *
+	 * @return where the last whole record ends
+	 * @throws IOException
+	 *             if the file turns out not to be a key pair cache
+	 */
+	private long wholeRecordsEnd(FileChannel channel) throws IOException
+	{
+		long size = channel.size();
+		ByteBuffer field = ByteBuffer.allocate(4);
+		if (size == 0)
+		{
+			field.putInt(MAGIC).flip();
+			channel.write(field, 0);
+			validEnd = 4;
+			return 4;
+		}
+		if (validEnd == 4)
+		{
+			if (channel.read(field, 0) < 4 || field.getInt(0) != MAGIC)
+			{
+				foreign = true;
+				throw new IOException("not a key pair cache, it will not be written to");
+			}
+		}
+
+		long end = validEnd;
+		while (end < size)
+		{
+			// a record is three length prefixed fields
+			long position = end;
+			for (int i = 0; i < 3; i++)
+			{
+				field.clear();
+				if (channel.read(field, position) < 4)
+				{
+					return end;
+				}
+				int length = field.getInt(0);
+				if (length < 0 || length > size - position - 4)
+				{
+					return end;
+				}
+				position += 4 + length;
+			}
+			end = position;
+		}
+		return end;
+	}
+
+	/**
+	 * A cached key pair, either still encoded in the mapped file or decoded
+	 */
+	private class Entry
+	{
+		private final int publicOffset;
+		private final int publicLength;
+		private final int privateOffset;
+		private final int privateLength;
+		private volatile KeyPair pair;
+
+		Entry(int publicOffset, int publicLength, int privateOffset, int privateLength)
+		{
+			this.publicOffset = publicOffset;
+			this.publicLength = publicLength;
+			this.privateOffset = privateOffset;
+			this.privateLength = privateLength;
+		}
+
+		Entry(KeyPair pair)
+		{
+			this(0, 0, 0, 0);
+			this.pair = pair;
+		}
+
+		KeyPair keyPair(String algorithm) throws GeneralSecurityException
+		{
+			KeyPair decoded = pair;
+			if (decoded == null)
+			{
+				KeyFactory factory = KeyFactory.getInstance(algorithm);
+				decoded = new KeyPair(
+						factory.generatePublic(new X509EncodedKeySpec(read(publicOffset, publicLength))),
+						factory.generatePrivate(new PKCS8EncodedKeySpec(read(privateOffset, privateLength))));
+				pair = decoded;
+			}
+			return decoded;
+		}
+
+		private byte[] read(int offset, int length)
+		{
+			byte[] bytes = new byte[length];
+			// a duplicate so threads decoding at once don't share a position
+			ByteBuffer view = mapped.duplicate();
+			view.position(offset);
+			view.get(bytes);
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package isv.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size latency histogram with log-linear buckets, in the style of
+ * HdrHistogram. Each power of two range of latencies is split into 64 equal
+ * buckets, so any recorded value is reported within about 1.5% of what was
+ * measured, from nanoseconds up to hours, in a few kilobytes.
+ *
+ * Recording is a single atomic increment, so many threads can record into the
+ * same histogram.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 *            a latency in nanoseconds, negative values count as 0
+	 */
+	public void record(long nanos)
+	{
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(indexOf(value));
+		total.incrementAndGet();
+
+		long currentMax;
+		while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value))
+		{
+		}
+	}
+
+	/**
+	 * @return the number of latencies recorded
+	 */
+	public long count()
+	{
+		return total.get();
+	}
+
+	/**
+	 * @return the largest latency recorded, exactly
+	 */
+	public long max()
+	{
+		return max.get();
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1, e.g. 0.999 for the 99.9th percentile
+	 * @return the latency at the quantile in nanoseconds, 0 if nothing was
+	 *         recorded
+	 */
+	public long percentile(double quantile)
+	{
+		long recorded = total.get();
+		if (recorded == 0)
+		{
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * recorded));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= rank)
+			{
+				return Math.min(highestValueIn(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	private static int indexOf(long value)
+	{
+		if (value < SUB_BUCKETS)
+		{
+			return (int) value;
+		}
+		// shift the value down so its top bits pick one of the sub buckets
+		int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> magnitude) - SUB_BUCKETS;
+		return (magnitude + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long highestValueIn(int index)
+	{
+		if (index < SUB_BUCKETS)
+		{
+			return index;
+		}
+		int magnitude = index / SUB_BUCKETS - 1;
+		long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << magnitude) - 1;
+	}
+}
@@ -0,0 +1,314 @@
+package isv.client;
+
+import isv.enclave.QuoteSigner;
+
+import java.io.File;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the enclave with authorization requests at a fixed rate over many
+ * persistent connections and reports the latency of the responses. Run the
+ * enclave with --keep-alive and at least as many Generals, e.g.
+ *
+ * <pre>
+ * java isv.enclave.Enclave --keep-alive --generals=100
+ * java isv.client.LoadGenerator --generals=100 --connections=16 --rate=20000 --duration=30
+ * </pre>
+ *
+ * Options, all optional:
+ * <ul>
+ * <li>--host=name the enclave's host, localhost by default</li>
+ * <li>--port=N the enclave's port, 9090 by default</li>
+ * <li>--generals=N Generals taking turns to send requests</li>
+ * <li>--connections=N connections to the enclave</li>
+ * <li>--rate=N requests per second over all connections</li>
+ * <li>--duration=N seconds to send requests for</li>
+ * <li>--warmup=N seconds to send requests for before measuring</li>
+ * <li>--binary send binary ecall frames rather than text</li>
+ * <li>--secure encrypt every connection with a SecureChannel</li>
+ * <li>--attestation-key=path the key the enclave published to check its
+ * quotes with, attestation-key.pub by default</li>
+ * </ul>
+ *
+ * The load is open loop: every request has a time it is meant to be sent at,
+ * fixed before the run starts, and its latency is measured from then rather
+ * than from when it was actually sent. A slow response holds up the requests
+ * queued behind it, and their latencies include that wait, as they would for
+ * real callers who don't stop arriving while the enclave is busy.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class LoadGenerator
+{
+	// requests a connection can have outstanding before its sender waits
+	private static final int MAX_OUTSTANDING = 1 << 16;
+
+	private String host = "localhost";
+	private int port = 9090;
+	private int generalCount = 2;
+	private int connections = 4;
+	private int rate = 1000;
+	private int durationSeconds = 10;
+	private int warmupSeconds = 0;
+	private boolean binary;
+	private boolean secure;
+	private String attestationKey = QuoteSigner.DEFAULT_PUBLIC_KEY_PATH;
+
+	private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+	private final LatencyHistogram all = new LatencyHistogram();
+	private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+	public static void main(String[] args) throws Exception
+	{
+		LoadGenerator generator = new LoadGenerator();
+		for (String arg : args)
+		{
+			if (arg.equals("--binary"))
+			{
+				generator.binary = true;
+				continue;
+			}
+			if (arg.equals("--secure"))
+			{
+				generator.secure = true;
+				continue;
+			}
+			int split = arg.indexOf('=');
+			if (!arg.startsWith("--") || split < 0)
+			{
+				throw new IllegalArgumentException("Unrecognized argument " + arg);
+			}
+			String value = arg.substring(split + 1);
+			switch (arg.substring(2, split))
+			{
+			case "host":
+				generator.host = value;
+				break;
+			case "port":
+				generator.port = Integer.parseInt(value);
+				break;
+			case "generals":
+				generator.generalCount = Integer.parseInt(value);
+				break;
+			case "connections":
+				generator.connections = Integer.parseInt(value);
+				break;
+			case "rate":
+				generator.rate = Integer.parseInt(value);
+				break;
+			case "duration":
+				generator.durationSeconds = Integer.parseInt(value);
+				break;
+			case "warmup":
+				generator.warmupSeconds = Integer.parseInt(value);
+				break;
+			case "binary":
+				generator.binary = Boolean.parseBoolean(value);
+				break;
+			case "secure":
+				generator.secure = Boolean.parseBoolean(value);
+				break;
+			case "attestation-key":
+				generator.attestationKey = value;
+				break;
+			default:
+				throw new IllegalArgumentException("Unrecognized option " + arg);
+			}
+		}
+
+		try
+		{
+			generator.run();
+		} catch (Exception e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	private void run() throws Exception
+	{
+		System.out.println("Generating keys for " + generalCount + " Generals");
+		List<General> generals = new ArrayList<>();
+		List<byte[]> signatures = new ArrayList<>();
+		for (int id = 1; id <= generalCount; id++)
+		{
+			General general = General.rosterGeneral(id);
+			generals.add(general);
+			// a General always signs its name, so one signature serves every
+			// request and signing stays out of the measurement
+			signatures.add(general.signRaw());
+		}
+
+		long intervalNanos = connections * 1000000000L / rate;
+		long start = System.nanoTime() + 100000000L;
+		long measureFrom = start + warmupSeconds * 1000000000L;
+		long end = measureFrom + durationSeconds * 1000000000L;
+
+		System.out.println("Sending " + rate + " requests/s over " + connections + " "
+				+ (secure ? "secure " : "") + (binary ? "binary" : "text") + " connections for " + durationSeconds + "s");
+		PublicKey key = secure ? EcallConnection.readAttestationKey(new File(attestationKey)) : null;
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < connections; i++)
+		{
+			// stagger the connections so the requests are evenly spread
+			long first = start + i * intervalNanos / connections;
+			LoadConnection connection = new LoadConnection(new EcallConnection(host, port, binary, secure, key), generals,
+					signatures, i, first, intervalNanos, measureFrom, end);
+			threads.add(connection.start());
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		if (failure.get() != null)
+		{
+			throw failure.get();
+		}
+		report(end - measureFrom);
+	}
+
+	private void record(String result, long latency)
+	{
+		all.record(latency);
+		histograms.computeIfAbsent(result, r -> new LatencyHistogram()).record(latency);
+	}
+
+	private void report(long measuredNanos)
+	{
+		System.out.println(String.format(Locale.ROOT, "Completed %d requests, %.1f requests/s", all.count(),
+				all.count() * 1e9 / measuredNanos));
+		print("ALL", all);
+		for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet())
+		{
+			print(histogram.getKey(), histogram.getValue());
+		}
+	}
+
+	private static void print(String name, LatencyHistogram histogram)
+	{
+		System.out.println(String.format(Locale.ROOT,
+				"%-40s %10d   p50 %10.1f us   p99 %10.1f us   p99.9 %10.1f us   max %10.1f us", name,
+				histogram.count(), histogram.percentile(0.5) / 1e3, histogram.percentile(0.99) / 1e3,
+				histogram.percentile(0.999) / 1e3, histogram.max() / 1e3));
+	}
+
+	/**
+	 * One connection's sender, which submits requests at their intended
+	 * times, and reader, which times the responses as they come back
+	 */
+	private class LoadConnection
+	{
+		private final EcallConnection connection;
+		private final List<General> generals;
+		private final List<byte[]> signatures;
+		private final int firstGeneral;
+		private final long first;
+		private final long intervalNanos;
+		private final long measureFrom;
+		private final long end;
+
+		// intended send time of each outstanding request, by request id
+		private final AtomicLongArray intended = new AtomicLongArray(MAX_OUTSTANDING);
+		private final Semaphore window = new Semaphore(MAX_OUTSTANDING);
+		private final Semaphore submitted = new Semaphore(0);
+		private volatile int sent;
+
+		LoadConnection(EcallConnection connection, List<General> generals, List<byte[]> signatures,
+				int firstGeneral, long first, long intervalNanos, long measureFrom, long end)
+		{
+			this.connection = connection;
+			this.generals = generals;
+			this.signatures = signatures;
+			this.firstGeneral = firstGeneral;
+			this.first = first;
+			this.intervalNanos = intervalNanos;
+			this.measureFrom = measureFrom;
+			this.end = end;
+		}
+
+		Thread start()
+		{
+			Thread reader = new Thread(this::read, "load-reader");
+			reader.start();
+			new Thread(this::send, "load-sender").start();
+			return reader;
+		}
+
+		private void send()
+		{
+			try
+			{
+				int general = firstGeneral;
+				for (long due = first; due < end && failure.get() == null; due += intervalNanos)
+				{
+					long wait;
+					while ((wait = due - System.nanoTime()) > 0)
+					{
+						LockSupport.parkNanos(wait);
+					}
+
+					window.acquire();
+					int index = general++ % generals.size();
+					int requestId = connection.submit(generals.get(index), signatures.get(index));
+					intended.set(requestId % MAX_OUTSTANDING, due);
+					sent = requestId;
+					submitted.release();
+				}
+			} catch (Exception e)
+			{
+				failure.compareAndSet(null, e);
+			} finally
+			{
+				// one more permit than requests sent tells the reader to stop
+				submitted.release();
+			}
+		}
+
+		private void read()
+		{
+			try
+			{
+				for (int requestId = 1;; requestId++)
+				{
+					submitted.acquire();
+					if (requestId > sent)
+					{
+						break;
+					}
+
+					String result = connection.receive(requestId);
+					long due = intended.get(requestId % MAX_OUTSTANDING);
+					window.release();
+					if (due >= measureFrom)
+					{
+						record(result, System.nanoTime() - due);
+					}
+				}
+			} catch (Exception e)
+			{
+				failure.compareAndSet(null, e);
+			} finally
+			{
+				try
+				{
+					connection.close();
+				} catch (Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package isv.enclave;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead log of the authorization decisions that changed
+ * the enclave's state: which General asked, what the enclave answered,
+ * whether the General's flag is now set and the authorization count after.
+ * Replaying it rebuilds the roster's flags and the count after a crash.
+ *
+ * Commits are grouped. Ecalls append their events to a shared buffer without
+ * waiting, then wait for, or ask to be called back on, the last of them being
+ * durable; a single committer thread waits out the batch window, writes every
+ * event appended so far and fsyncs them once, then lets all of their ecalls go
+ * on. However many ecalls run at once, durability costs one fsync per batch.
+ *
+ * Each record is fixed length with its own CRC32, so a record torn by a crash
+ * is recognized and cut off on replay.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class AuthorizationLog implements Closeable
+{
+	// time, General id, status, flag, authorization count, CRC32
+	static final int RECORD_LENGTH = 8 + 4 + 1 + 1 + 4 + 4;
+	private static final int INITIAL_BATCH = 256 * RECORD_LENGTH;
+
+	private final FileChannel channel;
+	private final long windowNanos;
+	private final Thread committer;
+	private final CRC32 crc = new CRC32();
+
+	// guarded by this: events appended and not yet written, and the sequence
+	// numbers of the last appended and last durable events
+	private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BATCH);
+	private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BATCH);
+	private long appended;
+	private long durable;
+	// guarded by this: callbacks waiting for an event to be durable
+	private final NavigableMap<Long, CompletableFuture<Void>> callbacks = new TreeMap<>();
+	private IOException failure;
+	private boolean closed;
+
+	/**
+	 * Opens the log, creating it if there is none
+	 *
+	 * @param file
+	 *            the log file
+	 * @param windowMicros
+	 *            how long the committer waits for more events after the first
+	 *            one of a batch arrives, 0 to commit as soon as the last fsync
+	 *            is done
+	 * @throws IOException
+	 */
+	public AuthorizationLog(File file, long windowMicros) throws IOException
+	{
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		this.committer = new Thread(this::commitLoop, "authorization-log");
+		committer.setDaemon(true);
+	}
+
+	/**
+	 * Applies every event in the log to the enclave, then starts accepting new
+	 * events after the last whole one
+	 *
+	 * @param enclave
+	 *            the enclave, with its roster already in place
+	 * @return the number of events replayed
+	 * @throws IOException
+	 */
+	public synchronized long replay(Enclave enclave) throws IOException
+	{
+		ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+		long position = 0;
+		long events = 0;
+		int authCount = enclave.getAuthCount();
+		while (true)
+		{
+			record.clear();
+			while (record.hasRemaining())
+			{
+				if (channel.read(record, position + record.position()) <= 0)
+				{
+					break;
+				}
+			}
+			if (record.hasRemaining() || !checksumMatches(record))
+			{
+				break;
+			}
+
+			record.position(8);
+			int generalId = record.getInt();
+			record.get();
+			boolean flag = record.get() != 0;
+			// concurrent ecalls may log their counts out of order, but the
+			// count only ever goes up
+			authCount = Math.max(authCount, record.getInt());
+
+			RosterEntry general = enclave.getRoster().get(generalId);
+			if (general == null)
+			{
+				System.out.println("Authorization log names unknown General " + generalId);
+			} else if (flag)
+			{
+				general.setHasAuthorized(true);
+			}
+			position += RECORD_LENGTH;
+			events++;
+		}
+
+		if (position < channel.size())
+		{
+			System.out.println("Cutting off " + (channel.size() - position) + " bytes of a partly written log record");
+			channel.truncate(position);
+		}
+		channel.position(position);
+		enclave.setAuthCount(authCount);
+		if (!committer.isAlive())
+		{
+			committer.start();
+		}
+		return events;
+	}
+
+	/**
+	 * Appends a decision to the log without waiting for it to be durable
+	 *
+	 * @param generalId
+	 *            the General that asked
+	 * @param transition
+	 *            the transition the decision applied
+	 * @return the event to wait for before the decision is acted on
+	 * @throws IOException
+	 *             if the log is closed or has failed
+	 */
+	public synchronized long append(int generalId, AuthorizationTransition transition) throws IOException
+	{
+		if (closed)
+		{
+			throw new IOException("Authorization log is closed");
+		}
+		if (failure != null)
+		{
+			throw failure;
+		}
+		if (!committer.isAlive())
+		{
+			// nothing was replayed, so the log is appended to from its end
+			channel.position(channel.size());
+			committer.start();
+		}
+		if (pending.remaining() < RECORD_LENGTH)
+		{
+			ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+			pending.flip();
+			pending = larger.put(pending);
+		}
+
+		int start = pending.position();
+		pending.putLong(System.currentTimeMillis()).putInt(generalId).put((byte) transition.getStatus().ordinal())
+				.put((byte) (transition.isAuthorized() ? 1 : 0)).putInt(transition.getAuthCount());
+		crc.reset();
+		crc.update(pending.array(), start, RECORD_LENGTH - 4);
+		pending.putInt((int) crc.getValue());
+
+		appended++;
+		if (appended == durable + 1)
+		{
+			// the first event of a batch wakes the committer
+			notifyAll();
+		}
+		return appended;
+	}
+
+	/**
+	 * Waits until an event, and every event appended before it, is durable
+	 *
+	 * @param event
+	 *            as returned by append
+	 * @throws IOException
+	 *             if the log could not be written, in which case the decision
+	 *             must not be acted on
+	 */
+	public synchronized void awaitDurable(long event) throws IOException
+	{
+		boolean interrupted = false;
+		while (durable < event && failure == null)
+		{
+			try
+			{
+				wait();
+			} catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (durable < event)
+		{
+			throw failure;
+		}
+	}
+
+	/**
+	 * For callers that must not block, like an event loop
+	 *
+	 * @param event
+	 *            as returned by append
+	 * @return a future completed on the committer thread once the event, and
+	 *         every event appended before it, is durable, or completed
+	 *         exceptionally if the log could not be written
+	 */
+	public synchronized CompletableFuture<Void> whenDurable(long event)
+	{
+		if (durable >= event)
+		{
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Void> callback = new CompletableFuture<>();
+		if (failure != null)
+		{
+			callback.completeExceptionally(failure);
+			return callback;
+		}
+		CompletableFuture<Void> earlier = callbacks.putIfAbsent(event, callback);
+		return earlier != null ? earlier : callback;
+	}
+
+	/**
+	 * Takes the callbacks for every event up to the given one, to be completed
+	 * outside the lock
+	 */
+	private List<CompletableFuture<Void>> takeCallbacks(long upTo)
+	{
+		NavigableMap<Long, CompletableFuture<Void>> due = callbacks.headMap(upTo, true);
+		List<CompletableFuture<Void>> taken = new ArrayList<>(due.values());
+		due.clear();
+		return taken;
+	}
+
+	private void commitLoop()
+	{
+		try
+		{
+			while (true)
+			{
+				long batchEnd;
+				synchronized (this)
+				{
+					while (appended == durable && !closed)
+					{
+						wait();
+					}
+					if (appended == durable)
+					{
+						return;
+					}
+				}
+
+				// let more ecalls join the batch
+				if (windowNanos > 0)
+				{
+					TimeUnit.NANOSECONDS.sleep(windowNanos);
+				}
+
+				synchronized (this)
+				{
+					ByteBuffer batch = pending;
+					pending = writing;
+					writing = batch;
+					batchEnd = appended;
+				}
+
+				writing.flip();
+				while (writing.hasRemaining())
+				{
+					channel.write(writing);
+				}
+				writing.clear();
+				channel.force(false);
+
+				List<CompletableFuture<Void>> committed;
+				synchronized (this)
+				{
+					durable = batchEnd;
+					notifyAll();
+					committed = takeCallbacks(batchEnd);
+				}
+				for (CompletableFuture<Void> callback : committed)
+				{
+					callback.complete(null);
+				}
+			}
+		} catch (IOException e)
+		{
+			fail(e);
+		} catch (InterruptedException e)
+		{
+			fail(new IOException("Authorization log committer was interrupted"));
+		}
+	}
+
+	private void fail(IOException e)
+	{
+		List<CompletableFuture<Void>> failed;
+		synchronized (this)
+		{
+			failure = e;
+			notifyAll();
+			failed = takeCallbacks(Long.MAX_VALUE);
+		}
+		for (CompletableFuture<Void> callback : failed)
+		{
+			callback.completeExceptionally(e);
+		}
+	}
+
+	private boolean checksumMatches(ByteBuffer record)
+	{
+		CRC32 check = new CRC32();
+		check.update(record.array(), 0, RECORD_LENGTH - 4);
+		return record.getInt(RECORD_LENGTH - 4) == (int) check.getValue();
+	}
+
+	/**
+	 * Commits whatever is pending and closes the log
+	 */
+	public void close() throws IOException
+	{
+		synchronized (this)
+		{
+			closed = true;
+			notifyAll();
+		}
+		try
+		{
+			committer.join();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+	}
+}
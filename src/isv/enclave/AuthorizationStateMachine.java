@@ -0,0 +1,31 @@
+package isv.enclave;
+
+/**
+ * Decides what happens to the enclave when a General with a valid signature
+ * asks to authorize the launch. The vulnerable implementation is the one the
+ * attack simulation exploits, the hardened one keeps the decision correct no
+ * matter how the ecalls interleave, so the two can be compared side by side.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public interface AuthorizationStateMachine
+{
+
+	/**
+	 * Moves the enclave state along for a General whose signature is valid
+	 * 
+	 * @param enclave
+	 *            the enclave holding the authorization count
+	 * @param general
+	 *            the General authorizing the launch
+	 * @return the transition applied to the enclave, carrying the status of
+	 *         the enclave to the environment
+	 */
+	AuthorizationTransition authorize(Enclave enclave, RosterEntry general);
+
+	/**
+	 * @return true if ecalls may run authorize concurrently, false if they
+	 *         have to take turns on the enclave's lock
+	 */
+	boolean isConcurrent();
+}
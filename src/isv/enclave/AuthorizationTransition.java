@@ -0,0 +1,129 @@
+package isv.enclave;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * What one authorization did to the enclave, as the state machine applied it:
+ * the status the General is answered with and, if the enclave's state changed,
+ * whether the General's flag is set and the authorization count right after.
+ * Reading the state back afterwards would race with concurrent ecalls.
+ *
+ * A transition written to the AuthorizationLog also carries its place in the
+ * log, so the answer can be held back until the decision is durable.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public final class AuthorizationTransition
+{
+	private static final CompletableFuture<Void> DURABLE = CompletableFuture.completedFuture(null);
+	private static final AuthorizationTransition[] UNCHANGED = new AuthorizationTransition[EcallStatus.values().length];
+
+	static
+	{
+		for (EcallStatus status : EcallStatus.values())
+		{
+			UNCHANGED[status.ordinal()] = new AuthorizationTransition(status, false, false, 0, null, 0);
+		}
+	}
+
+	private final EcallStatus status;
+	private final boolean changed;
+	private final boolean authorized;
+	private final int authCount;
+	private final AuthorizationLog log;
+	private final long event;
+
+	private AuthorizationTransition(EcallStatus status, boolean changed, boolean authorized, int authCount,
+			AuthorizationLog log, long event)
+	{
+		this.status = status;
+		this.changed = changed;
+		this.authorized = authorized;
+		this.authCount = authCount;
+		this.log = log;
+		this.event = event;
+	}
+
+	/**
+	 * @return a transition that left the enclave as it was
+	 */
+	public static AuthorizationTransition unchanged(EcallStatus status)
+	{
+		return UNCHANGED[status.ordinal()];
+	}
+
+	/**
+	 * @param authorized
+	 *            whether the General's flag is set after the transition
+	 * @param authCount
+	 *            the authorization count the transition left behind
+	 * @return a transition that changed the General's flag or the count
+	 */
+	public static AuthorizationTransition applied(EcallStatus status, boolean authorized, int authCount)
+	{
+		return new AuthorizationTransition(status, true, authorized, authCount, null, 0);
+	}
+
+	/**
+	 * @return the same transition, written to the log as the given event
+	 */
+	AuthorizationTransition logged(AuthorizationLog log, long event)
+	{
+		return new AuthorizationTransition(status, changed, authorized, authCount, log, event);
+	}
+
+	public EcallStatus getStatus()
+	{
+		return status;
+	}
+
+	/**
+	 * @return true if the General's flag or the authorization count changed
+	 */
+	public boolean isChanged()
+	{
+		return changed;
+	}
+
+	public boolean isAuthorized()
+	{
+		return authorized;
+	}
+
+	public int getAuthCount()
+	{
+		return authCount;
+	}
+
+	/**
+	 * @return true if the transition has to be durable before it is answered
+	 */
+	public boolean isLogged()
+	{
+		return log != null;
+	}
+
+	/**
+	 * Waits until the transition, and every one logged before it, is durable
+	 *
+	 * @throws IOException
+	 *             if the log could not be written
+	 */
+	public void awaitDurable() throws IOException
+	{
+		if (log != null)
+		{
+			log.awaitDurable(event);
+		}
+	}
+
+	/**
+	 * @return a future completed once the transition, and every one logged
+	 *         before it, is durable
+	 */
+	public CompletableFuture<Void> whenDurable()
+	{
+		return log != null ? log.whenDurable(event) : DURABLE;
+	}
+}
@@ -0,0 +1,366 @@
+package isv.enclave;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The binary framing for ecalls. It carries the same requests as the text
+ * protocol, but sends the raw signature instead of Base64 and the General's id
+ * instead of its name. Every frame starts with a magic byte that can never
+ * start a text request, so both protocols can share a connection.
+ *
+ * <pre>
+ * request:  magic(1) length(4) opcode(1) request-id(4) general-id(4) signature-length(2) signature
+ * response: magic(1) length(4) opcode(1) request-id(4) status(1)
+ * </pre>
+ *
+ * A batch carries many authorizations in one frame, and is answered with one
+ * status per entry, in the same order.
+ *
+ * <pre>
+ * request:  magic(1) length(4) opcode(1) request-id(4) count(2) count * [general-id(4) signature-length(2) signature]
+ * response: magic(1) length(4) opcode(1) request-id(4) count(2) count * status(1)
+ * </pre>
+ *
+ * The length counts the bytes after the length field. A frame object is
+ * decoded in place and reused for every frame on a connection, so decoding
+ * allocates nothing.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class EcallFrame
+{
+
+	public static final byte MAGIC = (byte) 0xEC;
+	public static final byte OP_AUTH_AND_LAUNCH = 0x01;
+	public static final byte OP_BATCH_AUTH_AND_LAUNCH = 0x02;
+	public static final byte OP_RESULT = (byte) 0x81;
+	public static final byte OP_BATCH_RESULT = (byte) 0x82;
+
+	static final int HEADER_LENGTH = 5;
+	static final int MAX_FRAME_LENGTH = 1 << 20;
+	public static final int RESULT_LENGTH = HEADER_LENGTH + 1 + 4 + 1;
+	public static final int MAX_BATCH_SIZE = 0xFFFF;
+
+	private byte opcode;
+	private int requestId;
+
+	// the entries of a request, a single authAndLaunch is a batch of one
+	private int entryCount;
+	private int[] generalIds = new int[1];
+	private int[] signatureOffsets = new int[1];
+	private int[] signatureLengths = new int[1];
+	private byte[] signatures = new byte[256];
+
+	// the statuses of a response
+	private EcallStatus[] statuses = new EcallStatus[1];
+
+	// holds the body of frames read from a stream
+	private ByteBuffer body = ByteBuffer.allocate(512);
+
+	/**
+	 * Decodes a frame from the buffer if all of it has arrived. The buffer must
+	 * be positioned at the magic byte.
+	 *
+	 * @param in
+	 *            buffer in read mode
+	 * @return true and the buffer positioned after the frame if a frame was
+	 *         decoded, false and the buffer untouched if more bytes are needed
+	 * @throws ProtocolException
+	 *             if the frame is malformed
+	 */
+	public boolean decode(ByteBuffer in) throws ProtocolException
+	{
+		if (in.remaining() < HEADER_LENGTH)
+		{
+			return false;
+		}
+
+		int start = in.position();
+		if (in.get(start) != MAGIC)
+		{
+			throw new ProtocolException("Not an ecall frame");
+		}
+		int length = checkLength(in.getInt(start + 1));
+		if (in.remaining() < HEADER_LENGTH + length)
+		{
+			return false;
+		}
+
+		int limit = in.limit();
+		in.position(start + HEADER_LENGTH);
+		in.limit(start + HEADER_LENGTH + length);
+		try
+		{
+			decodeBody(in);
+		} finally
+		{
+			in.limit(limit);
+		}
+		in.position(start + HEADER_LENGTH + length);
+		return true;
+	}
+
+	/**
+	 * Reads and decodes a frame from a stream whose magic byte has already
+	 * been consumed
+	 *
+	 * @param in
+	 *            the stream positioned just after the magic byte
+	 * @throws IOException
+	 */
+	public void read(DataInputStream in) throws IOException
+	{
+		int length = checkLength(in.readInt());
+		if (body.capacity() < length)
+		{
+			body = ByteBuffer.allocate(Math.max(length, body.capacity() * 2));
+		}
+		in.readFully(body.array(), 0, length);
+		body.clear();
+		body.limit(length);
+		decodeBody(body);
+	}
+
+	private void decodeBody(ByteBuffer in) throws ProtocolException
+	{
+		try
+		{
+			opcode = in.get();
+			requestId = in.getInt();
+
+			switch (opcode)
+			{
+			case OP_AUTH_AND_LAUNCH:
+				decodeEntries(in, 1);
+				break;
+			case OP_BATCH_AUTH_AND_LAUNCH:
+				decodeEntries(in, in.getShort() & 0xFFFF);
+				break;
+			case OP_RESULT:
+				decodeStatuses(in, 1);
+				break;
+			case OP_BATCH_RESULT:
+				decodeStatuses(in, in.getShort() & 0xFFFF);
+				break;
+			default:
+				throw new ProtocolException("Unknown ecall opcode " + opcode);
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e)
+		{
+			throw new ProtocolException("Truncated or malformed ecall frame");
+		}
+	}
+
+	private void decodeEntries(ByteBuffer in, int count)
+	{
+		if (generalIds.length < count)
+		{
+			generalIds = new int[count];
+			signatureOffsets = new int[count];
+			signatureLengths = new int[count];
+		}
+		// every signature is inside the frame, so the rest of it is enough room
+		if (signatures.length < in.remaining())
+		{
+			signatures = new byte[Math.max(in.remaining(), signatures.length * 2)];
+		}
+
+		int offset = 0;
+		for (int i = 0; i < count; i++)
+		{
+			generalIds[i] = in.getInt();
+			int length = in.getShort() & 0xFFFF;
+			in.get(signatures, offset, length);
+			signatureOffsets[i] = offset;
+			signatureLengths[i] = length;
+			offset += length;
+		}
+		entryCount = count;
+	}
+
+	private void decodeStatuses(ByteBuffer in, int count)
+	{
+		if (statuses.length < count)
+		{
+			statuses = new EcallStatus[count];
+		}
+		for (int i = 0; i < count; i++)
+		{
+			statuses[i] = EcallStatus.fromCode(in.get());
+		}
+		entryCount = count;
+	}
+
+	private static int checkLength(int length) throws ProtocolException
+	{
+		if (length < 5 || length > MAX_FRAME_LENGTH)
+		{
+			throw new ProtocolException("Bad ecall frame length " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Writes an authAndLaunch request frame
+	 *
+	 * @param out
+	 *            buffer with at least requestLength(signature) bytes remaining
+	 */
+	public static void encodeAuthAndLaunch(ByteBuffer out, int requestId, int generalId, byte[] signature)
+	{
+		out.put(MAGIC);
+		out.putInt(1 + 4 + 4 + 2 + signature.length);
+		out.put(OP_AUTH_AND_LAUNCH);
+		out.putInt(requestId);
+		out.putInt(generalId);
+		out.putShort((short) signature.length);
+		out.put(signature);
+	}
+
+	/**
+	 * @return the size of the request frame for a signature
+	 */
+	public static int requestLength(byte[] signature)
+	{
+		return HEADER_LENGTH + 1 + 4 + 4 + 2 + signature.length;
+	}
+
+	/**
+	 * Writes a batch of authAndLaunch requests as one frame
+	 *
+	 * @param out
+	 *            buffer with at least batchRequestLength(signatures) bytes
+	 *            remaining
+	 */
+	public static void encodeBatchAuthAndLaunch(ByteBuffer out, int requestId, int[] generalIds,
+			byte[][] signatures)
+	{
+		out.put(MAGIC);
+		out.putInt(batchRequestLength(signatures) - HEADER_LENGTH);
+		out.put(OP_BATCH_AUTH_AND_LAUNCH);
+		out.putInt(requestId);
+		out.putShort((short) signatures.length);
+		for (int i = 0; i < signatures.length; i++)
+		{
+			out.putInt(generalIds[i]);
+			out.putShort((short) signatures[i].length);
+			out.put(signatures[i]);
+		}
+	}
+
+	/**
+	 * @return the size of the batch request frame for the signatures
+	 */
+	public static int batchRequestLength(byte[][] signatures)
+	{
+		int length = HEADER_LENGTH + 1 + 4 + 2;
+		for (byte[] signature : signatures)
+		{
+			length += 4 + 2 + signature.length;
+		}
+		return length;
+	}
+
+	/**
+	 * @return the size of the response to the request that was just decoded
+	 */
+	public int resultLength()
+	{
+		return opcode == OP_BATCH_AUTH_AND_LAUNCH ? HEADER_LENGTH + 1 + 4 + 2 + entryCount : RESULT_LENGTH;
+	}
+
+	/**
+	 * Writes the response frame for a request
+	 *
+	 * @param out
+	 *            buffer with at least RESULT_LENGTH bytes remaining
+	 */
+	public static void encodeResult(ByteBuffer out, int requestId, EcallStatus status)
+	{
+		out.put(MAGIC);
+		out.putInt(1 + 4 + 1);
+		out.put(OP_RESULT);
+		out.putInt(requestId);
+		out.put(status.code());
+	}
+
+	/**
+	 * Writes the response frame for a batch
+	 *
+	 * @param out
+	 *            buffer with at least resultLength() bytes remaining
+	 */
+	public static void encodeBatchResult(ByteBuffer out, int requestId, EcallStatus[] statuses, int count)
+	{
+		out.put(MAGIC);
+		out.putInt(1 + 4 + 2 + count);
+		out.put(OP_BATCH_RESULT);
+		out.putInt(requestId);
+		out.putShort((short) count);
+		for (int i = 0; i < count; i++)
+		{
+			out.put(statuses[i].code());
+		}
+	}
+
+	public byte getOpcode()
+	{
+		return opcode;
+	}
+
+	public int getRequestId()
+	{
+		return requestId;
+	}
+
+	/**
+	 * @return the number of entries in a request, or statuses in a response
+	 */
+	public int getEntryCount()
+	{
+		return entryCount;
+	}
+
+	public int getGeneralId()
+	{
+		return generalIds[0];
+	}
+
+	public int getGeneralId(int entry)
+	{
+		return generalIds[entry];
+	}
+
+	/**
+	 * @return the buffer holding every entry's signature, only valid until the
+	 *         next frame is decoded
+	 */
+	public byte[] getSignatures()
+	{
+		return signatures;
+	}
+
+	public int getSignatureOffset(int entry)
+	{
+		return signatureOffsets[entry];
+	}
+
+	public int getSignatureLength(int entry)
+	{
+		return signatureLengths[entry];
+	}
+
+	public EcallStatus getStatus()
+	{
+		return statuses[0];
+	}
+
+	public EcallStatus getStatus(int entry)
+	{
+		return statuses[entry];
+	}
+}
@@ -0,0 +1,468 @@
+package isv.enclave;
+
+import isv.metrics.ProtocolTracer;
+import isv.metrics.ProtocolTracer.Message;
+import isv.metrics.ProtocolTracer.Outcome;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A non-blocking front end for the enclave. Instead of a thread per General,
+ * every connection is multiplexed onto a small fixed set of event loops, each
+ * owning its own Selector. The accepting thread hands new connections to the
+ * loops round robin, and each loop dispatches complete request lines to
+ * authAndLaunch and writes the result back.
+ *
+ * The wire protocol is the same as for the ThreadWorker: one
+ * [generals-name : generals-signature] line or binary EcallFrame in, one
+ * result out. Binary frames are decoded straight from the connection's
+ * buffer and their responses encoded straight into its output buffer. With
+ * keep-alive a connection carries any number of pipelined requests, and all
+ * the responses to one read are sent back in a single write.
+ *
+ * With an AuthorizationLog the responses to a read are held back until the
+ * decisions behind them are durable. The loop does not wait for the commit,
+ * it stops serving that connection and goes on with the others, whose
+ * decisions join the same group commit.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class EcallSelectorServer implements Runnable
+{
+
+	// the largest binary frame, text requests are far smaller
+	private static final int MAX_REQUEST_LENGTH = EcallFrame.HEADER_LENGTH + EcallFrame.MAX_FRAME_LENGTH;
+	private static final int ACCEPT_BACKLOG = 1024;
+	// stop reading from a General that pipelines faster than it reads
+	private static final int MAX_PENDING_OUTPUT = 64 * 1024;
+
+	private final Enclave _enclave;
+	private final int _port;
+	private final boolean _keepAlive;
+	private final EventLoop[] _loops;
+
+	public EcallSelectorServer(Enclave enclave, EnclaveOptions options) throws IOException
+	{
+		this._enclave = enclave;
+		this._port = options.getPort();
+		this._keepAlive = options.isKeepAlive();
+		this._loops = new EventLoop[options.getEventLoops()];
+		for (int i = 0; i < _loops.length; i++)
+		{
+			_loops[i] = new EventLoop();
+		}
+	}
+
+	/**
+	 * Starts the event loops and accepts connections on the calling thread
+	 */
+	public void run()
+	{
+		for (int i = 0; i < _loops.length; i++)
+		{
+			Thread loopThread = new Thread(_loops[i], "enclave-event-loop-" + i);
+			loopThread.setDaemon(true);
+			loopThread.start();
+		}
+
+		try (ServerSocketChannel listener = ServerSocketChannel.open())
+		{
+			listener.bind(new InetSocketAddress(_port), ACCEPT_BACKLOG);
+
+			int next = 0;
+			while (true)
+			{
+				SocketChannel channel = listener.accept();
+				ThreadWorker.CONNECTIONS_ACCEPTED.increment();
+				_loops[next].register(channel);
+				next = (next + 1) % _loops.length;
+			}
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A single selector thread. Connections are only ever touched by the loop
+	 * that owns them, so none of the per-connection state needs locking.
+	 */
+	private class EventLoop implements Runnable
+	{
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+		// run on the loop, e.g. when a connection's decisions are durable
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final ThreadWorker worker = new ThreadWorker(_enclave, true);
+
+		EventLoop() throws IOException
+		{
+			selector = Selector.open();
+		}
+
+		void register(SocketChannel channel)
+		{
+			pending.add(channel);
+			selector.wakeup();
+		}
+
+		void execute(Runnable task)
+		{
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		public void run()
+		{
+			while (true)
+			{
+				try
+				{
+					selector.select();
+					registerPending();
+					runTasks();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext())
+					{
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						Connection connection = (Connection) key.attachment();
+						try
+						{
+							if (key.isReadable())
+							{
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable())
+							{
+								connection.write();
+							}
+						} catch (IOException e)
+						{
+							connection.close();
+						}
+					}
+				} catch (IOException e)
+				{
+					e.printStackTrace();
+					return;
+				}
+			}
+		}
+
+		private void runTasks()
+		{
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+			{
+				task.run();
+			}
+		}
+
+		private void registerPending() throws IOException
+		{
+			SocketChannel channel;
+			while ((channel = pending.poll()) != null)
+			{
+				try
+				{
+					channel.configureBlocking(false);
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					Connection connection = new Connection(channel);
+					connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+					ThreadWorker.CONNECTIONS_ACTIVE.increment();
+				} catch (ClosedChannelException e)
+				{
+					// the General hung up before we got to it
+				}
+			}
+		}
+
+		/**
+		 * Buffered state for one General's connection
+		 */
+		private class Connection
+		{
+			private final SocketChannel channel;
+			private final int id = ThreadWorker.nextConnectionId();
+			private SelectionKey key;
+			private ByteBuffer in = ByteBuffer.allocate(512);
+			private ByteBuffer out = ByteBuffer.allocate(256);
+			private EcallFrame frame;
+			private boolean closeAfterWrite;
+			// the responses in out wait for the log to call back
+			private boolean committing;
+			private boolean closed;
+
+			Connection(SocketChannel channel)
+			{
+				this.channel = channel;
+			}
+
+			void read() throws IOException
+			{
+				if (channel.read(in) < 0)
+				{
+					// the General has stopped sending, but still gets the
+					// answers to what it sent before hanging up
+					closeAfterWrite = true;
+					if (!committing)
+					{
+						write();
+					}
+					return;
+				}
+
+				in.flip();
+				dispatchRequests();
+				in.compact();
+
+				if (!in.hasRemaining())
+				{
+					if (in.capacity() >= MAX_REQUEST_LENGTH)
+					{
+						close();
+						return;
+					}
+					ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+					in.flip();
+					larger.put(in);
+					in = larger;
+				}
+
+				CompletableFuture<Void> durable = worker.whenDurable();
+				if (!durable.isDone())
+				{
+					// neither read nor write until the commit calls back
+					committing = true;
+					key.interestOps(0);
+					durable.whenComplete((ignored, failure) -> execute(() -> committed(failure)));
+					return;
+				}
+				if (durable.isCompletedExceptionally())
+				{
+					throw new IOException("Could not log the authorization decisions");
+				}
+
+				if (out.position() > 0)
+				{
+					write();
+				}
+			}
+
+			/**
+			 * Sends the responses held back for the commit, or drops the
+			 * connection if the decisions could not be logged
+			 */
+			private void committed(Throwable failure)
+			{
+				committing = false;
+				if (closed)
+				{
+					return;
+				}
+				if (failure != null || !key.isValid())
+				{
+					close();
+					return;
+				}
+				try
+				{
+					write();
+				} catch (IOException e)
+				{
+					close();
+				}
+			}
+
+			/**
+			 * Runs every complete request in the input buffer through the
+			 * enclave
+			 */
+			private void dispatchRequests() throws IOException
+			{
+				while (!closeAfterWrite && in.hasRemaining())
+				{
+					if (in.get(in.position()) == SecureChannel.MAGIC)
+					{
+						// the event loops only speak the plaintext protocols
+						ProtocolTracer.trace(id, Message.SECURE_HELLO, 0, Outcome.FAILED);
+						throw new IOException("Secure channels need --engine=thread");
+					}
+					if (in.get(in.position()) == EcallFrame.MAGIC)
+					{
+						if (!dispatchFrame())
+						{
+							return;
+						}
+					} else if (!dispatchLine())
+					{
+						return;
+					}
+
+					// without keep-alive it is one request per connection, the
+					// same as a ThreadWorker
+					closeAfterWrite = !_keepAlive;
+				}
+			}
+
+			/**
+			 * @return false if the frame has not fully arrived yet
+			 */
+			private boolean dispatchFrame() throws IOException
+			{
+				if (frame == null)
+				{
+					frame = new EcallFrame();
+				}
+				int start = in.position();
+				if (!frame.decode(in))
+				{
+					return false;
+				}
+				ProtocolTracer.trace(id, Message.ECALL_FRAME, in.position() - start, Outcome.RECEIVED);
+
+				ensureOutput(frame.resultLength());
+				int written = out.position();
+				try
+				{
+					worker.handleFrame(frame, out);
+				} catch (IOException e)
+				{
+					ProtocolTracer.trace(id, Message.ECALL_FRAME, 0, Outcome.FAILED);
+					throw e;
+				} catch (Exception e)
+				{
+					ProtocolTracer.trace(id, Message.ECALL_FRAME, 0, Outcome.FAILED);
+					e.printStackTrace();
+					ProtocolTracer.dumpOnError("connection " + id + " failed");
+					throw new IOException(e);
+				}
+				ProtocolTracer.trace(id, Message.ECALL_FRAME, out.position() - written, Outcome.SENT);
+				return true;
+			}
+
+			/**
+			 * @return false if the line has not fully arrived yet
+			 */
+			private boolean dispatchLine() throws IOException
+			{
+				int start = in.position();
+				int end = -1;
+				for (int i = start; i < in.limit(); i++)
+				{
+					if (in.get(i) == '\n')
+					{
+						end = i;
+						break;
+					}
+				}
+				if (end < 0)
+				{
+					return false;
+				}
+
+				int length = end - start;
+				if (length > 0 && in.get(end - 1) == '\r')
+				{
+					length--;
+				}
+				String message = new String(in.array(), in.arrayOffset() + start, length,
+						StandardCharsets.US_ASCII);
+				in.position(end + 1);
+				ProtocolTracer.trace(id, Message.ECALL, end + 1 - start, Outcome.RECEIVED);
+
+				String result;
+				try
+				{
+					result = worker.handleRequest(message);
+				} catch (Exception e)
+				{
+					ProtocolTracer.trace(id, Message.ECALL, 0, Outcome.FAILED);
+					e.printStackTrace();
+					ProtocolTracer.dumpOnError("connection " + id + " failed");
+					throw new IOException(e);
+				}
+				byte[] bytes = (result + "\n").getBytes(StandardCharsets.US_ASCII);
+				ensureOutput(bytes.length);
+				out.put(bytes);
+				ProtocolTracer.trace(id, Message.ECALL, bytes.length, Outcome.SENT);
+				return true;
+			}
+
+			private void ensureOutput(int length)
+			{
+				if (out.remaining() < length)
+				{
+					ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + length));
+					out.flip();
+					larger.put(out);
+					out = larger;
+				}
+			}
+
+			void write() throws IOException
+			{
+				if (committing)
+				{
+					// committed writes once the responses are durable
+					return;
+				}
+				out.flip();
+				channel.write(out);
+				out.compact();
+
+				// stop reading while too much is pending, or once nothing
+				// more will be answered
+				if (out.position() >= MAX_PENDING_OUTPUT || out.position() > 0 && closeAfterWrite)
+				{
+					key.interestOps(SelectionKey.OP_WRITE);
+				} else if (out.position() > 0)
+				{
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				} else if (closeAfterWrite)
+				{
+					close();
+				} else
+				{
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			}
+
+			void close()
+			{
+				if (closed)
+				{
+					return;
+				}
+				closed = true;
+				ThreadWorker.CONNECTIONS_ACTIVE.decrement();
+				if (key != null)
+				{
+					key.cancel();
+				}
+				try
+				{
+					channel.close();
+				} catch (IOException e)
+				{
+					// nothing left to do for this General
+				}
+			}
+		}
+	}
+}
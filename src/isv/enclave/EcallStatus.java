@@ -0,0 +1,57 @@
+package isv.enclave;
+
+/**
+ * The statuses authAndLaunch reports back to the environment code. The text
+ * protocol sends the message, the binary protocol sends the one byte code.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public enum EcallStatus
+{
+	PENDING_AUTHORIZATION("PENDING_AUTHORIZATION"),
+	LAUNCHED("BOOOOOOOOM!"),
+	INVALID_GENERAL("INVALID_GENERAL"),
+	GENERAL_ALREADY_AUTHORIZED_ACTION("GENERAL_ALREADY_AUTHORIZED_ACTION"),
+	INTERRUPT("INTERRUPT");
+
+	private static final EcallStatus[] BY_CODE = values();
+
+	private final String message;
+
+	private EcallStatus(String message)
+	{
+		this.message = message;
+	}
+
+	/**
+	 * @return the status as it is sent over the text protocol
+	 */
+	public String message()
+	{
+		return message;
+	}
+
+	/**
+	 * @return the status as it is sent over the binary protocol
+	 */
+	public byte code()
+	{
+		return (byte) ordinal();
+	}
+
+	/**
+	 * @param code
+	 *            a status code read from a binary frame
+	 * @return the matching status
+	 * @throws IllegalArgumentException
+	 *             if the code is unknown
+	 */
+	public static EcallStatus fromCode(byte code)
+	{
+		if (code < 0 || code >= BY_CODE.length)
+		{
+			throw new IllegalArgumentException("Unknown ecall status " + code);
+		}
+		return BY_CODE[code];
+	}
+}
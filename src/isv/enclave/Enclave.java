@@ -1,31 +1,38 @@
 package isv.enclave;
 
 import isv.client.General;
-
+import isv.metrics.MetricsHttpServer;
+import isv.metrics.MetricsRegistry;
+import isv.metrics.ProtocolTracer;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.ByteBuffer;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.KeyFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.PKCS8EncodedKeySpec;
-import java.util.HashSet;
-
-import javax.crypto.KeyAgreement;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.stream.IntStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
-import javax.crypto.spec.DHPublicKeySpec;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Software simulation of an SGX enclave that exposes a subset of the SGX
@@ -40,9 +47,13 @@ import javax.crypto.spec.DHPublicKeySpec;
 public class Enclave {
 
 	// fields used for the enclave attack simulation
-	private boolean createInterrupt;
-	private int authCount;
-	private HashSet<General> generalInfo;
+	private volatile boolean createInterrupt;
+	private volatile int authCount;
+	private Roster roster;
+	private AuthorizationStateMachine authorization = new VulnerableAuthorization();
+
+	private static final AtomicIntegerFieldUpdater<Enclave> AUTH_COUNT = AtomicIntegerFieldUpdater
+			.newUpdater(Enclave.class, "authCount");
 
 	/*
 	 * These are hardware keys in a real enclave these would have been generated
@@ -51,14 +62,21 @@ public class Enclave {
 	 */
 	private static byte[] sealing_key = new byte[16];
 	private static byte[] provisioning_key = new byte[16];
+	// derived from the sealing key when first needed
+	private static SecretKeySpec sealKey;
+	private static SecretKeySpec streamKey;
+
+	private static final String SEAL_CIPHER = "AES/GCM/NoPadding";
+	private static final int SEAL_NONCE_LENGTH = 12;
+	private static final int SEAL_TAG_BITS = 128;
+	private static final SecureRandom SEAL_RANDOM = new SecureRandom();
 
 	private int eid;
 	private String FileName;
 	private PublicKey spPublicKey;
-	private KeyPair dhKeyPair;
-	private KeyAgreement dhKeyAgree;
-	// Hold the p and g values for the DHKE
-	private DHParameterSpec paramSpec;
+	// the key exchange negotiated in msg0 and the enclave's half of it
+	private KeyExchange keyExchange;
+	private KeyPair kexKeyPair;
 	// final shared DH key
 	byte[] sharedKeyBytes;
 
@@ -71,6 +89,105 @@ public class Enclave {
 		sr.nextBytes(sealing_key);
 	}
 
+	/**
+	 * Reads the fuse keys from a file, or writes the ones generated at startup
+	 * to it if there is none, so that data sealed by one run of the enclave can
+	 * be unsealed by the next. A real enclave's fuse keys never change.
+	 * 
+	 * @param file
+	 *            where the fuse keys are kept, readable only by their owner
+	 * @throws IOException
+	 */
+	static synchronized void useFuseKeys(File file) throws IOException {
+		if (file.isFile()) {
+			try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+				in.readFully(provisioning_key);
+				in.readFully(sealing_key);
+			}
+			sealKey = null;
+			streamKey = null;
+			return;
+		}
+
+		File absolute = file.getAbsoluteFile();
+		File temp = File.createTempFile(absolute.getName(), ".tmp", absolute.getParentFile());
+		temp.setReadable(false, false);
+		temp.setReadable(true, true);
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			out.write(provisioning_key);
+			out.write(sealing_key);
+		}
+		Files.move(temp.toPath(), absolute.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static synchronized SecretKeySpec sealKey() throws GeneralSecurityException {
+		if (sealKey == null) {
+			// the sealing key itself never encrypts anything, like EGETKEY
+			// deriving a seal key from the fuses
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(sealing_key, "HmacSHA256"));
+			sealKey = new SecretKeySpec(mac.doFinal("isv seal key".getBytes(StandardCharsets.UTF_8)), 0, 16, "AES");
+		}
+		return sealKey;
+	}
+
+	/**
+	 * @return the key SealedStream derives each stream's key from
+	 */
+	static synchronized SecretKeySpec streamKey() throws GeneralSecurityException {
+		if (streamKey == null) {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(sealing_key, "HmacSHA256"));
+			streamKey = new SecretKeySpec(mac.doFinal("isv stream key".getBytes(StandardCharsets.UTF_8)), "HmacSHA256");
+		}
+		return streamKey;
+	}
+
+	/**
+	 * Encrypts and authenticates data so only this platform can read it back
+	 * 
+	 * @param aad
+	 *            data that is authenticated along with the sealed data but
+	 *            not stored in it
+	 * @param plain
+	 *            the data to seal
+	 * @return the nonce followed by the ciphertext and tag
+	 * @throws GeneralSecurityException
+	 */
+	static byte[] sgx_seal_data(byte[] aad, byte[] plain) throws GeneralSecurityException {
+		byte[] sealed = new byte[SEAL_NONCE_LENGTH + plain.length + SEAL_TAG_BITS / 8];
+		byte[] nonce = new byte[SEAL_NONCE_LENGTH];
+		SEAL_RANDOM.nextBytes(nonce);
+		System.arraycopy(nonce, 0, sealed, 0, SEAL_NONCE_LENGTH);
+
+		Cipher cipher = Cipher.getInstance(SEAL_CIPHER);
+		cipher.init(Cipher.ENCRYPT_MODE, sealKey(), new GCMParameterSpec(SEAL_TAG_BITS, nonce));
+		cipher.updateAAD(aad);
+		cipher.doFinal(plain, 0, plain.length, sealed, SEAL_NONCE_LENGTH);
+		return sealed;
+	}
+
+	/**
+	 * @param aad
+	 *            the data authenticated when sealing
+	 * @param sealed
+	 *            what sgx_seal_data returned
+	 * @return the data that was sealed
+	 * @throws GeneralSecurityException
+	 *             if the data was not sealed on this platform with the same
+	 *             aad, or was changed since
+	 */
+	static byte[] sgx_unseal_data(byte[] aad, byte[] sealed) throws GeneralSecurityException {
+		if (sealed.length < SEAL_NONCE_LENGTH + SEAL_TAG_BITS / 8) {
+			throw new GeneralSecurityException("Sealed data is too short");
+		}
+		Cipher cipher = Cipher.getInstance(SEAL_CIPHER);
+		cipher.init(Cipher.DECRYPT_MODE, sealKey(),
+				new GCMParameterSpec(SEAL_TAG_BITS, sealed, 0, SEAL_NONCE_LENGTH));
+		cipher.updateAAD(aad);
+		return cipher.doFinal(sealed, SEAL_NONCE_LENGTH, sealed.length - SEAL_NONCE_LENGTH);
+	}
+
 	/**
 	 * Creates a new instance of an enclave simulator that exposes a subset of the
 	 * SGX instruction set used for remote attestation. This is equivalent to
@@ -88,35 +205,103 @@ public class Enclave {
 
 	protected Enclave() {
 		setAuthCount(0);
-		setGeneralInfo(new HashSet<>());
+		setRoster(new Roster());
 		setCreateInterrupt(false);
 	};
 
-	protected static void main(String args[]) {
-		enclaveAttackSimulation();
+	public static void main(String args[]) {
+		enclaveAttackSimulation(EnclaveOptions.parse(args));
 	}
 
 	/**
 	 * Reads in the request from the environment code and calls
 	 */
 	protected static void enclaveAttackSimulation() {
+		enclaveAttackSimulation(new EnclaveOptions());
+	}
+
+	/**
+	 * Reads in the request from the environment code and calls, using the front
+	 * end chosen in the startup options
+	 */
+	protected static void enclaveAttackSimulation(EnclaveOptions options) {
 		System.out.println("Enclave listening...");
 
 		Enclave enclave = new Enclave();
-		General g1 = new General("general1", 12345L);
-		General g2 = new General("general2", 56789L);
+		if (options.getMode() == EnclaveOptions.Mode.HARDENED) {
+			enclave.setAuthorization(new HardenedAuthorization());
+		}
+		if (options.isInterrupt()) {
+			enclave.setCreateInterrupt(true);
+		}
+		// a restored enclave already has its roster, authorization count and
+		// flags
+		// an unreadable snapshot stops the enclave rather than overwriting it
+		if (options.getSnapshot() != null && !restoreSnapshot(enclave, options)) {
+			return;
+		}
+
+		if (enclave.getRoster().get(1) == null) {
+			enclave.addGeneralToAuth(new General(1, "general1", 12345L));
+		}
+		if (enclave.getRoster().get(2) == null) {
+			enclave.addGeneralToAuth(new General(2, "general2", 56789L));
+		}
+
+		// any further Generals, e.g. for the load generator
+		IntStream.rangeClosed(3, options.getGenerals()).filter(id -> enclave.getRoster().get(id) == null)
+				.parallel().mapToObj(General::rosterGeneral).forEach(enclave::addGeneralToAuth);
+
+		// replay the decisions made since, then log every new one
+		if (options.getWal() != null) {
+			try {
+				AuthorizationLog log = new AuthorizationLog(new File(options.getWal()), options.getWalBatchWindow());
+				long events = log.replay(enclave);
+				System.out.println("Replayed " + events + " authorization events, the authorization count is "
+						+ enclave.getAuthCount());
+				enclave.setAuthorization(new LoggedAuthorization(enclave.getAuthorization(), log));
+				Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+					try {
+						log.close();
+					} catch (IOException e) {
+						System.out.println(e.getMessage());
+					}
+				}, "authorization-log-exit"));
+			} catch (IOException e) {
+				System.out.println("Could not open the authorization log: " + e.getMessage());
+				return;
+			}
+		}
+
+		exportMetrics(options);
 
-		enclave.addGeneralToAuth(g1);
-		enclave.addGeneralToAuth(g2);
+		if (options.getEngine() == EnclaveOptions.Engine.SELECTOR) {
+			try {
+				new EcallSelectorServer(enclave, options).run();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+
+		// Generals check the quotes of their secure channels against it
+		try {
+			QuoteSigner.getDefault().exportPublicKey(new File(options.getAttestationKey()));
+		} catch (Exception e) {
+			System.out.println("Could not publish the attestation key: " + e.getMessage());
+		}
 
+		Executor workers = WorkerExecutors.create(options.getExecutor(), options.getPoolSize(), "thread-worker");
 		ServerSocket listener = null;
 
 		try {
-			listener = new ServerSocket(9090);
+			listener = new ServerSocket(options.getPort());
 			while (true) {
 				Socket socket = listener.accept();
+				ThreadWorker.CONNECTIONS_ACCEPTED.increment();
 
-				new Thread(new ThreadWorker(socket, enclave)).start();
+				workers.execute(
+						new ThreadWorker(socket, enclave, options.isKeepAlive(), options.isSecureChannel()));
 
 			}
 
@@ -126,8 +311,100 @@ public class Enclave {
 
 	}
 
+	/**
+	 * Makes the metrics readable and the protocol trace dumpable over JMX, and
+	 * the metrics readable over HTTP if a metrics port was given
+	 */
+	private static void exportMetrics(EnclaveOptions options) {
+		try {
+			MetricsRegistry.getDefault().registerMBean();
+			ProtocolTracer.registerMBean();
+			if (options.getMetricsPort() > 0) {
+				new MetricsHttpServer(MetricsRegistry.getDefault(), options.getMetricsPort());
+				System.out.println("Serving metrics on port " + options.getMetricsPort() + MetricsHttpServer.PATH);
+			}
+		} catch (Exception e) {
+			System.out.println("Could not export metrics: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Restores the enclave from its sealed snapshot, if there is one, and
+	 * saves it again every snapshot interval and when the JVM exits
+	 *
+	 * @return false if the snapshot could not be restored, in which case
+	 *         nothing is scheduled and the file is left as it is
+	 */
+	private static boolean restoreSnapshot(Enclave enclave, EnclaveOptions options) {
+		SealedSnapshot snapshot = new SealedSnapshot(new File(options.getSnapshot()));
+		try {
+			useFuseKeys(new File(options.getFuseKeys()));
+			long start = System.nanoTime();
+			if (snapshot.restore(enclave)) {
+				System.out.println("Restored " + enclave.getRoster().size() + " Generals and an authorization count of "
+						+ enclave.getAuthCount() + " in " + (System.nanoTime() - start) / 1000 + " us");
+			}
+		} catch (Exception e) {
+			System.out.println("Could not restore the enclave snapshot: " + e.getMessage());
+			return false;
+		}
+
+		Runnable save = () -> {
+			try {
+				snapshot.save(enclave);
+			} catch (Exception e) {
+				System.out.println("Could not save the enclave snapshot: " + e.getMessage());
+			}
+		};
+		ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "enclave-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		saver.scheduleWithFixedDelay(save, options.getSnapshotInterval(), options.getSnapshotInterval(),
+				TimeUnit.MILLISECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			saver.shutdown();
+			save.run();
+		}, "enclave-snapshot-exit"));
+		return true;
+	}
+
+	/**
+	 * @return the enclave id given when the enclave was created
+	 */
+	protected int getEid() {
+		return eid;
+	}
+
+	/**
+	 * Wipes the enclave so an EnclavePool can hand it out again under a new
+	 * id, as if it had just been created
+	 * 
+	 * @param enclaveID
+	 *            the id of the enclave it becomes
+	 */
+	void recycle(int enclaveID) {
+		eid = enclaveID;
+		authCount = 0;
+		createInterrupt = false;
+		roster = new Roster();
+		authorization = new VulnerableAuthorization();
+		spPublicKey = null;
+		keyExchange = null;
+		kexKeyPair = null;
+		sharedKeyBytes = null;
+	}
+
+	/**
+	 * @return the shared key of the last remote attestation, or null
+	 */
+	byte[] getSharedKey() {
+		return sharedKeyBytes;
+	}
+
 	protected void addGeneralToAuth(General g) {
-		this.generalInfo.add(g);
+		this.roster.add(g);
 
 	}
 
@@ -139,6 +416,15 @@ public class Enclave {
 		this.authCount = authCount;
 	}
 
+	/**
+	 * Atomically counts one more authorization, for the hardened state machine
+	 * 
+	 * @return the new count
+	 */
+	protected int incrementAuthCount() {
+		return AUTH_COUNT.incrementAndGet(this);
+	}
+
 	protected boolean createInterrupt() {
 		return createInterrupt;
 	}
@@ -147,12 +433,20 @@ public class Enclave {
 		this.createInterrupt = createInterrupt;
 	}
 
-	protected HashSet<General> getGeneralInfo() {
-		return generalInfo;
+	protected AuthorizationStateMachine getAuthorization() {
+		return authorization;
 	}
 
-	protected void setGeneralInfo(HashSet<General> generalInfo) {
-		this.generalInfo = generalInfo;
+	protected void setAuthorization(AuthorizationStateMachine authorization) {
+		this.authorization = authorization;
+	}
+
+	protected Roster getRoster() {
+		return roster;
+	}
+
+	protected void setRoster(Roster roster) {
+		this.roster = roster;
 	}
 
 	/*
@@ -170,30 +464,35 @@ public class Enclave {
 
 	/**
 	 * Initializes the enclave for remote attestation. Stores the service provider's
-	 * public key, and initializes a Diffie Hellman key exchange
+	 * public key, and starts the key exchange negotiated in msg0
 	 * 
 	 * @param spPubKey
 	 *            The service provider's public key
+	 * @param keyExchange
+	 *            The key exchange the service provider chose
 	 */
-	protected void sgx_ra_init(PublicKey spPubKey, DHParameterSpec paramSpec) {
+	protected void sgx_ra_init(PublicKey spPubKey, KeyExchange keyExchange) {
 		try {
-			this.paramSpec = paramSpec;
+			this.keyExchange = keyExchange;
 			spPublicKey = spPubKey;
-			KeyPairGenerator kpg = KeyPairGenerator.getInstance("DiffieHellman");
-			kpg.initialize(paramSpec);
-			dhKeyPair = kpg.generateKeyPair();
-			dhKeyAgree = KeyAgreement.getInstance("DiffieHellman");
-			dhKeyAgree.init(dhKeyPair.getPrivate());
-
-		} catch (NoSuchAlgorithmException e) {
-			System.out.println(e.getMessage());
-		} catch (InvalidAlgorithmParameterException e) {
-			System.out.println(e.getMessage());
-		} catch (InvalidKeyException e) {
+			// ephemeral key pairs are generated ahead of time by the pool
+			kexKeyPair = keyExchange.generateKeyPair();
+		} catch (GeneralSecurityException e) {
 			System.out.println(e.getMessage());
 		}
 	}
 
+	/**
+	 * Replaces the service provider's public key given to sgx_ra_init, for
+	 * when the key only arrives with the answer to msg0
+	 * 
+	 * @param spPubKey
+	 *            The service provider's public key
+	 */
+	protected void sgx_ra_set_sp_key(PublicKey spPubKey) {
+		spPublicKey = spPubKey;
+	}
+
 	/**
 	 * retrieves the extended group ID, which indicates the attestation service
 	 * provider 0 indicates Intel's attestation service, != 0 indicates a third
@@ -208,11 +507,11 @@ public class Enclave {
 	}
 
 	/**
-	 * @return a DH value from the enclave
+	 * @return the enclave's X.509 encoded key exchange value
 	 * 
 	 */
 	protected byte[] sgx_ra_get_msg1() {
-		return dhKeyPair.getPublic().getEncoded();
+		return kexKeyPair.getPublic().getEncoded();
 	}
 
 	/**
@@ -221,41 +520,48 @@ public class Enclave {
 	 * contains a quote from the enclave signed with the platform's EPID key. Only
 	 * Intel Attestation Services can verify this signature Because this is a
 	 * simulation, and we don't have EPID keys, this signing step is omitted
+	 * 
+	 * @param spKey
+	 *            the service provider's X.509 encoded key exchange value
+	 * @param signature
+	 *            the service provider's signature over msg2
+	 * @throws SignatureException
+	 *             if the service provider didn't sign msg2
 	 */
-	protected byte[] sgx_ra_proc_msg2(String m2) {
-
-		// verify the service provider signature
-		// Not implemented currently
+	protected byte[] sgx_ra_proc_msg2(byte[] spKey, byte[] signature) throws SignatureException {
 
-		String[] parts = m2.split(" ");
+		// verify the service provider signature over both key exchange values
+		try {
+			if (!ServiceProviderKeys.verifyMsg2(spPublicKey, spKey, sgx_ra_get_msg1(), signature)) {
+				throw new SignatureException("Service provider signature on msg2 did not verify");
+			}
+		} catch (SignatureException e) {
+			throw e;
+		} catch (GeneralSecurityException e) {
+			throw new SignatureException(e);
+		}
 
-		// calculate the DH shared key
-		sharedKeyBytes = computeSharedKey(parts[0].getBytes());
+		// calculate the shared key from the server's X.509 encoded key exchange value
+		sharedKeyBytes = computeSharedKey(spKey);
 
 		// Check the SigRl (Omitted)
 
 		return GetQuote();
 	}
 
-	// This code is from
-	// https://stackoverflow.com/questions/21081713/diffie-hellman-key-exchange-in-java
-	// It was the best explanation of how to use the java libraries for DH
-	// and so in the interest of saving time to focus on the enclave implementation
-	// details we chose to use this
-	public byte[] computeSharedKey(byte[] pubKeyBytes) {
-		if (dhKeyAgree == null) {
-			System.out.println("Key Agreement is Null");
+	/**
+	 * @param peerPublicKey
+	 *            the service provider's X.509 encoded key exchange value
+	 * @return the shared key, or null if the exchange failed
+	 */
+	public byte[] computeSharedKey(byte[] peerPublicKey) {
+		if (kexKeyPair == null) {
+			System.out.println("Key exchange is not initialized");
 			return null;
 		}
 
 		try {
-			KeyFactory keyFactory = KeyFactory.getInstance("DiffieHellman");
-			BigInteger pubKeyBI = new BigInteger(1, pubKeyBytes);
-			PublicKey pubKey = keyFactory
-					.generatePublic(new DHPublicKeySpec(pubKeyBI, paramSpec.getP(), paramSpec.getG()));
-			dhKeyAgree.doPhase(pubKey, true);
-			byte[] sharedKeyBytes = dhKeyAgree.generateSecret();
-			return sharedKeyBytes;
+			return keyExchange.agree(kexKeyPair.getPrivate(), keyExchange.decodePublicKey(peerPublicKey));
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
 			return null;
@@ -267,26 +573,33 @@ public class Enclave {
 	 * Quote So we chose to implement this as just having some metadata from the
 	 * enclave collected and packaged up This quote would be signed by an EPID,
 	 * which is a hardware specific key that only the Intel attestation service can
-	 * decrypt, but due to limitations in hardware we're using the shared DH key to encrypt this instead
+	 * decrypt, but due to limitations in hardware we sign it with a simulated
+	 * platform attestation key instead, see QuoteSigner
 	 * 
 	 * @return The enclave quote
 	 */
-	private byte[] GetQuote() {
+	byte[] GetQuote() {
 
 		try {
-			ByteBuffer b = ByteBuffer.allocate(4);
-			b.putInt(eid);
-
-			byte[] data = b.array();
+			// the signer is set up once per attestation key and caches quotes
+			return QuoteSigner.getDefault().quote(eid);
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+		}
+		return null;
 
-			PrivateKey privateKey = KeyFactory.getInstance("RSA")
-					.generatePrivate(new PKCS8EncodedKeySpec(sharedKeyBytes));
-			Signature sig = Signature.getInstance("SHA1WithRSA");
+	}
 
-			sig.initSign(privateKey);
-			sig.update(data);
+	/**
+	 * @param reportData
+	 *            what the quote vouches for, e.g. the hash of a handshake
+	 * @return a quote of this enclave carrying the report data, signed afresh,
+	 *         or null if it could not be signed
+	 */
+	byte[] GetQuote(byte[] reportData) {
 
-			return sig.sign();
+		try {
+			return QuoteSigner.getDefault().quote(eid, reportData);
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
 		}
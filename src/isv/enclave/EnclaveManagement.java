@@ -1,14 +1,15 @@
 package isv.enclave;
 
-import java.math.BigInteger;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.PrivateKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.PublicKey;
 import java.security.SecureRandom;
-
-import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
+import java.security.SignatureException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class is a wrapper for the enclave, to make the calls easier for the
@@ -19,39 +20,103 @@ import javax.crypto.spec.DHParameterSpec;
 public class EnclaveManagement
 {
 
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	static
+	{
+		// finite field key pairs take milliseconds to generate, so have some
+		// ready by the time the first enclave attests
+		try
+		{
+			KeyPairPool.getDefault().prefill("DiffieHellman", FfdheKeyExchange.FFDHE2048);
+		} catch (GeneralSecurityException e)
+		{
+			System.out.println(e.getMessage());
+		}
+	}
+
+	private final EnclavePool pool;
+	// 0 while no enclave exists
+	private int eid;
 	private Enclave enclave;
-	private DHParameterSpec dhParamSpec;
+	// the key exchanges offered to the server, most preferred first
+	private List<KeyExchange> keyExchanges;
+	// the service provider key named in msg0, from the cache
+	private String spFingerprint;
+	private PublicKey spPubKey;
+	// the key exchange the enclave was initialized with, and whether the
+	// server took message 1 early
+	private KeyExchange initialized;
+	private boolean earlyAccepted;
+	// from the last full attestation, to resume with next time
+	private ResumptionTicket ticket;
+	private byte[] resumeNonce;
 
 	public EnclaveManagement()
 	{
-		enclave = new Enclave("testfile.txt", -1);
-		dhParamSpec = new DHParameterSpec(new BigInteger("47"), new BigInteger("71"));
+		this(KeyExchange.available());
+	}
+
+	/**
+	 * @param keyExchanges
+	 *            the key exchanges to offer the server in msg0
+	 */
+	public EnclaveManagement(List<KeyExchange> keyExchanges)
+	{
+		this(keyExchanges, EnclavePool.getDefault());
+	}
+
+	/**
+	 * @param keyExchanges
+	 *            the key exchanges to offer the server in msg0
+	 * @param pool
+	 *            the pool the managed enclave is created in
+	 */
+	public EnclaveManagement(List<KeyExchange> keyExchanges, EnclavePool pool)
+	{
+		this.keyExchanges = keyExchanges;
+		this.pool = pool;
+		CreateEnclave();
 	}
 
 	/**
-	 * Create message 0 to respond to the Service Provider's challenge
+	 * Create message 0 to respond to the Service Provider's challenge, the
+	 * extended group id followed by the key exchanges the enclave offers and
+	 * the fingerprint of the service provider key the enclave already holds,
+	 * if any, e.g. "0 x25519,ffdhe2048 sp=[fingerprint]"
 	 * 
 	 * @return String comprising message 0 of the remote attestation protocol
 	 * @throws IllegalStateException
 	 *             Unrecognized RA provider
 	 * @throws Exception
 	 */
-	public String getMessage0(PublicKey spPubKey) throws Exception
+	public String getMessage0() throws Exception
 	{
-		// Create the PSE session, which is an architectural enclave provided by
-		// the SDK
-		enclave.sgx_create_pse_session();
-		
-		// Initialize the enclave for remote attestation
-		//Requires the service provider's public key, and the p & q values for DH
-		enclave.sgx_ra_init(spPubKey, dhParamSpec);
-		
-		// Close the PSE session safely
-		enclave.sgx_close_pse_session();
+		return getMessage0(false);
+	}
+
+	/**
+	 * Create message 0, optionally to be sent in one flight with message 1.
+	 * Message 1 then has to be computed before the server has picked a key
+	 * exchange, so it uses the enclave's preferred one and message 0 says so,
+	 * e.g. "0 x25519,ffdhe2048 early=x25519".
+	 * 
+	 * @param early
+	 *            message 1 is sent straight after message 0
+	 * @return String comprising message 0 of the remote attestation protocol
+	 * @throws IllegalStateException
+	 *             Unrecognized RA provider
+	 * @throws Exception
+	 */
+	public String getMessage0(boolean early) throws Exception
+	{
+		spFingerprint = ServiceProviderKeys.current();
+		spPubKey = ServiceProviderKeys.get(spFingerprint);
+		initialized = null;
 
 		// get the extended group id, which specifies the remote attestation
 		// provider
-		int extGID = enclave.sgx_get_extended_epid_group_id();
+		int extGID = attest(Enclave::sgx_get_extended_epid_group_id);
 
 		// 0 indicates that Intel is our remote attestation service provider
 		//If there is another value, our application doesn't know how to attest it
@@ -59,41 +124,182 @@ public class EnclaveManagement
 		{
 			throw new IllegalStateException("Unrecognized remote attestation provider");
 		}
-		
-		return Integer.toString(extGID);
+
+		StringBuilder offer = new StringBuilder();
+		for (KeyExchange keyExchange : keyExchanges)
+		{
+			offer.append(offer.length() == 0 ? "" : ",").append(keyExchange.getName());
+		}
+		String m0 = extGID + " " + offer;
+		if (early)
+		{
+			init(keyExchanges.get(0));
+			m0 += " early=" + initialized.getName();
+		}
+		if (spFingerprint != null)
+		{
+			m0 += " sp=" + spFingerprint;
+		}
+		return m0;
 	}
 	
 	/**
-	 * Verifies that the server will continue remote attestation
+	 * Verifies that the server will continue remote attestation, and
+	 * initializes the enclave with the key exchange the server chose,
+	 * "Continue x25519" for example. The server adds "early" if it took the
+	 * message 1 sent with message 0 and is sending message 2 straight away.
 	 * @param response The response from the server
 	 * @return If attestation can continue
 	 */
 	public Boolean verifyMessage0Response(String response)
 	{
-		return response.equals("Continue");
+		earlyAccepted = false;
+		String[] parts = response == null ? new String[0] : response.split(" ");
+		if (parts.length < 2 || !parts[0].equals("Continue"))
+		{
+			return false;
+		}
+		KeyExchange chosen = KeyExchange.negotiate(keyExchanges, Collections.singleton(parts[1]));
+		if (chosen == null)
+		{
+			return false;
+		}
+
+		boolean early = parts.length > 2 && parts[2].equals("early");
+		if (initialized != null && initialized.getName().equals(chosen.getName()))
+		{
+			// message 1 already went out with this exchange
+			earlyAccepted = early;
+			return true;
+		}
+		if (early)
+		{
+			// the server can't have taken a message 1 we never sent
+			return false;
+		}
+		init(chosen);
+		return true;
+	}
+
+	/**
+	 * Takes the service provider key sent with the answer to message 0
+	 * 
+	 * @param encodedKey
+	 *            the X.509 encoded key, or nothing if the server has the key
+	 *            named in message 0
+	 * @throws GeneralSecurityException
+	 *             if there is no key to verify message 2 with
+	 */
+	public void receiveServiceProviderKey(byte[] encodedKey) throws GeneralSecurityException
+	{
+		if (encodedKey.length > 0)
+		{
+			spPubKey = ServiceProviderKeys.add(encodedKey);
+			spFingerprint = ServiceProviderKeys.fingerprint(encodedKey);
+		} else if (spPubKey == null)
+		{
+			throw new GeneralSecurityException("Server sent no service provider key");
+		}
+		PublicKey key = spPubKey;
+		attest(enclave -> {
+			enclave.sgx_ra_set_sp_key(key);
+			return null;
+		});
+	}
+
+	/**
+	 * @return true if the server took the message 1 sent with message 0, so
+	 *         message 2 follows without sending message 1 again
+	 */
+	public boolean isEarlyAccepted()
+	{
+		return earlyAccepted;
+	}
+
+	private void init(KeyExchange keyExchange)
+	{
+		PublicKey key = spPubKey;
+		attest(enclave -> {
+			// Create the PSE session, which is an architectural enclave
+			// provided by the SDK
+			enclave.sgx_create_pse_session();
+
+			// Initialize the enclave for remote attestation
+			//Requires the service provider's public key, and the key exchange it chose
+			enclave.sgx_ra_init(key, keyExchange);
+
+			// Close the PSE session safely
+			enclave.sgx_close_pse_session();
+			return null;
+		});
+		initialized = keyExchange;
+	}
+
+	/**
+	 * Runs a step of remote attestation in the managed enclave, on the
+	 * enclave's shard like every other ecall, so attestation never changes the
+	 * enclave while a routed ecall runs in it
+	 * 
+	 * @param step
+	 *            what to run in the enclave
+	 * @return the step's result
+	 * @throws IllegalStateException
+	 *             if the step failed with a checked exception
+	 */
+	private <T> T attest(EnclavePool.Ecall<T> step)
+	{
+		try
+		{
+			return pool.call(eid, step);
+		} catch (RuntimeException e)
+		{
+			throw e;
+		} catch (Exception e)
+		{
+			if (e instanceof InterruptedException)
+			{
+				Thread.currentThread().interrupt();
+			}
+			throw new IllegalStateException(e);
+		}
 	}
 	
 	/**
-	 * Retrieves message 1, which is the DH value from the enclave.
+	 * Retrieves message 1, which is the key exchange value from the enclave.
 	 * In a real ISV situation this would include more enclave calls with pointers to
 	 * relevant stub functions, but for the purposes of this simulation they are omitted
 	 * @return Message 1
 	 */
 	public byte[] getMessage1()
 	{
-		return enclave.sgx_ra_get_msg1();
+		return attest(Enclave::sgx_ra_get_msg1);
 	}
 	
 	/**
 	 * Verifies the service provider's signature
 	 * Calculates the DH shared key
 	 * A real ISV would check the SigRL, but this step is omitted
-	 * @param m2 Message 2
+	 * @param spKey The service provider's key exchange value from message 2
+	 * @param signature The service provider's signature from message 2
 	 * @return Message 3, the response to Message 2
+	 * @throws SignatureException if the service provider didn't sign message 2
 	 */
-	public byte[] processMessage2(String m2)
+	public byte[] processMessage2(byte[] spKey, byte[] signature) throws SignatureException
 	{
-		return enclave.sgx_ra_proc_msg2(m2);
+		try
+		{
+			return pool.call(eid, enclave -> enclave.sgx_ra_proc_msg2(spKey, signature));
+		} catch (SignatureException | RuntimeException e)
+		{
+			throw e;
+		} catch (Exception e)
+		{
+			if (e instanceof InterruptedException)
+			{
+				Thread.currentThread().interrupt();
+			}
+			throw new SignatureException(e);
+		}
 	}
 	
 	/**
@@ -103,7 +309,87 @@ public class EnclaveManagement
 	 */
 	public Boolean verifyMessage4(String m4)
 	{
-		return m4.equals("raTrustAll") || m4.equals("raTrustEnclaveOnly");
+		// the status may be followed by a resumption ticket and its lifetime
+		// in seconds
+		String[] parts = m4 == null ? new String[] { "" } : m4.split(" ");
+		boolean trusted = isTrusted(parts[0]);
+		if (trusted && parts.length == 3)
+		{
+			try
+			{
+				ticket = new ResumptionTicket(eid, Base64.getDecoder().decode(parts[1]),
+						ResumptionTicket.resumptionSecret(attest(Enclave::getSharedKey)),
+						System.currentTimeMillis() + Long.parseLong(parts[2]) * 1000);
+			} catch (Exception e)
+			{
+				System.out.println("Ignoring resumption ticket: " + e.getMessage());
+			}
+		}
+		return trusted;
+	}
+
+	private static boolean isTrusted(String status)
+	{
+		return status.equals("raTrustAll") || status.equals("raTrustEnclaveOnly");
+	}
+
+	/**
+	 * Message 0 presenting the ticket from the last attestation, so the
+	 * server can answer with a verdict straight away
+	 * 
+	 * @return the resume message, or null if there is no ticket worth
+	 *         presenting
+	 */
+	public String getResumeMessage()
+	{
+		if (ticket == null || !ticket.isValid())
+		{
+			return null;
+		}
+		try
+		{
+			resumeNonce = new byte[16];
+			RANDOM.nextBytes(resumeNonce);
+			return ticket.resumeMessage(resumeNonce);
+		} catch (GeneralSecurityException e)
+		{
+			System.out.println(e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Verifies the server's answer to a resume message. A rejected ticket is
+	 * dropped, so the next attestation is a full one.
+	 * 
+	 * @param response
+	 *            The response from the server
+	 * @return If the enclave is verified
+	 */
+	public Boolean verifyResumeResponse(String response)
+	{
+		String verdict = null;
+		try
+		{
+			verdict = ticket.verifyResponse(resumeNonce, response);
+		} catch (Exception e)
+		{
+			System.out.println(e.getMessage());
+		}
+		if (verdict == null)
+		{
+			ticket = null;
+			return false;
+		}
+		return isTrusted(verdict);
+	}
+
+	/**
+	 * @return the id of the managed enclave
+	 */
+	public int getEnclaveId()
+	{
+		return eid;
 	}
 
 	/**
@@ -117,22 +403,62 @@ public class EnclaveManagement
 	}
 
 	/**
-	 * An API that destroys the enclave if the enclave_id is 0. It is a better
-	 * practice to destroy an enclave when not in use
+	 * Runs an ecall in the managed enclave, on the enclave's shard of the pool
+	 * 
+	 * @param ecall what to run in the enclave
+	 * @return the ecall's result
+	 */
+	public <T> CompletableFuture<T> ecall(EnclavePool.Ecall<T> ecall)
+	{
+		return pool.route(eid, ecall);
+	}
+
+	/**
+	 * Asks the managed enclave to authorize a launch, see
+	 * ThreadWorker.authAndLaunch
+	 * 
+	 * @return the status of the enclave
+	 */
+	public String authAndLaunch(String generalName, String signature) throws Exception
+	{
+		return pool.call(eid, enclave -> new ThreadWorker(enclave).authAndLaunch(generalName, signature));
+	}
+
+	/**
+	 * An API that destroys the enclave if the enclave_id is not 0. It is a
+	 * better practice to destroy an enclave when not in use. The enclave goes
+	 * back to the pool once the ecalls already sent to it have run.
 	 */
-	void DestroyEnclave()
+	public void DestroyEnclave()
 	{
+		if (eid == 0)
+		{
+			return;
+		}
+		pool.destroy(eid);
+		eid = 0;
+		enclave = null;
+		// the ticket and attestation state belonged to the old enclave
+		ticket = null;
+		initialized = null;
+		earlyAccepted = false;
 	}
 
 	/**
 	 * An API that creates an enclave If the enclave_id is not 0, it means an
 	 * enclave already exists and so the API does nothing, just returns;
-	 * otherwise checks the device status using sgx_device_status. If sgx is
-	 * enabled, creates the enclave using sgx_create_enclave() API.
+	 * otherwise takes a new enclave id from the pool, the equivalent of
+	 * sgx_create_enclave(). The enclave itself is built on first use.
 	 * 
 	 */
-	void CreateEnclave()
+	public void CreateEnclave()
 	{
+		if (eid != 0)
+		{
+			return;
+		}
+		eid = pool.create();
+		enclave = pool.enclave(eid);
 	}
 
 	/**
@@ -146,11 +472,55 @@ public class EnclaveManagement
 	 */
 	String EncryptAndDecryptEnclaveCalls(String buffer)
 	{
-		return "";
+		byte[] plain = buffer.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer sealed = ByteBuffer
+				.allocate((int) SealedStream.sealedLength(plain.length, SealedStream.DEFAULT_CHUNK_SIZE));
+		ByteBuffer opened = ByteBuffer.allocate(plain.length);
+		try
+		{
+			EncryptAndDecryptEnclaveCalls(ByteBuffer.wrap(plain), sealed, opened);
+		} catch (GeneralSecurityException e)
+		{
+			System.out.println(e.getMessage());
+			return e.getMessage();
+		}
+		System.out.println(new String(opened.array(), 0, opened.position(), StandardCharsets.UTF_8));
+		return "SUCCESS";
+	}
+
+	/**
+	 * Encrypts a buffer under the enclave's sealing key as a SealedStream and
+	 * decrypts it again, without copying it off heap if the buffers are direct
+	 * 
+	 * @param plain
+	 *            the data, in read mode
+	 * @param sealed
+	 *            receives the encrypted stream, with room for
+	 *            SealedStream.sealedLength bytes
+	 * @param opened
+	 *            receives the decrypted data
+	 * @throws GeneralSecurityException
+	 *             if the data did not decrypt
+	 */
+	void EncryptAndDecryptEnclaveCalls(ByteBuffer plain, ByteBuffer sealed, ByteBuffer opened)
+			throws GeneralSecurityException
+	{
+		SealedStream encryptor = SealedStream.encryptor(SealedStream.DEFAULT_CHUNK_SIZE);
+		int start = sealed.position();
+		encryptor.start(sealed);
+		encryptor.finish(plain, sealed);
+
+		ByteBuffer stream = sealed.duplicate();
+		stream.flip().position(start);
+		SealedStream decryptor = SealedStream.decryptor();
+		decryptor.start(stream);
+		decryptor.finish(stream, opened);
 	}
 
 	// A wrapper function that destroys and creates enclave
-	void DestroyAndCreateEnclave()
+	public void DestroyAndCreateEnclave()
 	{
+		DestroyEnclave();
+		CreateEnclave();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,272 @@
+package isv.enclave;
+
+/**
+ * Startup options for the enclave attack simulation. Options are given on the
+ * command line as --name=value pairs, for example
+ *
+ * <pre>
+ * java isv.enclave.Enclave --engine=selector --event-loops=4
+ * </pre>
+ *
+ * Anything not given keeps the original behaviour of the simulation.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class EnclaveOptions
+{
+
+	/**
+	 * The network front end used to accept ecalls from the Generals
+	 */
+	public enum Engine
+	{
+		/** one blocking ThreadWorker per socket, the original behaviour */
+		THREAD,
+		/** java.nio selector event loops multiplexing every connection */
+		SELECTOR
+	}
+
+	/**
+	 * The authorization state machine the enclave runs
+	 */
+	public enum Mode
+	{
+		/** the state malleability demo, VulnerableAuthorization */
+		VULNERABLE,
+		/** atomic updates that cannot be exploited, HardenedAuthorization */
+		HARDENED
+	}
+
+	static final int DEFAULT_PORT = 9090;
+
+	private int port = DEFAULT_PORT;
+	private Engine engine = Engine.THREAD;
+	private int eventLoops = Runtime.getRuntime().availableProcessors();
+	private WorkerExecutors.Kind executor = WorkerExecutors.Kind.THREAD;
+	private int poolSize = 256;
+	private boolean keepAlive;
+	private Mode mode = Mode.VULNERABLE;
+	private boolean interrupt;
+	private int generals = 2;
+	private String snapshot;
+	private String fuseKeys;
+	private int snapshotInterval = 1000;
+	private String wal;
+	private int walBatchWindow = 200;
+	private int metricsPort;
+	private boolean secureChannel;
+	private String attestationKey = QuoteSigner.DEFAULT_PUBLIC_KEY_PATH;
+
+	/**
+	 * Parses the command line arguments given to the enclave
+	 *
+	 * @param args
+	 *            arguments of the form --name=value
+	 * @return the parsed options
+	 * @throws IllegalArgumentException
+	 *             if an option is unknown or has a malformed value
+	 */
+	public static EnclaveOptions parse(String[] args)
+	{
+		EnclaveOptions options = new EnclaveOptions();
+
+		for (String arg : args)
+		{
+			if (!arg.startsWith("--"))
+			{
+				throw new IllegalArgumentException("Unrecognized argument " + arg);
+			}
+
+			int split = arg.indexOf('=');
+			String name = split < 0 ? arg.substring(2) : arg.substring(2, split);
+			String value = split < 0 ? "true" : arg.substring(split + 1);
+
+			switch (name)
+			{
+			case "port":
+				options.port = parsePositive(name, value);
+				break;
+			case "engine":
+				options.engine = Engine.valueOf(value.toUpperCase());
+				break;
+			case "event-loops":
+				options.eventLoops = parsePositive(name, value);
+				break;
+			case "executor":
+				options.executor = WorkerExecutors.Kind.valueOf(value.toUpperCase());
+				break;
+			case "pool-size":
+				options.poolSize = parsePositive(name, value);
+				break;
+			case "keep-alive":
+				options.keepAlive = Boolean.parseBoolean(value);
+				break;
+			case "mode":
+				options.mode = Mode.valueOf(value.toUpperCase());
+				break;
+			case "interrupt":
+				options.interrupt = Boolean.parseBoolean(value);
+				break;
+			case "generals":
+				options.generals = parsePositive(name, value);
+				break;
+			case "snapshot":
+				options.snapshot = value;
+				break;
+			case "fuse-keys":
+				options.fuseKeys = value;
+				break;
+			case "snapshot-interval":
+				options.snapshotInterval = parsePositive(name, value);
+				break;
+			case "wal":
+				options.wal = value;
+				break;
+			case "wal-batch-window":
+				options.walBatchWindow = Integer.parseInt(value);
+				if (options.walBatchWindow < 0)
+				{
+					throw new IllegalArgumentException("--" + name + " must not be negative");
+				}
+				break;
+			case "metrics-port":
+				options.metricsPort = parsePositive(name, value);
+				break;
+			case "secure-channel":
+				options.secureChannel = Boolean.parseBoolean(value);
+				break;
+			case "attestation-key":
+				options.attestationKey = value;
+				break;
+			default:
+				throw new IllegalArgumentException("Unrecognized option --" + name);
+			}
+		}
+		if (options.secureChannel && options.engine == Engine.SELECTOR)
+		{
+			throw new IllegalArgumentException("--secure-channel needs --engine=thread");
+		}
+		return options;
+	}
+
+	private static int parsePositive(String name, String value)
+	{
+		int parsed = Integer.parseInt(value);
+		if (parsed <= 0)
+		{
+			throw new IllegalArgumentException("--" + name + " must be positive");
+		}
+		return parsed;
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+
+	public Engine getEngine()
+	{
+		return engine;
+	}
+
+	public int getEventLoops()
+	{
+		return eventLoops;
+	}
+
+	public WorkerExecutors.Kind getExecutor()
+	{
+		return executor;
+	}
+
+	public int getPoolSize()
+	{
+		return poolSize;
+	}
+
+	public boolean isKeepAlive()
+	{
+		return keepAlive;
+	}
+
+	public Mode getMode()
+	{
+		return mode;
+	}
+
+	public boolean isInterrupt()
+	{
+		return interrupt;
+	}
+
+	public int getGenerals()
+	{
+		return generals;
+	}
+
+	/**
+	 * @return the sealed snapshot file, or null to keep no snapshot
+	 */
+	public String getSnapshot()
+	{
+		return snapshot;
+	}
+
+	/**
+	 * @return the file the fuse keys are kept in, next to the snapshot unless
+	 *         given
+	 */
+	public String getFuseKeys()
+	{
+		return fuseKeys != null ? fuseKeys : snapshot + ".fuses";
+	}
+
+	/**
+	 * @return milliseconds between snapshots
+	 */
+	public int getSnapshotInterval()
+	{
+		return snapshotInterval;
+	}
+
+	/**
+	 * @return the authorization write-ahead log, or null to keep none
+	 */
+	public String getWal()
+	{
+		return wal;
+	}
+
+	/**
+	 * @return microseconds the log waits for more decisions before an fsync
+	 */
+	public int getWalBatchWindow()
+	{
+		return walBatchWindow;
+	}
+
+	/**
+	 * @return the port metrics are served on over HTTP, or 0 for none
+	 */
+	public int getMetricsPort()
+	{
+		return metricsPort;
+	}
+
+	/**
+	 * @return whether ecalls must come over a SecureChannel
+	 */
+	public boolean isSecureChannel()
+	{
+		return secureChannel;
+	}
+
+	/**
+	 * @return the file the attestation public key is published to, for
+	 *         Generals to check secure channel quotes against
+	 */
+	public String getAttestationKey()
+	{
+		return attestationKey;
+	}
+}
@@ -0,0 +1,282 @@
+package isv.enclave;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Hosts many simulated enclaves in one JVM. The enclaves are spread over
+ * shards, one per core by default, and each shard runs every ecall for its
+ * enclaves on its own thread. Enclaves on different shards share nothing, so
+ * ecall throughput grows with the number of cores, and the ecalls of any one
+ * enclave run one at a time, as on a single TCS.
+ *
+ * Enclave ids are handed out by the shards themselves, so an id says which
+ * shard its enclave lives on: shard (eid - 1) % shards. Creating an enclave
+ * only reserves its id; the enclave is built when it is first used. A
+ * destroyed enclave is wiped and kept, to be handed out again under the next
+ * new id.
+ *
+ * The default pool is sized by the isv.enclavePool.shards system property.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class EnclavePool
+{
+	private static final String ENCLAVE_FILE = "testfile.txt";
+	// destroyed enclaves kept per shard, beyond that they are left to the GC
+	private static final int RECYCLED_PER_SHARD = 64;
+
+	private static EnclavePool defaultPool;
+
+	private final Shard[] shards;
+	private final Consumer<Enclave> initializer;
+	private final AtomicInteger nextShard = new AtomicInteger();
+
+	/**
+	 * An ecall, run on the shard of the enclave it is routed to
+	 */
+	public interface Ecall<T>
+	{
+		T call(Enclave enclave) throws Exception;
+	}
+
+	/**
+	 * @param shards
+	 *            the number of shards, each with its own thread
+	 * @param initializer
+	 *            sets up each enclave when it is built, e.g. registers its
+	 *            Generals
+	 */
+	public EnclavePool(int shards, Consumer<Enclave> initializer)
+	{
+		if (shards < 1)
+		{
+			throw new IllegalArgumentException("Bad shard count " + shards);
+		}
+		this.shards = new Shard[shards];
+		for (int i = 0; i < shards; i++)
+		{
+			this.shards[i] = new Shard(i);
+		}
+		this.initializer = initializer;
+	}
+
+	/**
+	 * @return the pool EnclaveManagement creates its enclaves in, with a shard
+	 *         per core
+	 */
+	public static synchronized EnclavePool getDefault()
+	{
+		if (defaultPool == null)
+		{
+			defaultPool = new EnclavePool(
+					Integer.getInteger("isv.enclavePool.shards", Runtime.getRuntime().availableProcessors()),
+					enclave -> {
+					});
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Reserves an enclave id, spreading enclaves over the shards in turn. The
+	 * enclave itself is built when it is first used.
+	 *
+	 * @return the new enclave's id, never 0
+	 */
+	public int create()
+	{
+		Shard shard = shards[Math.floorMod(nextShard.getAndIncrement(), shards.length)];
+		int eid = shard.allocated.getAndIncrement() * shards.length + shard.index + 1;
+		shard.slots.put(eid, new Slot());
+		return eid;
+	}
+
+	/**
+	 * Destroys an enclave once the ecalls already routed to it have run. Its
+	 * id is not handed out again.
+	 *
+	 * @param eid
+	 *            the enclave to destroy
+	 * @return completes when the enclave is gone
+	 */
+	public CompletableFuture<Void> destroy(int eid)
+	{
+		Shard shard = shard(eid);
+		return CompletableFuture.runAsync(() -> {
+			Slot slot = shard.slots.remove(eid);
+			if (slot != null && slot.enclave != null && shard.recycled.size() < RECYCLED_PER_SHARD)
+			{
+				shard.recycled.offer(slot.enclave);
+			}
+		}, shard.executor);
+	}
+
+	/**
+	 * Runs an ecall on an enclave, on the enclave's shard
+	 *
+	 * @param eid
+	 *            the enclave to call
+	 * @param ecall
+	 *            what to run in the enclave
+	 * @return the ecall's result, or an IllegalArgumentException if there is
+	 *         no such enclave
+	 */
+	public <T> CompletableFuture<T> route(int eid, Ecall<T> ecall)
+	{
+		Shard shard = shard(eid);
+		CompletableFuture<T> result = new CompletableFuture<>();
+		shard.executor.execute(() -> {
+			try
+			{
+				result.complete(ecall.call(enclave(eid)));
+			} catch (Throwable e)
+			{
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Runs an ecall on an enclave and waits for it
+	 *
+	 * @see #route(int, Ecall)
+	 */
+	public <T> T call(int eid, Ecall<T> ecall) throws Exception
+	{
+		try
+		{
+			return route(eid, ecall).get();
+		} catch (ExecutionException | CompletionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+			{
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * The enclave with the given id, built if this is its first use. Ecalls
+	 * should be routed rather than made on the enclave directly, remote
+	 * attestation included; the enclave itself is only for bookkeeping.
+	 *
+	 * @param eid
+	 *            the enclave's id
+	 * @return the enclave
+	 * @throws IllegalArgumentException
+	 *             if there is no such enclave
+	 */
+	public Enclave enclave(int eid)
+	{
+		Shard shard = shard(eid);
+		Slot slot = shard.slots.get(eid);
+		if (slot == null)
+		{
+			throw new IllegalArgumentException("No enclave " + eid);
+		}
+		synchronized (slot)
+		{
+			if (slot.enclave == null)
+			{
+				slot.enclave = shard.build(eid);
+			}
+			return slot.enclave;
+		}
+	}
+
+	/**
+	 * @return the number of enclaves created and not yet destroyed
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (Shard shard : shards)
+		{
+			size += shard.slots.size();
+		}
+		return size;
+	}
+
+	public int getShards()
+	{
+		return shards.length;
+	}
+
+	/**
+	 * Stops the shard threads once the ecalls already routed have run
+	 */
+	public void close()
+	{
+		for (Shard shard : shards)
+		{
+			shard.executor.shutdown();
+		}
+	}
+
+	public String toString()
+	{
+		return "EnclavePool[shards=" + shards.length + ", enclaves=" + size() + "]";
+	}
+
+	private Shard shard(int eid)
+	{
+		if (eid < 1)
+		{
+			throw new IllegalArgumentException("No enclave " + eid);
+		}
+		return shards[(eid - 1) % shards.length];
+	}
+
+	/**
+	 * A reserved enclave id and, once it has been used, its enclave
+	 */
+	private static final class Slot
+	{
+		private Enclave enclave;
+	}
+
+	/**
+	 * The enclaves of one core, and the thread that runs their ecalls
+	 */
+	private final class Shard
+	{
+		private final int index;
+		private final AtomicInteger allocated = new AtomicInteger();
+		private final ConcurrentHashMap<Integer, Slot> slots = new ConcurrentHashMap<>();
+		private final Queue<Enclave> recycled = new ConcurrentLinkedQueue<>();
+		private final ExecutorService executor;
+
+		Shard(int index)
+		{
+			this.index = index;
+			this.executor = Executors.newSingleThreadExecutor(task -> {
+				Thread thread = new Thread(task, "enclave-shard-" + index);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		Enclave build(int eid)
+		{
+			Enclave enclave = recycled.poll();
+			if (enclave == null)
+			{
+				enclave = new Enclave(ENCLAVE_FILE, eid);
+			}
+			enclave.recycle(eid);
+			initializer.accept(enclave);
+			return enclave;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package isv.enclave;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * Finite field Diffie Hellman over the ffdhe2048 group of RFC 7919. The group
+ * is a published safe prime, so nothing has to be generated at startup and
+ * both ends can check that the peer used the same group.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class FfdheKeyExchange implements KeyExchange
+{
+	public static final String NAME = "ffdhe2048";
+	private static final String ALGORITHM = "DiffieHellman";
+
+	private static final BigInteger P = new BigInteger("FFFFFFFFFFFFFFFFADF85458A2BB4A9AAFDC5620273D3CF1"
+			+ "D8B9C583CE2D3695A9E13641146433FBCC939DCE249B3EF97D2FE363630C75D8F681B202AEC4617AD3DF1ED5D5FD6561"
+			+ "2433F51F5F066ED0856365553DED1AF3B557135E7F57C935984F0C70E0E68B77E2A689DAF3EFE8721DF158A136ADE735"
+			+ "30ACCA4F483A797ABC0AB182B324FB61D108A94BB2C8E3FBB96ADAB760D7F4681D4F42A3DE394DF4AE56EDE76372BB19"
+			+ "0B07A7C8EE0A6D709E02FCE1CDF7E2ECC03404CD28342F619172FE9CE98583FF8E4F1232EEF28183C3FE3B1B4C6FAD73"
+			+ "3BB5FCBC2EC22005C58EF1837D1683B2C6F34A26C1B2EFFA886B423861285C97FFFFFFFFFFFFFFFF", 16);
+	private static final BigInteger G = BigInteger.valueOf(2);
+
+	/**
+	 * The ffdhe2048 group, with 256 bit private exponents
+	 */
+	public static final DHParameterSpec FFDHE2048 = new DHParameterSpec(P, G, 256);
+
+	public String getName()
+	{
+		return NAME;
+	}
+
+	public KeyPair generateKeyPair() throws GeneralSecurityException
+	{
+		return KeyPairPool.getDefault().take(ALGORITHM, FFDHE2048);
+	}
+
+	public PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException
+	{
+		DHPublicKey key = (DHPublicKey) KeyFactory.getInstance(ALGORITHM)
+				.generatePublic(new X509EncodedKeySpec(encoded));
+		BigInteger y = key.getY();
+		// the peer has to use our group, and a public value of 1 or p - 1
+		// would force the shared secret
+		if (!key.getParams().getP().equals(P) || !key.getParams().getG().equals(G)
+				|| y.compareTo(BigInteger.ONE) <= 0 || y.compareTo(P.subtract(BigInteger.ONE)) >= 0)
+		{
+			throw new InvalidKeyException("Not an ffdhe2048 public key");
+		}
+		return key;
+	}
+
+	public byte[] agree(PrivateKey privateKey, PublicKey peerKey) throws GeneralSecurityException
+	{
+		KeyAgreement agreement = KeyAgreement.getInstance(ALGORITHM);
+		agreement.init(privateKey);
+		agreement.doPhase(peerKey, true);
+		return agreement.generateSecret();
+	}
+}
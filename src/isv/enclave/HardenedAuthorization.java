@@ -0,0 +1,45 @@
+package isv.enclave;
+
+/**
+ * An authorization algorithm that is not vulnerable to state malleability.
+ * An interrupt is only taken before any state has changed, and a General's
+ * flag and the enclave's count are each updated with a single atomic
+ * operation, so concurrent ecalls cannot lose an update or count a General
+ * twice. No lock is taken.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class HardenedAuthorization implements AuthorizationStateMachine
+{
+
+	public AuthorizationTransition authorize(Enclave enclave, RosterEntry general)
+	{
+		// an interrupt here leaves the enclave exactly as it was
+		if (enclave.createInterrupt())
+		{
+			enclave.setCreateInterrupt(false);
+			return AuthorizationTransition.unchanged(EcallStatus.INTERRUPT);
+		}
+
+		// only the ecall that flips the flag gets to count the General
+		if (!general.markAuthorized())
+		{
+			return AuthorizationTransition.unchanged(EcallStatus.GENERAL_ALREADY_AUTHORIZED_ACTION);
+		}
+
+		// if two generals have authorized the launch, send the nuke!
+		int authCount = enclave.incrementAuthCount();
+		if (authCount >= 2)
+		{
+			return AuthorizationTransition.applied(EcallStatus.LAUNCHED, true, authCount);
+		}
+
+		// otherwise we aren't ready to launch yet.
+		return AuthorizationTransition.applied(EcallStatus.PENDING_AUTHORIZATION, true, authCount);
+	}
+
+	public boolean isConcurrent()
+	{
+		return true;
+	}
+}
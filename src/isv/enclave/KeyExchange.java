@@ -0,0 +1,103 @@
+package isv.enclave;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The key exchange that msg1 and msg2 of remote attestation carry. The enclave
+ * offers the exchanges it supports in msg0 and the server picks one, so a
+ * deployment can choose the fastest exchange both ends trust.
+ *
+ * Public keys go over the wire X.509 encoded.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public interface KeyExchange
+{
+
+	/**
+	 * @return the name the exchange is negotiated by in msg0
+	 */
+	String getName();
+
+	/**
+	 * @return a fresh ephemeral key pair, usually from the KeyPairPool
+	 * @throws GeneralSecurityException
+	 */
+	KeyPair generateKeyPair() throws GeneralSecurityException;
+
+	/**
+	 * @param encoded
+	 *            the peer's X.509 encoded public key
+	 * @return the peer's public key
+	 * @throws GeneralSecurityException
+	 *             if the key isn't a valid key for this exchange
+	 */
+	PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException;
+
+	/**
+	 * @return the shared secret of our private key and the peer's public key
+	 * @throws GeneralSecurityException
+	 */
+	byte[] agree(PrivateKey privateKey, PublicKey peerKey) throws GeneralSecurityException;
+
+	/**
+	 * @return every exchange this runtime supports, fastest first
+	 */
+	static List<KeyExchange> available()
+	{
+		List<KeyExchange> exchanges = new ArrayList<>();
+		if (X25519KeyExchange.isSupported())
+		{
+			exchanges.add(new X25519KeyExchange());
+		}
+		exchanges.add(new FfdheKeyExchange());
+		return exchanges;
+	}
+
+	/**
+	 * @param names
+	 *            comma separated exchange names, e.g. x25519,ffdhe2048
+	 * @return the named exchanges this runtime supports, in the same order
+	 */
+	static List<KeyExchange> forNames(String names)
+	{
+		List<KeyExchange> exchanges = new ArrayList<>();
+		for (String name : names.split(","))
+		{
+			for (KeyExchange exchange : available())
+			{
+				if (exchange.getName().equals(name.trim()))
+				{
+					exchanges.add(exchange);
+				}
+			}
+		}
+		return exchanges;
+	}
+
+	/**
+	 * @param preferred
+	 *            the exchanges we support, most preferred first
+	 * @param offered
+	 *            the names of the exchanges the peer supports
+	 * @return the first preferred exchange the peer offered, or null if there
+	 *         is none
+	 */
+	static KeyExchange negotiate(List<KeyExchange> preferred, Collection<String> offered)
+	{
+		for (KeyExchange exchange : preferred)
+		{
+			if (offered.contains(exchange.getName()))
+			{
+				return exchange;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,281 @@
+package isv.enclave;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * Ephemeral key pairs generated ahead of time, so that a burst of remote
+ * attestations doesn't wait on key generation. Key pairs are pooled per
+ * parameter set, e.g. per Diffie Hellman group or elliptic curve, and every
+ * pair is handed out once only.
+ *
+ * When a pool drops to its low water mark a background thread refills it to
+ * capacity. A take from an empty pool is a miss and generates its key pair
+ * on the calling thread, so the pool never makes anyone wait longer than
+ * they would have without it.
+ *
+ * The default pool is sized by the isv.keyPool.capacity,
+ * isv.keyPool.lowWater and isv.keyPool.threads system properties.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class KeyPairPool
+{
+	private static final KeyPairPool DEFAULT = new KeyPairPool(Integer.getInteger("isv.keyPool.capacity", 64),
+			Integer.getInteger("isv.keyPool.lowWater", 16), Integer.getInteger("isv.keyPool.threads", 1));
+
+	private final int capacity;
+	private final int lowWater;
+	private final ExecutorService refills;
+	private final ConcurrentHashMap<ParameterSet, Pool> pools = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder generated = new LongAdder();
+
+	/**
+	 * @param capacity
+	 *            key pairs kept ready per parameter set
+	 * @param lowWater
+	 *            a parameter set is refilled once it has this many or fewer
+	 *            key pairs left
+	 * @param threads
+	 *            background threads generating key pairs
+	 */
+	public KeyPairPool(int capacity, int lowWater, int threads)
+	{
+		if (capacity < 1 || lowWater < 0 || lowWater >= capacity || threads < 1)
+		{
+			throw new IllegalArgumentException("Bad key pair pool size " + capacity + ", low water mark " + lowWater
+					+ " or threads " + threads);
+		}
+		this.capacity = capacity;
+		this.lowWater = lowWater;
+		// low priority daemon threads, so refills give way to attestations
+		// and never keep the JVM alive
+		this.refills = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), task -> {
+					Thread thread = new Thread(task, "key-pool");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				});
+	}
+
+	/**
+	 * @return the pool shared by the enclaves and the attestation server
+	 */
+	public static KeyPairPool getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * Hands out a fresh key pair, from the pool if one is ready
+	 *
+	 * @param algorithm
+	 *            the key pair algorithm, e.g. DiffieHellman or EC
+	 * @param params
+	 *            the parameter set, e.g. a DHParameterSpec or an
+	 *            ECGenParameterSpec, or null for algorithms like X25519 that
+	 *            have none
+	 * @return a key pair nobody else has been given
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidAlgorithmParameterException
+	 */
+	public KeyPair take(String algorithm, AlgorithmParameterSpec params)
+			throws NoSuchAlgorithmException, InvalidAlgorithmParameterException
+	{
+		Pool pool = pool(algorithm, params);
+		KeyPair pair = pool.ready.poll();
+		if (pair != null)
+		{
+			hits.increment();
+		} else
+		{
+			misses.increment();
+			pair = pool.generate();
+		}
+
+		if (pool.ready.size() <= lowWater)
+		{
+			pool.refill();
+		}
+		return pair;
+	}
+
+	/**
+	 * Starts filling the pool for a parameter set before it is needed, e.g.
+	 * when the parameters are known ahead of an attestation burst
+	 */
+	public void prefill(String algorithm, AlgorithmParameterSpec params)
+			throws NoSuchAlgorithmException, InvalidAlgorithmParameterException
+	{
+		pool(algorithm, params).refill();
+	}
+
+	private Pool pool(String algorithm, AlgorithmParameterSpec params)
+			throws NoSuchAlgorithmException, InvalidAlgorithmParameterException
+	{
+		ParameterSet key = new ParameterSet(algorithm, params);
+		Pool pool = pools.get(key);
+		if (pool == null)
+		{
+			// check the parameters once, up front, rather than on a refill
+			newGenerator(algorithm, params);
+			pool = pools.computeIfAbsent(key, Pool::new);
+		}
+		return pool;
+	}
+
+	private static KeyPairGenerator newGenerator(String algorithm, AlgorithmParameterSpec params)
+			throws NoSuchAlgorithmException, InvalidAlgorithmParameterException
+	{
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+		if (params != null)
+		{
+			generator.initialize(params);
+		}
+		return generator;
+	}
+
+	/**
+	 * @return takes served from the pool
+	 */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * @return takes that found the pool empty and generated their own key pair
+	 */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * @return key pairs generated in the background
+	 */
+	public long getGenerated()
+	{
+		return generated.sum();
+	}
+
+	public String toString()
+	{
+		return "KeyPairPool[hits=" + getHits() + ", misses=" + getMisses() + ", generated=" + getGenerated()
+				+ ", parameterSets=" + pools.size() + "]";
+	}
+
+	/**
+	 * The key pairs ready for one parameter set
+	 */
+	private class Pool
+	{
+		private final ParameterSet parameters;
+		private final BlockingQueue<KeyPair> ready = new ArrayBlockingQueue<>(capacity);
+		private final AtomicBoolean refilling = new AtomicBoolean();
+		// KeyPairGenerators aren't thread safe, so each thread keeps its own
+		private final ThreadLocal<KeyPairGenerator> generators = new ThreadLocal<>();
+
+		Pool(ParameterSet parameters)
+		{
+			this.parameters = parameters;
+		}
+
+		KeyPair generate() throws NoSuchAlgorithmException, InvalidAlgorithmParameterException
+		{
+			KeyPairGenerator generator = generators.get();
+			if (generator == null)
+			{
+				generator = newGenerator(parameters.algorithm, parameters.params);
+				generators.set(generator);
+			}
+			return generator.generateKeyPair();
+		}
+
+		void refill()
+		{
+			if (refilling.compareAndSet(false, true))
+			{
+				refills.execute(() -> {
+					try
+					{
+						while (ready.remainingCapacity() > 0)
+						{
+							ready.offer(generate());
+							generated.increment();
+						}
+					} catch (Exception e)
+					{
+						System.out.println("Key pair pool refill failed: " + e.getMessage());
+					} finally
+					{
+						refilling.set(false);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * An algorithm and its parameters, compared by value so that equal groups
+	 * decoded from different peers share a pool
+	 */
+	private static final class ParameterSet
+	{
+		private final String algorithm;
+		private final AlgorithmParameterSpec params;
+		private final Object identity;
+
+		ParameterSet(String algorithm, AlgorithmParameterSpec params)
+		{
+			this.algorithm = algorithm;
+			this.params = params;
+			if (params instanceof DHParameterSpec)
+			{
+				DHParameterSpec dh = (DHParameterSpec) params;
+				identity = Arrays.asList(dh.getP(), dh.getG(), dh.getL());
+			} else if (params instanceof ECGenParameterSpec)
+			{
+				identity = ((ECGenParameterSpec) params).getName();
+			} else
+			{
+				identity = params == null ? "" : params;
+			}
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof ParameterSet))
+			{
+				return false;
+			}
+			ParameterSet other = (ParameterSet) o;
+			return algorithm.equals(other.algorithm) && identity.equals(other.identity);
+		}
+
+		public int hashCode()
+		{
+			return algorithm.hashCode() * 31 + identity.hashCode();
+		}
+	}
+}
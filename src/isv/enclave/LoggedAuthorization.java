@@ -0,0 +1,67 @@
+package isv.enclave;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Runs another state machine and writes every decision that changed the
+ * enclave's state to the AuthorizationLog before the General hears about it.
+ * Decisions that change nothing, like a General authorizing twice, are not
+ * logged.
+ *
+ * The decision is only appended here. The caller holds the answer back until
+ * the returned transition is durable, which it can wait for once for a whole
+ * batch and outside any lock, so ecalls keep joining the log's group commit.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class LoggedAuthorization implements AuthorizationStateMachine
+{
+	private final AuthorizationStateMachine delegate;
+	private final AuthorizationLog log;
+
+	/**
+	 * @param delegate
+	 *            the state machine making the decisions
+	 * @param log
+	 *            where the decisions are written
+	 */
+	public LoggedAuthorization(AuthorizationStateMachine delegate, AuthorizationLog log)
+	{
+		this.delegate = delegate;
+		this.log = log;
+	}
+
+	/**
+	 * @return the delegate's transition, to be awaited before it is answered
+	 *         if it changed the enclave's state
+	 * @throws UncheckedIOException
+	 *             if the decision could not be logged, so the ecall fails
+	 *             rather than answer with a decision that may be lost
+	 */
+	public AuthorizationTransition authorize(Enclave enclave, RosterEntry general)
+	{
+		AuthorizationTransition transition = delegate.authorize(enclave, general);
+		if (!transition.isChanged())
+		{
+			return transition;
+		}
+		try
+		{
+			return transition.logged(log, log.append(general.getId(), transition));
+		} catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public boolean isConcurrent()
+	{
+		return delegate.isConcurrent();
+	}
+
+	public AuthorizationStateMachine getDelegate()
+	{
+		return delegate;
+	}
+}
@@ -0,0 +1,374 @@
+package isv.enclave;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Signs enclave quotes with the platform's attestation key, standing in for
+ * the EPID key a real platform would sign with. The key is generated once,
+ * like the sealing and provisioning keys, and each thread initializes one
+ * Signature with it and reuses it for every quote after that.
+ *
+ * A quote is the enclave id and the key epoch, then their signature:
+ *
+ * <pre>
+ * [eid, 4 bytes] [epoch, 4 bytes] [signature]
+ * </pre>
+ *
+ * Nothing in a quote changes between attestations, so quotes are cached by
+ * enclave id and epoch. Rotating the key starts a new epoch, so no quote
+ * signed with the old key is handed out again.
+ *
+ * A quote can also carry report data, like the report data of an SGX report,
+ * binding it to one handshake. Those are signed afresh every time:
+ *
+ * <pre>
+ * [eid, 4 bytes] [epoch, 4 bytes] [report data, 32 bytes] [signature]
+ * </pre>
+ *
+ * Peers outside the enclave's process check them against the public key,
+ * which exportPublicKey publishes.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class QuoteSigner
+{
+	public static final String KEY_ALGORITHM = "RSA";
+	public static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+	public static final int REPORT_DATA_LENGTH = 32;
+	/** where the enclave publishes the public key and Generals look for it */
+	public static final String DEFAULT_PUBLIC_KEY_PATH = "attestation-key.pub";
+	private static final int KEY_SIZE = 2048;
+
+	private static final QuoteSigner DEFAULT = new QuoteSigner();
+
+	// the current key and its epoch, swapped as one on rotation
+	private volatile AttestationKey key;
+	// (epoch << 32 | eid) to quote
+	private final ConcurrentHashMap<Long, byte[]> quotes = new ConcurrentHashMap<>();
+
+	/**
+	 * The attestation key for one epoch, and the Signatures initialized with it
+	 */
+	private static final class AttestationKey
+	{
+		private final int epoch;
+		private final PublicKey publicKey;
+		private final PrivateKey privateKey;
+		private final ThreadLocal<Signature> signers = new ThreadLocal<>();
+
+		AttestationKey(int epoch, KeyPair pair)
+		{
+			this.epoch = epoch;
+			this.publicKey = pair.getPublic();
+			this.privateKey = pair.getPrivate();
+		}
+
+		Signature signer() throws GeneralSecurityException
+		{
+			Signature signer = signers.get();
+			if (signer == null)
+			{
+				signer = Signature.getInstance(SIGNATURE_ALGORITHM);
+				signer.initSign(privateKey);
+				signers.set(signer);
+			}
+			return signer;
+		}
+	}
+
+	/**
+	 * @return the platform's quote signer, whose key is generated the first
+	 *         time it is used
+	 */
+	public static QuoteSigner getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * @param eid
+	 *            the enclave to quote
+	 * @return the enclave's quote for the current key epoch
+	 * @throws GeneralSecurityException
+	 */
+	public byte[] quote(int eid) throws GeneralSecurityException
+	{
+		AttestationKey current = currentKey();
+		Long id = ((long) current.epoch << 32) | (eid & 0xFFFFFFFFL);
+		byte[] quote = quotes.get(id);
+		if (quote == null)
+		{
+			quote = sign(current, eid);
+			byte[] raced = quotes.putIfAbsent(id, quote);
+			if (raced != null)
+			{
+				quote = raced;
+			}
+		}
+		return quote;
+	}
+
+	/**
+	 * Quotes many enclaves at once, signing the ones not cached yet in
+	 * parallel
+	 *
+	 * @param eids
+	 *            the enclaves to quote
+	 * @return their quotes, in the same order
+	 * @throws GeneralSecurityException
+	 */
+	public byte[][] quotes(int... eids) throws GeneralSecurityException
+	{
+		byte[][] result = new byte[eids.length][];
+		try
+		{
+			IntStream.range(0, eids.length).parallel().forEach(i -> {
+				try
+				{
+					result[i] = quote(eids[i]);
+				} catch (GeneralSecurityException e)
+				{
+					throw new IllegalStateException(e);
+				}
+			});
+		} catch (IllegalStateException e)
+		{
+			if (e.getCause() instanceof GeneralSecurityException)
+			{
+				throw (GeneralSecurityException) e.getCause();
+			}
+			throw e;
+		}
+		return result;
+	}
+
+	/**
+	 * Signs a fresh quote, bypassing the cache
+	 */
+	byte[] sign(int eid) throws GeneralSecurityException
+	{
+		return sign(currentKey(), eid);
+	}
+
+	/**
+	 * @param eid
+	 *            the enclave to quote
+	 * @param reportData
+	 *            REPORT_DATA_LENGTH bytes the quote vouches for, e.g. the hash
+	 *            of a handshake
+	 * @return a quote covering the report data, signed with the current key
+	 * @throws GeneralSecurityException
+	 */
+	public byte[] quote(int eid, byte[] reportData) throws GeneralSecurityException
+	{
+		if (reportData.length != REPORT_DATA_LENGTH)
+		{
+			throw new IllegalArgumentException("Report data must be " + REPORT_DATA_LENGTH + " bytes");
+		}
+		AttestationKey current = currentKey();
+		byte[] body = ByteBuffer.allocate(8 + REPORT_DATA_LENGTH).putInt(eid).putInt(current.epoch).put(reportData)
+				.array();
+		Signature signer = current.signer();
+		signer.update(body);
+		byte[] signature = signer.sign();
+		return ByteBuffer.allocate(body.length + signature.length).put(body).put(signature).array();
+	}
+
+	/**
+	 * Checks a quote with report data, as a peer outside the enclave's process
+	 * can
+	 *
+	 * @param attestationKey
+	 *            the signer's public key, as exported
+	 * @param quote
+	 *            the quote to check
+	 * @param reportData
+	 *            the report data the quote must carry
+	 * @return true if the quote carries the report data and its signature is
+	 *         good
+	 * @throws GeneralSecurityException
+	 */
+	public static boolean verify(PublicKey attestationKey, byte[] quote, byte[] reportData)
+			throws GeneralSecurityException
+	{
+		int body = 8 + REPORT_DATA_LENGTH;
+		if (quote.length <= body || reportData.length != REPORT_DATA_LENGTH)
+		{
+			return false;
+		}
+		byte[] carried = Arrays.copyOfRange(quote, 8, body);
+		Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+		verifier.initVerify(attestationKey);
+		verifier.update(quote, 0, body);
+		// check the signature whatever the report data, so a mismatch takes
+		// no less time to find
+		boolean signed = verifier.verify(quote, body, quote.length - body);
+		return signed & MessageDigest.isEqual(carried, reportData);
+	}
+
+	/**
+	 * Checks a quote without report data, as a peer outside the enclave's
+	 * process can
+	 *
+	 * @param attestationKey
+	 *            the signer's public key, as exported
+	 * @param quote
+	 *            the quote to check
+	 * @return true if the quote's signature is good
+	 * @throws GeneralSecurityException
+	 */
+	public static boolean verify(PublicKey attestationKey, byte[] quote) throws GeneralSecurityException
+	{
+		if (quote.length <= 8)
+		{
+			return false;
+		}
+		Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+		verifier.initVerify(attestationKey);
+		verifier.update(quote, 0, 8);
+		return verifier.verify(quote, 8, quote.length - 8);
+	}
+
+	/**
+	 * @param quote
+	 *            a quote, with or without report data
+	 * @return the enclave id the quote is signed for, or -1 if it is too short
+	 *         to be a quote
+	 */
+	public static int quotedEnclave(byte[] quote)
+	{
+		return quote.length <= 8 ? -1 : ByteBuffer.wrap(quote).getInt(0);
+	}
+
+	/**
+	 * @return the public half of the current attestation key
+	 */
+	public PublicKey getPublicKey() throws NoSuchAlgorithmException
+	{
+		return currentKey().publicKey;
+	}
+
+	/**
+	 * Writes the X.509 encoded public key to a file, replacing it whole, for
+	 * Generals to check quotes against
+	 *
+	 * @param file
+	 *            where to publish the key
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public void exportPublicKey(File file) throws IOException, NoSuchAlgorithmException
+	{
+		File absolute = file.getAbsoluteFile();
+		File temp = File.createTempFile(absolute.getName(), ".tmp", absolute.getParentFile());
+		Files.write(temp.toPath(), getPublicKey().getEncoded());
+		Files.move(temp.toPath(), absolute.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @param file
+	 *            a key written by exportPublicKey
+	 * @return the attestation public key
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 *             if the file does not hold a key
+	 */
+	public static PublicKey readPublicKey(File file) throws IOException, GeneralSecurityException
+	{
+		byte[] encoded = Files.readAllBytes(file.toPath());
+		return KeyFactory.getInstance(KEY_ALGORITHM).generatePublic(new X509EncodedKeySpec(encoded));
+	}
+
+	private static byte[] sign(AttestationKey key, int eid) throws GeneralSecurityException
+	{
+		byte[] body = ByteBuffer.allocate(8).putInt(eid).putInt(key.epoch).array();
+		Signature signer = key.signer();
+		signer.update(body);
+		byte[] signature = signer.sign();
+		return ByteBuffer.allocate(body.length + signature.length).put(body).put(signature).array();
+	}
+
+	/**
+	 * Replaces the attestation key, e.g. after it may have leaked, and drops
+	 * every quote signed with the old one. Export the public key again for
+	 * Generals to check new quotes.
+	 *
+	 * @return the new key epoch
+	 */
+	public synchronized int rotate() throws NoSuchAlgorithmException
+	{
+		AttestationKey old = key;
+		int epoch = old == null ? 0 : old.epoch + 1;
+		key = new AttestationKey(epoch, generateKeyPair());
+		quotes.clear();
+		return epoch;
+	}
+
+	/**
+	 * @return the epoch of the key quotes are signed with
+	 */
+	public int getEpoch() throws NoSuchAlgorithmException
+	{
+		return currentKey().epoch;
+	}
+
+	/**
+	 * @param quote
+	 *            a quote from this signer
+	 * @return true if the quote was signed with the current key
+	 */
+	public boolean verify(byte[] quote) throws GeneralSecurityException
+	{
+		AttestationKey current = currentKey();
+		if (quote.length <= 8 || ByteBuffer.wrap(quote).getInt(4) != current.epoch)
+		{
+			return false;
+		}
+		Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+		verifier.initVerify(current.publicKey);
+		verifier.update(quote, 0, 8);
+		return verifier.verify(quote, 8, quote.length - 8);
+	}
+
+	private AttestationKey currentKey() throws NoSuchAlgorithmException
+	{
+		AttestationKey current = key;
+		if (current == null)
+		{
+			synchronized (this)
+			{
+				if (key == null)
+				{
+					key = new AttestationKey(0, generateKeyPair());
+				}
+				current = key;
+			}
+		}
+		return current;
+	}
+
+	private static KeyPair generateKeyPair() throws NoSuchAlgorithmException
+	{
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+		generator.initialize(KEY_SIZE);
+		return generator.generateKeyPair();
+	}
+}
@@ -0,0 +1,145 @@
+package isv.enclave;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A ticket the ISV server issued to an enclave after a full attestation, and
+ * the secret that goes with it. Presenting the ticket lets the enclave get a
+ * verdict in a single round trip rather than repeating msg0 to msg4.
+ *
+ * The ticket is opaque to the enclave: the server encrypted the enclave id,
+ * the verdict and the resumption secret into it. The resumption secret is
+ * derived from the attestation's shared key, which both ends hold, so only
+ * the enclave that attested can prove it owns the ticket.
+ *
+ * The resume message is
+ *
+ * <pre>
+ * resume [eid] [ticket] [nonce] [HMAC of the eid, ticket and nonce]
+ * </pre>
+ *
+ * and the server answers with the verdict and an HMAC of the nonce and
+ * verdict, so the enclave knows the answer is fresh and came from the server.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class ResumptionTicket
+{
+	public static final String RESUME = "resume";
+	public static final String REJECTED = "Resume rejected";
+
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private final int eid;
+	private final byte[] ticket;
+	private final byte[] secret;
+	private final long expiresAt;
+
+	/**
+	 * @param eid
+	 *            the enclave the ticket was issued to
+	 * @param ticket
+	 *            the ticket as the server sent it
+	 * @param secret
+	 *            the resumption secret, see resumptionSecret
+	 * @param expiresAt
+	 *            when the server stops accepting the ticket, in local
+	 *            currentTimeMillis
+	 */
+	public ResumptionTicket(int eid, byte[] ticket, byte[] secret, long expiresAt)
+	{
+		this.eid = eid;
+		this.ticket = ticket;
+		this.secret = secret;
+		this.expiresAt = expiresAt;
+	}
+
+	/**
+	 * @return true if the ticket is still worth presenting
+	 */
+	public boolean isValid()
+	{
+		return System.currentTimeMillis() < expiresAt;
+	}
+
+	/**
+	 * @param nonce
+	 *            fresh random bytes, which the server's answer has to cover
+	 * @return the resume message presenting the ticket
+	 * @throws GeneralSecurityException
+	 */
+	public String resumeMessage(byte[] nonce) throws GeneralSecurityException
+	{
+		Base64.Encoder base64 = Base64.getEncoder();
+		String fields = eid + " " + base64.encodeToString(ticket) + " " + base64.encodeToString(nonce);
+		return RESUME + " " + fields + " " + base64.encodeToString(mac(secret, fields));
+	}
+
+	/**
+	 * @param nonce
+	 *            the nonce sent in the resume message
+	 * @param response
+	 *            the server's answer, the verdict then its HMAC
+	 * @return the verdict, or null if the server rejected the ticket or the
+	 *         answer isn't authentic
+	 */
+	public String verifyResponse(byte[] nonce, String response) throws GeneralSecurityException
+	{
+		if (response == null || response.startsWith(REJECTED))
+		{
+			return null;
+		}
+		int split = response.lastIndexOf(' ');
+		if (split < 0)
+		{
+			return null;
+		}
+		String verdict = response.substring(0, split);
+		byte[] mac = Base64.getDecoder().decode(response.substring(split + 1));
+		return MessageDigest.isEqual(mac, verdictMac(secret, nonce, verdict)) ? verdict : null;
+	}
+
+	public int getEid()
+	{
+		return eid;
+	}
+
+	/**
+	 * Derives the secret a ticket is bound to from the attestation's shared
+	 * key, so the shared key itself is never put into a ticket
+	 *
+	 * @param sharedKey
+	 *            the key exchange's shared secret
+	 * @return the resumption secret
+	 * @throws GeneralSecurityException
+	 */
+	public static byte[] resumptionSecret(byte[] sharedKey) throws GeneralSecurityException
+	{
+		return mac(sharedKey, "isv resumption");
+	}
+
+	/**
+	 * @return the HMAC that authenticates a verdict given in answer to a
+	 *         resume message
+	 */
+	public static byte[] verdictMac(byte[] secret, byte[] nonce, String verdict) throws GeneralSecurityException
+	{
+		return mac(secret, "verdict " + Base64.getEncoder().encodeToString(nonce) + " " + verdict);
+	}
+
+	/**
+	 * @return the HMAC-SHA256 of the text under the key
+	 */
+	public static byte[] mac(byte[] key, String text) throws GeneralSecurityException
+	{
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+		return mac.doFinal(text.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,137 @@
+package isv.enclave;
+
+import isv.client.General;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The Generals the enclave will accept authorizations from, indexed by name
+ * for the text protocol and by id for the binary protocol. Both lookups are
+ * constant time, so the roster can hold millions of Generals.
+ *
+ * Ids are small positive integers and are stored in a flat array. Lookups
+ * never lock; adding a General does.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class Roster
+{
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private final ConcurrentHashMap<String, RosterEntry> byName;
+	private volatile RosterEntry[] byId;
+	private int nextId = 1;
+
+	public Roster()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            how many Generals the roster will hold, so it can be sized
+	 *            once up front
+	 */
+	public Roster(int expectedSize)
+	{
+		byName = new ConcurrentHashMap<>(expectedSize);
+		byId = new RosterEntry[expectedSize + 1];
+	}
+
+	/**
+	 * Adds a General, keeping its public key but not its key pair. A General
+	 * without an id is given the next free one.
+	 *
+	 * @param general
+	 *            the General to accept authorizations from
+	 * @return the roster's entry for the General
+	 * @throws IllegalArgumentException
+	 *             if the name or id is already in the roster
+	 */
+	public RosterEntry add(General general)
+	{
+		return add(general.getId(), general.getName(), general.getPub().getEncoded());
+	}
+
+	/**
+	 * @param id
+	 *            the General's id, or 0 for the next free one
+	 * @param name
+	 *            the General's name
+	 * @param encodedPublicKey
+	 *            the General's X.509 encoded RSA public key
+	 * @return the roster's entry for the General
+	 * @throws IllegalArgumentException
+	 *             if the name or id is already in the roster
+	 */
+	public synchronized RosterEntry add(int id, String name, byte[] encodedPublicKey)
+	{
+		if (id < 0)
+		{
+			throw new IllegalArgumentException("Bad General id " + id);
+		}
+		if (id == 0)
+		{
+			id = nextId;
+		}
+		if (id < byId.length && byId[id] != null)
+		{
+			throw new IllegalArgumentException("General id " + id + " is already in the roster");
+		}
+
+		RosterEntry entry = new RosterEntry(id, name, encodedPublicKey);
+		if (byName.putIfAbsent(name, entry) != null)
+		{
+			throw new IllegalArgumentException("General " + name + " is already in the roster");
+		}
+
+		RosterEntry[] entries = byId;
+		if (id >= entries.length)
+		{
+			entries = Arrays.copyOf(entries, Math.max(id + 1, entries.length * 2));
+		}
+		entries[id] = entry;
+		byId = entries;
+
+		nextId = Math.max(nextId, id + 1);
+		return entry;
+	}
+
+	/**
+	 * @return the General with the name, or null if there is none
+	 */
+	public RosterEntry get(String name)
+	{
+		return byName.get(name);
+	}
+
+	/**
+	 * @return the General with the id, or null if there is none
+	 */
+	public RosterEntry get(int id)
+	{
+		RosterEntry[] entries = byId;
+		return id > 0 && id < entries.length ? entries[id] : null;
+	}
+
+	public int size()
+	{
+		return byName.size();
+	}
+
+	/**
+	 * Visits every General in id order
+	 */
+	public void forEach(Consumer<RosterEntry> action)
+	{
+		for (RosterEntry entry : byId)
+		{
+			if (entry != null)
+			{
+				action.accept(entry);
+			}
+		}
+	}
+}
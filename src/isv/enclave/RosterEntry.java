@@ -0,0 +1,89 @@
+package isv.enclave;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * What the enclave keeps about one General: the id and name it is known by,
+ * its encoded public key and whether it has authorized the launch. The key
+ * pair itself never enters the enclave.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class RosterEntry
+{
+	private static final String KEY_ALGORITHM = "RSA";
+
+	private final int id;
+	private final String name;
+	// the name is what the General signs, so keep it ready to verify
+	private final byte[] nameBytes;
+	private final byte[] encodedPublicKey;
+	private volatile int hasAuthorized;
+
+	private static final AtomicIntegerFieldUpdater<RosterEntry> HAS_AUTHORIZED = AtomicIntegerFieldUpdater
+			.newUpdater(RosterEntry.class, "hasAuthorized");
+
+	RosterEntry(int id, String name, byte[] encodedPublicKey)
+	{
+		this.id = id;
+		this.name = name;
+		this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		this.encodedPublicKey = encodedPublicKey;
+	}
+
+	public int getId()
+	{
+		return id;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return the name as the General signs it
+	 */
+	byte[] getNameBytes()
+	{
+		return nameBytes;
+	}
+
+	public byte[] getEncodedPublicKey()
+	{
+		return encodedPublicKey;
+	}
+
+	/**
+	 * @return the General's public key, decoded once and shared through the
+	 *         SignatureVerifier
+	 * @throws GeneralSecurityException
+	 */
+	public PublicKey getPublicKey() throws GeneralSecurityException
+	{
+		return SignatureVerifier.decodePublicKey(KEY_ALGORITHM, encodedPublicKey);
+	}
+
+	public boolean hasAuthorized()
+	{
+		return hasAuthorized != 0;
+	}
+
+	public void setHasAuthorized(boolean hasAuthorized)
+	{
+		this.hasAuthorized = hasAuthorized ? 1 : 0;
+	}
+
+	/**
+	 * Atomically marks the General as having authorized the launch
+	 * 
+	 * @return true if this call marked it, false if it already had authorized
+	 */
+	public boolean markAuthorized()
+	{
+		return HAS_AUTHORIZED.compareAndSet(this, 0, 1);
+	}
+}
@@ -0,0 +1,368 @@
+package isv.enclave;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Persists an enclave's state, its authorization count and its roster with
+ * every General's hasAuthorized flag, as sealed snapshots in a memory mapped
+ * file, so a restarted enclave carries on where it left off.
+ *
+ * The file is a header followed by records, each sealed on its own with
+ * Enclave.sgx_seal_data. The first record is a full snapshot; every later one
+ * is incremental and only holds the authorization count, the Generals added
+ * since and the flags that changed, so saving a large roster costs little
+ * once it has been written. After enough incremental records the file is
+ * compacted into a single full snapshot, written aside and renamed over it.
+ *
+ * Each record is authenticated together with the file's random id and its
+ * position in the file, so records can't be reordered, dropped from the
+ * middle or moved between files. A record cut short by a crash ends the
+ * file and is cut off.
+ *
+ * A snapshot taken while ecalls run may catch an ecall half way, just as an
+ * interrupt could; the vulnerable state machine is never atomic anyway.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class SealedSnapshot implements Closeable
+{
+	private static final int MAGIC = 0x53454131;
+	private static final int FILE_ID_LENGTH = 16;
+	private static final int HEADER_LENGTH = 4 + FILE_ID_LENGTH;
+	private static final byte FULL = 1;
+	private static final byte DELTA = 2;
+	// incremental records written before the file is compacted
+	private static final int MAX_DELTAS = 64;
+	private static final byte[] ASSOCIATED_DATA = "isv snapshot v1".getBytes(StandardCharsets.UTF_8);
+
+	private final File file;
+	private final SecureRandom random = new SecureRandom();
+	private FileChannel channel;
+	private byte[] fileId;
+	// where the next record goes, and its index
+	private long end;
+	private long records;
+
+	// what the file already holds, so the next record only has the changes
+	private int savedAuthCount = -1;
+	private final BitSet savedGenerals = new BitSet();
+	private final BitSet savedFlags = new BitSet();
+
+	/**
+	 * @param file
+	 *            the snapshot file, created on the first save
+	 */
+	public SealedSnapshot(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Restores the enclave from the file, replacing its roster
+	 *
+	 * @param enclave
+	 *            the enclave to restore
+	 * @return true if the file held a snapshot
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 *             if the file was sealed with other fuse keys
+	 */
+	public synchronized boolean restore(Enclave enclave) throws IOException, GeneralSecurityException
+	{
+		if (!file.isFile() || file.length() == 0)
+		{
+			return false;
+		}
+		// snapshots are written whole and renamed into place, so a short file
+		// is someone else's
+		if (file.length() < HEADER_LENGTH)
+		{
+			throw new IOException(file + " is not an enclave snapshot");
+		}
+
+		open();
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		if (mapped.getInt() != MAGIC)
+		{
+			throw new IOException(file + " is not an enclave snapshot");
+		}
+		fileId = new byte[FILE_ID_LENGTH];
+		mapped.get(fileId);
+
+		Roster roster = null;
+		int authCount = 0;
+		records = 0;
+		while (mapped.remaining() >= 4)
+		{
+			int start = mapped.position();
+			int length = mapped.getInt();
+			if (length <= 0 || length > mapped.remaining())
+			{
+				mapped.position(start);
+				break;
+			}
+			byte[] sealed = new byte[length];
+			mapped.get(sealed);
+
+			ByteBuffer record;
+			try
+			{
+				record = ByteBuffer.wrap(Enclave.sgx_unseal_data(associatedData(records), sealed));
+			} catch (GeneralSecurityException e)
+			{
+				if (records == 0)
+				{
+					throw new GeneralSecurityException("Could not unseal " + file + ", are the fuse keys the same?");
+				}
+				// a torn write at the end of the file
+				mapped.position(start);
+				break;
+			}
+
+			byte type = record.get();
+			if (type == FULL)
+			{
+				roster = new Roster();
+				savedGenerals.clear();
+				savedFlags.clear();
+			} else if (type != DELTA || roster == null)
+			{
+				throw new IOException("Bad record " + records + " in " + file);
+			}
+			authCount = record.getInt();
+			readGenerals(record, roster);
+			readFlags(record, roster);
+			records++;
+		}
+
+		end = mapped.position();
+		if (end < channel.size())
+		{
+			System.out.println("Cutting off " + (channel.size() - end) + " bytes of a partly written snapshot");
+			channel.truncate(end);
+		}
+		if (roster == null)
+		{
+			return false;
+		}
+		enclave.setRoster(roster);
+		enclave.setAuthCount(authCount);
+		savedAuthCount = authCount;
+		return true;
+	}
+
+	/**
+	 * Writes what changed in the enclave since the last save
+	 *
+	 * @param enclave
+	 *            the enclave to save
+	 * @return true if anything had changed
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public synchronized boolean save(Enclave enclave) throws IOException, GeneralSecurityException
+	{
+		try
+		{
+			return write(enclave);
+		} catch (IOException | GeneralSecurityException | RuntimeException e)
+		{
+			// what the file holds is unknown now, so start again from a full
+			// snapshot
+			records = 0;
+			throw e;
+		}
+	}
+
+	private boolean write(Enclave enclave) throws IOException, GeneralSecurityException
+	{
+		if (channel == null || records == 0 || records > MAX_DELTAS)
+		{
+			writeFull(enclave);
+			return true;
+		}
+
+		int authCount = enclave.getAuthCount();
+		List<RosterEntry> added = new ArrayList<>();
+		List<RosterEntry> flipped = new ArrayList<>();
+		enclave.getRoster().forEach(entry -> {
+			if (!savedGenerals.get(entry.getId()))
+			{
+				added.add(entry);
+			} else if (entry.hasAuthorized() != savedFlags.get(entry.getId()))
+			{
+				flipped.add(entry);
+			}
+		});
+		if (authCount == savedAuthCount && added.isEmpty() && flipped.isEmpty())
+		{
+			return false;
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(1 + 4 + generalsLength(added) + 4 + flipped.size() * 5);
+		record.put(DELTA).putInt(authCount);
+		writeGenerals(record, added);
+		record.putInt(flipped.size());
+		for (RosterEntry entry : flipped)
+		{
+			boolean flag = entry.hasAuthorized();
+			record.putInt(entry.getId()).put((byte) (flag ? 1 : 0));
+			savedFlags.set(entry.getId(), flag);
+		}
+		append(record.array());
+		savedAuthCount = authCount;
+		return true;
+	}
+
+	/**
+	 * Writes the whole enclave as one record in a fresh file, then moves it
+	 * over the old one
+	 */
+	private void writeFull(Enclave enclave) throws IOException, GeneralSecurityException
+	{
+		List<RosterEntry> generals = new ArrayList<>();
+		enclave.getRoster().forEach(generals::add);
+		int authCount = enclave.getAuthCount();
+		savedGenerals.clear();
+		savedFlags.clear();
+
+		ByteBuffer record = ByteBuffer.allocate(1 + 4 + generalsLength(generals) + 4);
+		record.put(FULL).putInt(authCount);
+		writeGenerals(record, generals);
+		record.putInt(0);
+
+		close();
+		File absolute = file.getAbsoluteFile();
+		File temp = File.createTempFile(absolute.getName(), ".tmp", absolute.getParentFile());
+		channel = FileChannel.open(temp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		fileId = new byte[FILE_ID_LENGTH];
+		random.nextBytes(fileId);
+		MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+		header.putInt(MAGIC).put(fileId);
+		header.force();
+		end = HEADER_LENGTH;
+		records = 0;
+		append(record.array());
+		Files.move(temp.toPath(), absolute.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		savedAuthCount = authCount;
+	}
+
+	private void append(byte[] record) throws IOException, GeneralSecurityException
+	{
+		byte[] sealed = Enclave.sgx_seal_data(associatedData(records), record);
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, end, 4 + sealed.length);
+		mapped.putInt(sealed.length).put(sealed);
+		mapped.force();
+		end += 4 + sealed.length;
+		records++;
+	}
+
+	private byte[] associatedData(long index)
+	{
+		return ByteBuffer.allocate(ASSOCIATED_DATA.length + FILE_ID_LENGTH + 8).put(ASSOCIATED_DATA).put(fileId)
+				.putLong(index).array();
+	}
+
+	private static int generalsLength(List<RosterEntry> generals)
+	{
+		int length = 4;
+		for (RosterEntry entry : generals)
+		{
+			length += 4 + 1 + 2 + entry.getNameBytes().length + 2 + entry.getEncodedPublicKey().length;
+		}
+		return length;
+	}
+
+	private void writeGenerals(ByteBuffer record, List<RosterEntry> generals)
+	{
+		record.putInt(generals.size());
+		for (RosterEntry entry : generals)
+		{
+			byte[] name = entry.getNameBytes();
+			byte[] key = entry.getEncodedPublicKey();
+			boolean flag = entry.hasAuthorized();
+			record.putInt(entry.getId()).put((byte) (flag ? 1 : 0));
+			record.putShort((short) name.length).put(name);
+			record.putShort((short) key.length).put(key);
+			savedGenerals.set(entry.getId());
+			savedFlags.set(entry.getId(), flag);
+		}
+	}
+
+	private void readGenerals(ByteBuffer record, Roster roster) throws IOException
+	{
+		try
+		{
+			for (int count = record.getInt(); count > 0; count--)
+			{
+				int id = record.getInt();
+				boolean flag = record.get() != 0;
+				byte[] name = new byte[record.getShort() & 0xFFFF];
+				record.get(name);
+				byte[] key = new byte[record.getShort() & 0xFFFF];
+				record.get(key);
+				// the keys stay encoded until a General's first ecall
+				roster.add(id, new String(name, StandardCharsets.UTF_8), key).setHasAuthorized(flag);
+				savedGenerals.set(id);
+				savedFlags.set(id, flag);
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e)
+		{
+			throw new IOException("Corrupt roster in " + file, e);
+		}
+	}
+
+	private void readFlags(ByteBuffer record, Roster roster) throws IOException
+	{
+		try
+		{
+			for (int count = record.getInt(); count > 0; count--)
+			{
+				int id = record.getInt();
+				boolean flag = record.get() != 0;
+				RosterEntry entry = roster.get(id);
+				if (entry == null)
+				{
+					throw new IOException("Snapshot flags unknown General " + id);
+				}
+				entry.setHasAuthorized(flag);
+				savedFlags.set(id, flag);
+			}
+		} catch (BufferUnderflowException e)
+		{
+			throw new IOException("Corrupt flags in " + file, e);
+		}
+	}
+
+	private void open() throws IOException
+	{
+		if (channel == null)
+		{
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+	}
+
+	public synchronized void close() throws IOException
+	{
+		if (channel != null)
+		{
+			channel.close();
+			channel = null;
+		}
+	}
+}
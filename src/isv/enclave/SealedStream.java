@@ -0,0 +1,253 @@
+package isv.enclave;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Streaming encryption under the enclave's sealing key, for payloads of any
+ * size. The plaintext is cut into chunks and each chunk is sealed with
+ * AES-GCM on its own, so neither side ever holds more than a chunk and a
+ * stream can be gigabytes long. A stream is a header then its chunks:
+ *
+ * <pre>
+ * [version, 1 byte] [chunk size, 4] [salt, 16]
+ * [chunk 0 ciphertext, chunk size] [tag, 16] ... [last chunk, up to chunk size] [tag, 16]
+ * </pre>
+ *
+ * Every stream is encrypted with its own AES key, derived from the sealing key
+ * and the header, so a random salt keeps keys from repeating and the header
+ * can't be changed. The nonce of a chunk is its index and whether it is the
+ * last, so chunks can't be reordered, dropped or the stream cut short
+ * without decryption failing.
+ *
+ * Like a Cipher, a SealedStream encrypts or decrypts, and is reused for one
+ * stream after another by calling start again. It works on ByteBuffers in
+ * place, chunk by chunk straight from the input buffer to the output buffer;
+ * with direct buffers the plaintext is never copied onto the heap. It is not
+ * thread safe.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public final class SealedStream
+{
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+	public static final int TAG_LENGTH = 16;
+	private static final byte VERSION = 1;
+	private static final int SALT_LENGTH = 16;
+	public static final int HEADER_LENGTH = 1 + 4 + SALT_LENGTH;
+
+	private static final String CIPHER = "AES/GCM/NoPadding";
+	private static final int NONCE_LENGTH = 12;
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final boolean encrypting;
+	private final Cipher cipher;
+	private final Mac keyDerivation;
+	private final byte[] header = new byte[HEADER_LENGTH];
+	private final byte[] nonce = new byte[NONCE_LENGTH];
+
+	private SecretKeySpec key;
+	private int chunkSize;
+	// index of the next chunk, -1 before start and after finish
+	private long chunk = -1;
+
+	private SealedStream(boolean encrypting, int chunkSize) throws GeneralSecurityException
+	{
+		this.encrypting = encrypting;
+		this.chunkSize = chunkSize;
+		this.cipher = Cipher.getInstance(CIPHER);
+		this.keyDerivation = Mac.getInstance("HmacSHA256");
+		keyDerivation.init(Enclave.streamKey());
+	}
+
+	/**
+	 * @param chunkSize
+	 *            plaintext bytes per chunk, up to MAX_CHUNK_SIZE. Bigger chunks
+	 *            cost less per byte, smaller ones less memory when decrypting
+	 * @return a SealedStream that encrypts
+	 * @throws GeneralSecurityException
+	 */
+	public static SealedStream encryptor(int chunkSize) throws GeneralSecurityException
+	{
+		if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE)
+		{
+			throw new IllegalArgumentException("Bad chunk size " + chunkSize);
+		}
+		return new SealedStream(true, chunkSize);
+	}
+
+	/**
+	 * @return a SealedStream that decrypts, taking the chunk size from each
+	 *         stream's header
+	 * @throws GeneralSecurityException
+	 */
+	public static SealedStream decryptor() throws GeneralSecurityException
+	{
+		return new SealedStream(false, 0);
+	}
+
+	/**
+	 * @param plainLength
+	 *            bytes of plaintext
+	 * @param chunkSize
+	 *            the stream's chunk size
+	 * @return the length of the whole stream, header included
+	 */
+	public static long sealedLength(long plainLength, int chunkSize)
+	{
+		long chunks = Math.max(1, (plainLength + chunkSize - 1) / chunkSize);
+		return HEADER_LENGTH + plainLength + chunks * TAG_LENGTH;
+	}
+
+	/**
+	 * Starts a stream. An encryptor writes the header to the buffer, which
+	 * needs HEADER_LENGTH bytes of room; a decryptor reads it from the buffer.
+	 *
+	 * @param buffer
+	 *            the encryptor's output or the decryptor's input
+	 * @return false if a decryptor's buffer doesn't hold the whole header yet,
+	 *         in which case nothing was read
+	 * @throws GeneralSecurityException
+	 *             if the header is not a stream header
+	 */
+	public boolean start(ByteBuffer buffer) throws GeneralSecurityException
+	{
+		if (encrypting)
+		{
+			if (buffer.remaining() < HEADER_LENGTH)
+			{
+				throw new ShortBufferException("The header needs " + HEADER_LENGTH + " bytes");
+			}
+			ByteBuffer fields = ByteBuffer.wrap(header);
+			fields.put(VERSION).putInt(chunkSize);
+			byte[] salt = new byte[SALT_LENGTH];
+			RANDOM.nextBytes(salt);
+			fields.put(salt);
+			buffer.put(header);
+		} else
+		{
+			if (buffer.remaining() < HEADER_LENGTH)
+			{
+				return false;
+			}
+			buffer.get(header);
+			int size = header[0] == VERSION ? ByteBuffer.wrap(header).getInt(1) : -1;
+			if (size < 1 || size > MAX_CHUNK_SIZE)
+			{
+				throw new GeneralSecurityException("Not a sealed stream");
+			}
+			chunkSize = size;
+		}
+
+		// the header is bound into the key, so changing it changes the key
+		byte[] derived = keyDerivation.doFinal(header);
+		key = new SecretKeySpec(derived, 0, 16, "AES");
+		chunk = 0;
+		return true;
+	}
+
+	/**
+	 * Encrypts or decrypts every whole chunk in the input that is not the
+	 * last one. What is left, less than a chunk or the chunk that might be the
+	 * last, stays in the input for the next call to update or finish, so the
+	 * caller should compact the input, read more into it and call again.
+	 *
+	 * @param in
+	 *            the plaintext or stream, in read mode
+	 * @param out
+	 *            receives the stream or plaintext, with room for the chunks
+	 * @throws ShortBufferException
+	 *             if the output has no room for the next chunk, in which case
+	 *             the caller should drain it and call again
+	 * @throws AEADBadTagException
+	 *             if a chunk was changed, reordered or doesn't belong here
+	 * @throws GeneralSecurityException
+	 */
+	public void update(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException
+	{
+		checkStarted();
+		int inputChunk = encrypting ? chunkSize : chunkSize + TAG_LENGTH;
+		while (in.remaining() > inputChunk)
+		{
+			process(in, out, inputChunk, false);
+		}
+	}
+
+	/**
+	 * Encrypts or decrypts the rest of the stream, all of which must be in the
+	 * input, ending it with its last chunk
+	 *
+	 * @throws ShortBufferException
+	 *             if the output has no room, in which case the caller should
+	 *             drain it and call again
+	 * @throws AEADBadTagException
+	 *             if the stream was changed or cut short
+	 * @see #update(ByteBuffer, ByteBuffer)
+	 */
+	public void finish(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException
+	{
+		update(in, out);
+		if (!encrypting && in.remaining() < TAG_LENGTH)
+		{
+			throw new AEADBadTagException("The sealed stream was cut short");
+		}
+		process(in, out, in.remaining(), true);
+		chunk = -1;
+	}
+
+	private void process(ByteBuffer in, ByteBuffer out, int length, boolean last) throws GeneralSecurityException
+	{
+		int outputLength = encrypting ? length + TAG_LENGTH : length - TAG_LENGTH;
+		if (out.remaining() < outputLength)
+		{
+			throw new ShortBufferException("The next chunk needs " + outputLength + " bytes of output");
+		}
+		if (chunk > 0xFFFFFFFFL)
+		{
+			throw new GeneralSecurityException("Sealed stream is too long for its chunk size");
+		}
+
+		// the nonce is the chunk index and whether it is the last one
+		nonce[7] = (byte) (chunk >>> 24);
+		nonce[8] = (byte) (chunk >>> 16);
+		nonce[9] = (byte) (chunk >>> 8);
+		nonce[10] = (byte) chunk;
+		nonce[11] = (byte) (last ? 1 : 0);
+		cipher.init(encrypting ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key,
+				new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+
+		// hand the cipher exactly one chunk, without slicing the buffer
+		int limit = in.limit();
+		in.limit(in.position() + length);
+		try
+		{
+			cipher.doFinal(in, out);
+		} finally
+		{
+			in.limit(limit);
+		}
+		chunk++;
+	}
+
+	private void checkStarted()
+	{
+		if (chunk < 0)
+		{
+			throw new IllegalStateException("The stream has not been started");
+		}
+	}
+
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+}
@@ -0,0 +1,408 @@
+package isv.enclave;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An encrypted ecall connection between a General and the enclave. The
+ * connection opens with the key exchange of remote attestation, msg1 to msg3,
+ * with the General in the service provider's place: both sides send their
+ * ephemeral key exchange values and the enclave answers with its quote. Both
+ * then derive the session keys from the shared secret with HKDF-SHA256, one
+ * AES-128 key for each direction, salted with the handshake's transcript.
+ *
+ * <pre>
+ * hello:  magic(1) length(4) nonce(16) exchange-name-length(1) exchange-name key
+ * accept: magic(1) length(4) nonce(16) key-length(2) key quote
+ * </pre>
+ *
+ * Every request and response after that, text line or EcallFrame, is sealed
+ * on its own with AES-GCM into a record:
+ *
+ * <pre>
+ * record: length(4) ciphertext tag(16)
+ * </pre>
+ *
+ * The nonce of a record is the number of records sent before it in the same
+ * direction, so records can't be replayed, dropped or reordered without
+ * opening failing, and a nonce never repeats under a key. Each direction keeps
+ * its Cipher and buffers for the life of the connection, so a record costs an
+ * AES-GCM pass over a few hundred bytes and nothing more.
+ *
+ * The transcript is the SHA-256 of both nonces, the exchange's name and both
+ * key exchange values. The enclave signs a quote for each connection with the
+ * transcript as its report data, so the quote vouches for this enclave's key
+ * in this handshake and can't be replayed into another one. The General checks
+ * it against the platform's attestation key, as exported by QuoteSigner, and
+ * refuses the channel if it doesn't hold.
+ *
+ * A SecureChannel is not thread safe, but one thread may write records while
+ * another reads them.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public final class SecureChannel
+{
+	/** the first byte of a hello, which can never start a text request */
+	public static final byte MAGIC = (byte) 0xE5;
+	public static final int TAG_LENGTH = 16;
+	private static final int NONCE_LENGTH = 16;
+	private static final int MAX_HANDSHAKE_LENGTH = 8192;
+	private static final int MAX_RECORD_LENGTH = EcallFrame.HEADER_LENGTH + EcallFrame.MAX_FRAME_LENGTH + TAG_LENGTH;
+
+	private static final String CIPHER = "AES/GCM/NoPadding";
+	private static final int GCM_NONCE_LENGTH = 12;
+	private static final byte[] CLIENT_TO_ENCLAVE = "isv ecall client to enclave".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ENCLAVE_TO_CLIENT = "isv ecall enclave to client".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRANSCRIPT = "isv secure channel transcript".getBytes(StandardCharsets.US_ASCII);
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final Direction sending;
+	private final Direction receiving;
+	private final byte[] quote;
+
+	// the plaintext of the last record read
+	private ByteBuffer opened = ByteBuffer.allocate(512);
+
+	/**
+	 * One direction of the channel: its key, its cipher, a buffer for its
+	 * records and how many it has carried
+	 */
+	private static final class Direction
+	{
+		private final SecretKeySpec key;
+		private final Cipher cipher;
+		private final byte[] nonce = new byte[GCM_NONCE_LENGTH];
+		private byte[] record = new byte[512];
+		private long records;
+
+		Direction(byte[] key) throws GeneralSecurityException
+		{
+			this.key = new SecretKeySpec(key, "AES");
+			this.cipher = Cipher.getInstance(CIPHER);
+		}
+
+		Cipher next(int mode) throws GeneralSecurityException
+		{
+			if (records < 0)
+			{
+				throw new GeneralSecurityException("The secure channel has carried too many records");
+			}
+			// the nonce is the record's number in this direction
+			long count = records++;
+			for (int i = GCM_NONCE_LENGTH - 1; i >= GCM_NONCE_LENGTH - 8; i--)
+			{
+				nonce[i] = (byte) count;
+				count >>>= 8;
+			}
+			cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+			return cipher;
+		}
+
+		byte[] record(int length)
+		{
+			if (record.length < length)
+			{
+				record = new byte[Math.max(length, record.length * 2)];
+			}
+			return record;
+		}
+	}
+
+	private SecureChannel(byte[] sharedSecret, byte[] transcript, boolean enclave, byte[] quote)
+			throws GeneralSecurityException
+	{
+		Mac prk = extract(transcript, sharedSecret);
+		Direction toEnclave = new Direction(expand(prk, CLIENT_TO_ENCLAVE, 16));
+		Direction toClient = new Direction(expand(prk, ENCLAVE_TO_CLIENT, 16));
+		this.sending = enclave ? toClient : toEnclave;
+		this.receiving = enclave ? toEnclave : toClient;
+		this.quote = quote;
+	}
+
+	/**
+	 * Opens a secure channel from the General's side, sending the hello and
+	 * waiting for the enclave to accept it
+	 *
+	 * @param in
+	 *            the connection from the enclave
+	 * @param out
+	 *            the connection to the enclave, flushed once the hello is
+	 *            written
+	 * @param exchange
+	 *            the key exchange to run
+	 * @param attestationKey
+	 *            the platform's attestation key, which the enclave's quote
+	 *            must be signed with
+	 * @return the channel, keyed
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 *             if the key exchange failed or the quote does not vouch for
+	 *             it
+	 */
+	public static SecureChannel connect(DataInputStream in, DataOutputStream out, KeyExchange exchange,
+			PublicKey attestationKey) throws IOException, GeneralSecurityException
+	{
+		if (attestationKey == null)
+		{
+			throw new GeneralSecurityException("No attestation key to check the enclave's quote with");
+		}
+		KeyPair pair = exchange.generateKeyPair();
+		byte[] key = pair.getPublic().getEncoded();
+		byte[] name = exchange.getName().getBytes(StandardCharsets.US_ASCII);
+		byte[] clientNonce = new byte[NONCE_LENGTH];
+		RANDOM.nextBytes(clientNonce);
+
+		out.writeByte(MAGIC);
+		out.writeInt(NONCE_LENGTH + 1 + name.length + key.length);
+		out.write(clientNonce);
+		out.writeByte(name.length);
+		out.write(name);
+		out.write(key);
+		out.flush();
+
+		int magic = in.read();
+		if (magic < 0)
+		{
+			throw new EOFException("The enclave closed the connection instead of accepting a secure channel");
+		}
+		if ((byte) magic != MAGIC)
+		{
+			throw new ProtocolException("Expected the enclave to accept a secure channel");
+		}
+		ByteBuffer accept = ByteBuffer.wrap(readHandshake(in));
+		byte[] enclaveNonce = new byte[NONCE_LENGTH];
+		byte[] enclaveKey;
+		byte[] quote;
+		try
+		{
+			accept.get(enclaveNonce);
+			enclaveKey = new byte[accept.getShort() & 0xFFFF];
+			accept.get(enclaveKey);
+			quote = new byte[accept.remaining()];
+			accept.get(quote);
+		} catch (RuntimeException e)
+		{
+			throw new ProtocolException("Malformed secure channel accept");
+		}
+
+		byte[] transcript = transcript(clientNonce, name, key, enclaveNonce, enclaveKey);
+		if (!QuoteSigner.verify(attestationKey, quote, transcript))
+		{
+			throw new GeneralSecurityException("The enclave's quote does not vouch for this handshake");
+		}
+		byte[] secret = exchange.agree(pair.getPrivate(), exchange.decodePublicKey(enclaveKey));
+		return new SecureChannel(secret, transcript, false, quote);
+	}
+
+	/**
+	 * Accepts a secure channel on the enclave's side, once the hello's magic
+	 * byte has been read, and writes the answer. The enclave's attestation
+	 * state is left alone, so every connection runs its own exchange.
+	 *
+	 * @param enclave
+	 *            the enclave the General is talking to, which quotes itself
+	 * @param in
+	 *            the connection from the General, after the magic byte
+	 * @param out
+	 *            the connection to the General, flushed once the answer is
+	 *            written
+	 * @return the channel, keyed
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 *             if the key exchange failed
+	 */
+	public static SecureChannel accept(Enclave enclave, DataInputStream in, DataOutputStream out)
+			throws IOException, GeneralSecurityException
+	{
+		ByteBuffer hello = ByteBuffer.wrap(readHandshake(in));
+		byte[] clientNonce = new byte[NONCE_LENGTH];
+		byte[] name;
+		byte[] clientKey;
+		KeyExchange exchange;
+		try
+		{
+			hello.get(clientNonce);
+			name = new byte[hello.get() & 0xFF];
+			hello.get(name);
+			clientKey = new byte[hello.remaining()];
+			hello.get(clientKey);
+			exchange = KeyExchange.negotiate(KeyExchange.available(),
+					Arrays.asList(new String(name, StandardCharsets.US_ASCII)));
+		} catch (RuntimeException e)
+		{
+			throw new ProtocolException("Malformed secure channel hello");
+		}
+		if (exchange == null)
+		{
+			throw new ProtocolException("The General asked for a key exchange the enclave doesn't support");
+		}
+
+		// the same exchange as sgx_ra_proc_msg2, with a key pair of the
+		// connection's own
+		KeyPair pair = exchange.generateKeyPair();
+		byte[] secret = exchange.agree(pair.getPrivate(), exchange.decodePublicKey(clientKey));
+		byte[] key = pair.getPublic().getEncoded();
+		byte[] enclaveNonce = new byte[NONCE_LENGTH];
+		RANDOM.nextBytes(enclaveNonce);
+		// a quote of the connection's own, vouching for this handshake only
+		byte[] transcript = transcript(clientNonce, name, clientKey, enclaveNonce, key);
+		byte[] quote = enclave.GetQuote(transcript);
+		if (quote == null)
+		{
+			throw new GeneralSecurityException("The enclave could not quote itself");
+		}
+
+		out.writeByte(MAGIC);
+		out.writeInt(NONCE_LENGTH + 2 + key.length + quote.length);
+		out.write(enclaveNonce);
+		out.writeShort(key.length);
+		out.write(key);
+		out.write(quote);
+		out.flush();
+		return new SecureChannel(secret, transcript, true, quote);
+	}
+
+	/**
+	 * @return the SHA-256 of everything both sides sent in the handshake, the
+	 *         variable length parts prefixed with their lengths
+	 */
+	private static byte[] transcript(byte[] clientNonce, byte[] exchangeName, byte[] clientKey, byte[] enclaveNonce,
+			byte[] enclaveKey) throws GeneralSecurityException
+	{
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update(TRANSCRIPT);
+		digest.update(clientNonce);
+		for (byte[] part : new byte[][] { exchangeName, clientKey })
+		{
+			digest.update(ByteBuffer.allocate(4).putInt(part.length).array());
+			digest.update(part);
+		}
+		digest.update(enclaveNonce);
+		digest.update(ByteBuffer.allocate(4).putInt(enclaveKey.length).array());
+		digest.update(enclaveKey);
+		return digest.digest();
+	}
+
+	private static byte[] readHandshake(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length <= NONCE_LENGTH || length > MAX_HANDSHAKE_LENGTH)
+		{
+			throw new ProtocolException("Bad secure channel handshake length " + length);
+		}
+		byte[] message = new byte[length];
+		in.readFully(message);
+		return message;
+	}
+
+	/**
+	 * HKDF-Extract of RFC 5869
+	 *
+	 * @return the HMAC keyed with the pseudorandom key
+	 */
+	private static Mac extract(byte[] salt, byte[] secret) throws GeneralSecurityException
+	{
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+		byte[] prk = mac.doFinal(secret);
+		mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+		return mac;
+	}
+
+	/**
+	 * HKDF-Expand of RFC 5869, for keys no longer than one hash
+	 */
+	private static byte[] expand(Mac prk, byte[] info, int length)
+	{
+		prk.update(info);
+		prk.update((byte) 1);
+		return Arrays.copyOf(prk.doFinal(), length);
+	}
+
+	/**
+	 * Seals a request or response into one record and writes it, without
+	 * flushing
+	 *
+	 * @param plain
+	 *            the plaintext, in read mode, which is consumed
+	 * @param out
+	 *            the connection
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public void write(ByteBuffer plain, DataOutputStream out) throws IOException, GeneralSecurityException
+	{
+		int length = plain.remaining() + TAG_LENGTH;
+		if (length > MAX_RECORD_LENGTH)
+		{
+			throw new ProtocolException("Record too long");
+		}
+		byte[] record = sending.record(length);
+		int sealed = sending.next(Cipher.ENCRYPT_MODE).doFinal(plain, ByteBuffer.wrap(record));
+		out.writeInt(sealed);
+		out.write(record, 0, sealed);
+	}
+
+	/**
+	 * Reads the next record and opens it
+	 *
+	 * @param in
+	 *            the connection
+	 * @return the plaintext in read mode, valid until the next read, or null
+	 *         if the peer closed the connection between records
+	 * @throws IOException
+	 * @throws javax.crypto.AEADBadTagException
+	 *             if the record was changed, replayed or is out of order
+	 * @throws GeneralSecurityException
+	 */
+	public ByteBuffer read(DataInputStream in) throws IOException, GeneralSecurityException
+	{
+		int first = in.read();
+		if (first < 0)
+		{
+			return null;
+		}
+		int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedShort());
+		if (length < TAG_LENGTH || length > MAX_RECORD_LENGTH)
+		{
+			throw new ProtocolException("Bad record length " + length);
+		}
+		byte[] record = receiving.record(length);
+		in.readFully(record, 0, length);
+
+		if (opened.capacity() < length - TAG_LENGTH)
+		{
+			opened = ByteBuffer.allocate(length);
+		}
+		opened.clear();
+		receiving.next(Cipher.DECRYPT_MODE).doFinal(record, 0, length, opened.array(), 0);
+		opened.limit(length - TAG_LENGTH);
+		return opened;
+	}
+
+	/**
+	 * @return the enclave's quote from the handshake, carrying the transcript
+	 *         as its report data
+	 */
+	public byte[] getQuote()
+	{
+		return quote.clone();
+	}
+}
@@ -0,0 +1,160 @@
+package isv.enclave;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The service provider keys enclaves have been given, cached by fingerprint.
+ * The ISV server holds one long lived signing key and sends its public half
+ * with its answer to msg0, unless the enclave's msg0 named that key's
+ * fingerprint with sp=[fingerprint], so an enclave only receives the key the
+ * first time. Every msg2 is signed with the key, and the enclave checks the
+ * signature before using the server's key exchange value.
+ *
+ * Trust is on first use: the first key received is trusted, and from then on
+ * a key with any other fingerprint is rejected, so whoever is in the path
+ * can't swap in a key of their own and sign msg2 with it. Moving to a new key
+ * takes an explicit rotate by the operator. Setting the isv.spKey.fingerprint
+ * system property pins the one key enclaves accept from the start, as a real
+ * enclave would have it built in.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public final class ServiceProviderKeys
+{
+	public static final String KEY_ALGORITHM = "DSA";
+	public static final String SIGNATURE_ALGORITHM = "SHA256withDSA";
+
+	private static final String PINNED = System.getProperty("isv.spKey.fingerprint", "");
+	private static final ConcurrentHashMap<String, PublicKey> KEYS = new ConcurrentHashMap<>();
+	// the fingerprint of the one key accepted, null until the first is received
+	private static String trusted = PINNED.isEmpty() ? null : PINNED;
+
+	private ServiceProviderKeys()
+	{
+	}
+
+	/**
+	 * @param encodedKey
+	 *            an X.509 encoded public key
+	 * @return the Base64 encoded SHA-256 of the key
+	 */
+	public static String fingerprint(byte[] encodedKey)
+	{
+		try
+		{
+			return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(encodedKey));
+		} catch (NoSuchAlgorithmException e)
+		{
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the fingerprint of the key to name in msg0, or null if no key has
+	 *         been received yet
+	 */
+	public static synchronized String current()
+	{
+		return trusted != null && KEYS.containsKey(trusted) ? trusted : null;
+	}
+
+	/**
+	 * @return the trusted key if it has the fingerprint, or null
+	 */
+	public static PublicKey get(String fingerprint)
+	{
+		return fingerprint == null ? null : KEYS.get(fingerprint);
+	}
+
+	/**
+	 * Accepts a key the server sent if it is the trusted key, or trusts it if
+	 * no key is trusted yet
+	 *
+	 * @param encodedKey
+	 *            the server's X.509 encoded public key
+	 * @return the key
+	 * @throws GeneralSecurityException
+	 *             if the key can't be decoded or isn't the trusted key
+	 */
+	public static synchronized PublicKey add(byte[] encodedKey) throws GeneralSecurityException
+	{
+		String fingerprint = fingerprint(encodedKey);
+		if (trusted != null && !trusted.equals(fingerprint))
+		{
+			throw new GeneralSecurityException("Service provider key " + fingerprint + " is not the trusted key "
+					+ trusted + (PINNED.isEmpty() ? ", rotate to it to trust it" : ""));
+		}
+		return trust(fingerprint, encodedKey);
+	}
+
+	/**
+	 * Trusts a new service provider key in place of the old one, for an
+	 * operator moving the server to a new key. The pinned key, if there is
+	 * one, can't be rotated.
+	 *
+	 * @param encodedKey
+	 *            the new X.509 encoded public key
+	 * @return the key
+	 * @throws GeneralSecurityException
+	 *             if the key can't be decoded or a key is pinned
+	 */
+	public static synchronized PublicKey rotate(byte[] encodedKey) throws GeneralSecurityException
+	{
+		String fingerprint = fingerprint(encodedKey);
+		if (!PINNED.isEmpty() && !PINNED.equals(fingerprint))
+		{
+			throw new GeneralSecurityException("Service provider key " + fingerprint + " is not the pinned key");
+		}
+		return trust(fingerprint, encodedKey);
+	}
+
+	private static PublicKey trust(String fingerprint, byte[] encodedKey) throws GeneralSecurityException
+	{
+		PublicKey key = KEYS.get(fingerprint);
+		if (key == null)
+		{
+			key = KeyFactory.getInstance(KEY_ALGORITHM).generatePublic(new X509EncodedKeySpec(encodedKey));
+			// only the trusted key is ever kept
+			KEYS.clear();
+			KEYS.put(fingerprint, key);
+		}
+		trusted = fingerprint;
+		return key;
+	}
+
+	/**
+	 * Adds what msg2's signature covers: the server's key exchange value then
+	 * the enclave's, both X.509 encoded
+	 */
+	public static void updateMsg2(Signature signature, byte[] spKey, byte[] enclaveKey)
+			throws GeneralSecurityException
+	{
+		signature.update(spKey);
+		signature.update(enclaveKey);
+	}
+
+	/**
+	 * @return true if the service provider signed msg2
+	 */
+	public static boolean verifyMsg2(PublicKey key, byte[] spKey, byte[] enclaveKey, byte[] signature)
+			throws GeneralSecurityException
+	{
+		if (key == null || signature.length == 0)
+		{
+			return false;
+		}
+		Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+		verifier.initVerify(key);
+		updateMsg2(verifier, spKey, enclaveKey);
+		return verifier.verify(signature);
+	}
+}
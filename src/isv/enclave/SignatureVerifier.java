@@ -0,0 +1,208 @@
+package isv.enclave;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Verifies the Generals' signatures without looking up a provider or
+ * initializing a Signature on every ecall.
+ *
+ * Signature objects already initialized for a public key are pooled, per
+ * algorithm and key, and shared by every thread. An ecall borrows one, and a
+ * Signature goes back to its initialized state after verify, so it is
+ * returned to the pool for the next request from the same General, on
+ * whatever thread or connection that arrives. The next request then only
+ * pays for the hash and the RSA operation. Each key keeps at most a few idle
+ * verifiers, about as many as can be verifying at once.
+ *
+ * Decoded public keys are shared between threads too, so a key stored in its
+ * encoded form is only parsed once.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public final class SignatureVerifier
+{
+
+	/** The algorithm the Generals sign their requests with */
+	public static final String GENERAL_ALGORITHM = "SHA256withRSA";
+
+	// idle verifiers kept per key, enough for every core to verify at once
+	private static final int IDLE_PER_KEY = Runtime.getRuntime().availableProcessors();
+	// keys with pooled verifiers, once full new keys are verified unpooled
+	private static final int MAX_POOLED_KEYS = 1 << 16;
+	// decoded keys shared by all threads, once full new keys are not cached
+	private static final int MAX_DECODED_KEYS = 1 << 16;
+
+	private static final ConcurrentHashMap<PooledKey, Queue<Signature>> VERIFIERS = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Queue<KeyFactory>> KEY_FACTORIES = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<EncodedKey, PublicKey> DECODED_KEYS = new ConcurrentHashMap<>();
+
+	private SignatureVerifier()
+	{
+	}
+
+	/**
+	 * Checks a signature over the data
+	 *
+	 * @param algorithm
+	 *            the signature algorithm, such as GENERAL_ALGORITHM
+	 * @param key
+	 *            the signer's public key
+	 * @param data
+	 *            the data that was signed
+	 * @param signature
+	 *            buffer holding the signature
+	 * @return if the signature is valid
+	 * @throws GeneralSecurityException
+	 */
+	public static boolean verify(String algorithm, PublicKey key, byte[] data, byte[] signature, int offset,
+			int length) throws GeneralSecurityException
+	{
+		Queue<Signature> pool = verifiers(new PooledKey(algorithm, key));
+		Signature verifier = pool == null ? null : pool.poll();
+		if (verifier == null)
+		{
+			verifier = Signature.getInstance(algorithm);
+			verifier.initVerify(key);
+		}
+
+		verifier.update(data);
+		boolean valid = verifier.verify(signature, offset, length);
+		// a verify that threw may have left data behind, so only a verifier
+		// that finished goes back
+		giveBack(pool, verifier);
+		return valid;
+	}
+
+	/**
+	 * @return the pool of verifiers for the key, or null if no more keys can
+	 *         be pooled
+	 */
+	private static Queue<Signature> verifiers(PooledKey key)
+	{
+		Queue<Signature> pool = VERIFIERS.get(key);
+		if (pool == null && VERIFIERS.size() < MAX_POOLED_KEYS)
+		{
+			pool = VERIFIERS.computeIfAbsent(key, k -> new ConcurrentLinkedQueue<>());
+		}
+		return pool;
+	}
+
+	private static <T> void giveBack(Queue<T> pool, T idle)
+	{
+		// the size of a queue this small is cheap to count
+		if (pool != null && pool.size() < IDLE_PER_KEY)
+		{
+			pool.offer(idle);
+		}
+	}
+
+	/**
+	 * Decodes an X.509 encoded public key, or returns the key decoded earlier
+	 * for the same encoding
+	 *
+	 * @param algorithm
+	 *            the key algorithm, such as "RSA"
+	 * @param encoded
+	 *            the key as returned by PublicKey.getEncoded()
+	 * @return the decoded key
+	 * @throws GeneralSecurityException
+	 */
+	public static PublicKey decodePublicKey(String algorithm, byte[] encoded) throws GeneralSecurityException
+	{
+		EncodedKey cacheKey = new EncodedKey(algorithm, encoded);
+		PublicKey key = DECODED_KEYS.get(cacheKey);
+		if (key == null)
+		{
+			key = decode(algorithm, encoded);
+			if (DECODED_KEYS.size() < MAX_DECODED_KEYS)
+			{
+				PublicKey raced = DECODED_KEYS.putIfAbsent(cacheKey, key);
+				key = raced == null ? key : raced;
+			}
+		}
+		return key;
+	}
+
+	private static PublicKey decode(String algorithm, byte[] encoded) throws GeneralSecurityException
+	{
+		Queue<KeyFactory> pool = KEY_FACTORIES.computeIfAbsent(algorithm, k -> new ConcurrentLinkedQueue<>());
+		KeyFactory factory = pool.poll();
+		if (factory == null)
+		{
+			factory = KeyFactory.getInstance(algorithm);
+		}
+		PublicKey key = factory.generatePublic(new X509EncodedKeySpec(encoded));
+		giveBack(pool, factory);
+		return key;
+	}
+
+	/**
+	 * A public key and the algorithm it verifies with, as a map key
+	 */
+	private static class PooledKey
+	{
+		private final String algorithm;
+		private final PublicKey key;
+
+		PooledKey(String algorithm, PublicKey key)
+		{
+			this.algorithm = algorithm;
+			this.key = key;
+		}
+
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof PooledKey))
+			{
+				return false;
+			}
+			PooledKey that = (PooledKey) other;
+			return algorithm.equals(that.algorithm) && key.equals(that.key);
+		}
+
+		public int hashCode()
+		{
+			return 31 * algorithm.hashCode() + key.hashCode();
+		}
+	}
+
+	/**
+	 * An encoded public key as a map key
+	 */
+	private static class EncodedKey
+	{
+		private final String algorithm;
+		private final byte[] encoded;
+		private final int hash;
+
+		EncodedKey(String algorithm, byte[] encoded)
+		{
+			this.algorithm = algorithm;
+			this.encoded = encoded;
+			this.hash = 31 * algorithm.hashCode() + Arrays.hashCode(encoded);
+		}
+
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof EncodedKey))
+			{
+				return false;
+			}
+			EncodedKey that = (EncodedKey) other;
+			return algorithm.equals(that.algorithm) && Arrays.equals(encoded, that.encoded);
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+}
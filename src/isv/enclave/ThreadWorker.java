@@ -1,13 +1,29 @@
 package isv.enclave;
 
-import isv.client.General;
+import isv.metrics.Counter;
+import isv.metrics.Gauge;
+import isv.metrics.Histogram;
+import isv.metrics.MetricsRegistry;
+import isv.metrics.ProtocolTracer;
+import isv.metrics.ProtocolTracer.Message;
+import isv.metrics.ProtocolTracer.Outcome;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.security.Signature;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is the thread worker for the enclave. It allows the enclave to be
@@ -20,11 +36,38 @@ public class ThreadWorker implements Runnable
 
 	protected Socket _clientSocket = null;
 	protected Enclave _enclave;
+	protected boolean _keepAlive;
+	protected boolean _secureChannel;
+	protected boolean _deferDurability;
 
-	static final String INVALID_GENERAL = "INVALID_GENERAL";
-	static final String GENERAL_ALREADY_AUTHORIZED_ACTION = "GENERAL_ALREADY_AUTHORIZED_ACTION";
-	static final String PENDING_AUTHORIZATION = "PENDING_AUTHORIZATION";
-	static final String INTERRUPT = "INTERRUPT";
+	// a request is a name and a Base64 signature, so keep the per connection
+	// buffer small when there are tens of thousands of workers alive at once
+	private static final int REQUEST_BUFFER_SIZE = 1024;
+	private static final int MAX_REQUEST_LENGTH = 8192;
+
+	// verifies the signatures of batch requests in parallel
+	private static final ForkJoinPool VERIFY_POOL = new ForkJoinPool();
+
+	// connections from Generals, counted by both front ends
+	static final Counter CONNECTIONS_ACCEPTED = MetricsRegistry.getDefault()
+			.counter("isv_connections_accepted_total", "Connections accepted", "server", "enclave");
+	static final Gauge CONNECTIONS_ACTIVE = MetricsRegistry.getDefault().gauge("isv_connections_active",
+			"Connections open", "server", "enclave");
+	// indexed by EcallStatus ordinal
+	private static final Counter[] ECALLS = MetricsRegistry.getDefault().counters("isv_ecalls_total",
+			"authAndLaunch ecalls by result", "status", statusNames());
+	private static final Histogram VERIFY_LATENCY = MetricsRegistry.getDefault()
+			.histogram("isv_verify_seconds", "Time to verify a General's signature");
+
+	private static final CompletableFuture<Void> DURABLE = CompletableFuture.completedFuture(null);
+
+	// numbers connections for the ProtocolTracer
+	private static final AtomicInteger NEXT_CONNECTION = new AtomicInteger();
+
+	// reused for every request read from the socket
+	private byte[] _line;
+	// the last logged decision not yet known to be durable
+	private AuthorizationTransition _undurable;
 
 	public ThreadWorker(Socket socket, Enclave enclave)
 	{
@@ -32,32 +75,411 @@ public class ThreadWorker implements Runnable
 		this._enclave = enclave;
 	}
 
+	/**
+	 * @param keepAlive
+	 *            keep the connection open and answer requests until the
+	 *            General hangs up, instead of closing it after one request
+	 */
+	public ThreadWorker(Socket socket, Enclave enclave, boolean keepAlive)
+	{
+		this(socket, enclave);
+		this._keepAlive = keepAlive;
+	}
+
+	/**
+	 * @param secureChannel
+	 *            refuse requests that don't come over a SecureChannel
+	 */
+	public ThreadWorker(Socket socket, Enclave enclave, boolean keepAlive, boolean secureChannel)
+	{
+		this(socket, enclave, keepAlive);
+		this._secureChannel = secureChannel;
+	}
+
+	/**
+	 * Creates a worker that is not bound to a socket, for front ends that do
+	 * their own I/O and only hand complete requests to the enclave
+	 */
+	public ThreadWorker(Enclave enclave)
+	{
+		this._enclave = enclave;
+	}
+
+	/**
+	 * @param deferDurability
+	 *            answer requests without waiting for their logged decisions
+	 *            to be durable, for a front end that must not block and holds
+	 *            the answers back until whenDurable completes instead
+	 */
+	ThreadWorker(Enclave enclave, boolean deferDurability)
+	{
+		this(enclave);
+		this._deferDurability = deferDurability;
+	}
+
 	/**
 	 * This thread working reads in the request from the General and executes a
 	 * enclave function. For the attack simulation, the enclave reads in that
 	 * the environment code wants to envoke the function authAndLaunch. They do
 	 * so by sending to the enclave: [generals-name : generals-signature]
+	 * 
+	 * In keep-alive mode the General can send any number of requests, and may
+	 * pipeline them by sending several before reading the responses, which are
+	 * always written back in order.
+	 * 
+	 * Requests may also arrive as binary EcallFrames, which are told apart from
+	 * text requests by their first byte.
+	 * 
+	 * A connection that opens with a SecureChannel hello carries every request
+	 * and response sealed in its records instead.
 	 */
 	public void run()
 	{
-		try
+		CONNECTIONS_ACTIVE.increment();
+		int connection = nextConnectionId();
+		Message traced = Message.ECALL;
+		try (Socket socket = _clientSocket)
 		{
-			DataOutputStream generalOut = new DataOutputStream(_clientSocket.getOutputStream());
-			BufferedReader generalIn = new BufferedReader(new InputStreamReader(_clientSocket.getInputStream()));
+			DataOutputStream generalOut = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream(), REQUEST_BUFFER_SIZE));
+			DataInputStream generalIn = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream(), REQUEST_BUFFER_SIZE));
 
-			String message = generalIn.readLine();
-			String[] messageInfo = message.split(":");
+			int first = generalIn.read();
+			if ((byte) first == SecureChannel.MAGIC)
+			{
+				traced = Message.SECURE_HELLO;
+				SecureChannel channel = SecureChannel.accept(_enclave, generalIn, generalOut);
+				ProtocolTracer.trace(connection, traced, 0, Outcome.SENT);
+				runSecure(channel, generalIn, generalOut, connection);
+				return;
+			}
+			if (_secureChannel && first >= 0)
+			{
+				throw new ProtocolException("Ecalls must come over a secure channel");
+			}
 
-			String generalName = messageInfo[0];
-			String signature = messageInfo[1];
+			EcallFrame frame = null;
+			ByteBuffer response = null;
 
-			String result = authAndLaunch(generalName, signature);
+			for (; first >= 0; first = generalIn.read())
+			{
+				if ((byte) first == EcallFrame.MAGIC)
+				{
+					if (frame == null)
+					{
+						frame = new EcallFrame();
+						response = ByteBuffer.allocate(EcallFrame.RESULT_LENGTH);
+					}
+					traced = Message.ECALL_FRAME;
+					frame.read(generalIn);
+					ProtocolTracer.trace(connection, traced, 0, Outcome.RECEIVED);
+					if (response.capacity() < frame.resultLength())
+					{
+						response = ByteBuffer.allocate(frame.resultLength());
+					}
+					response.clear();
+					handleFrame(frame, response);
+					generalOut.write(response.array(), 0, response.position());
+					ProtocolTracer.trace(connection, traced, response.position(), Outcome.SENT);
+				} else
+				{
+					traced = Message.ECALL;
+					String message = readLine(generalIn, first);
+					ProtocolTracer.trace(connection, traced, message.length() + 1, Outcome.RECEIVED);
+					String result = handleRequest(message);
+					generalOut.writeBytes(result + "\n");
+					ProtocolTracer.trace(connection, traced, result.length() + 1, Outcome.SENT);
+				}
 
-			generalOut.writeBytes(result + "\n");
+				if (!_keepAlive)
+				{
+					break;
+				}
+				// answer a pipelined burst with a single write once it is drained
+				if (generalIn.available() == 0)
+				{
+					generalOut.flush();
+				}
+			}
+			generalOut.flush();
 		} catch (Exception e)
 		{
+			ProtocolTracer.trace(connection, traced, 0, Outcome.FAILED);
 			e.printStackTrace();
+			ProtocolTracer.dumpOnError("connection " + connection + " failed");
+		} finally
+		{
+			CONNECTIONS_ACTIVE.decrement();
+		}
+	}
+
+	/**
+	 * Answers requests sealed in SecureChannel records, one request per record
+	 * and one response per record, in order
+	 */
+	private void runSecure(SecureChannel channel, DataInputStream generalIn, DataOutputStream generalOut,
+			int connection) throws Exception
+	{
+		EcallFrame frame = null;
+		ByteBuffer response = ByteBuffer.allocate(EcallFrame.RESULT_LENGTH);
+
+		ByteBuffer request;
+		while ((request = channel.read(generalIn)) != null)
+		{
+			int length = request.remaining();
+			Message traced;
+			if (length > 0 && request.get(request.position()) == EcallFrame.MAGIC)
+			{
+				traced = Message.ECALL_FRAME;
+				if (frame == null)
+				{
+					frame = new EcallFrame();
+				}
+				if (!frame.decode(request) || request.hasRemaining())
+				{
+					throw new ProtocolException("A secure record must hold exactly one ecall frame");
+				}
+				ProtocolTracer.trace(connection, traced, length, Outcome.RECEIVED);
+				if (response.capacity() < frame.resultLength())
+				{
+					response = ByteBuffer.allocate(frame.resultLength());
+				}
+				response.clear();
+				handleFrame(frame, response);
+			} else
+			{
+				traced = Message.ECALL;
+				ProtocolTracer.trace(connection, traced, length, Outcome.RECEIVED);
+				int end = request.limit();
+				while (end > request.position()
+						&& (request.get(end - 1) == '\n' || request.get(end - 1) == '\r'))
+				{
+					end--;
+				}
+				String message = new String(request.array(), request.position(), end - request.position(),
+						StandardCharsets.US_ASCII);
+				byte[] result = (handleRequest(message) + "\n").getBytes(StandardCharsets.US_ASCII);
+				if (response.capacity() < result.length)
+				{
+					response = ByteBuffer.allocate(result.length);
+				}
+				response.clear();
+				response.put(result);
+			}
+			response.flip();
+			int sent = response.remaining();
+			channel.write(response, generalOut);
+			ProtocolTracer.trace(connection, traced, sent, Outcome.SENT);
+
+			if (!_keepAlive)
+			{
+				break;
+			}
+			if (generalIn.available() == 0)
+			{
+				generalOut.flush();
+			}
+		}
+		generalOut.flush();
+	}
+
+	/**
+	 * @return a new id for a connection from a General, as the ProtocolTracer
+	 *         traces it
+	 */
+	static int nextConnectionId()
+	{
+		return NEXT_CONNECTION.incrementAndGet();
+	}
+
+	/**
+	 * Reads the rest of a text request whose first byte has already been read
+	 * 
+	 * @return the request without the line terminator
+	 */
+	private String readLine(InputStream in, int first) throws IOException
+	{
+		if (_line == null)
+		{
+			_line = new byte[256];
+		}
+
+		int length = 0;
+		int next = first;
+		while (next >= 0 && next != '\n')
+		{
+			if (length == _line.length)
+			{
+				if (length >= MAX_REQUEST_LENGTH)
+				{
+					throw new ProtocolException("Request line too long");
+				}
+				_line = Arrays.copyOf(_line, length * 2);
+			}
+			_line[length++] = (byte) next;
+			next = in.read();
+		}
+		if (length > 0 && _line[length - 1] == '\r')
+		{
+			length--;
+		}
+		return new String(_line, 0, length, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Runs a binary authAndLaunch or batch frame through the enclave and writes
+	 * the response frame. Signatures are verified straight out of the frame.
+	 * 
+	 * @param frame
+	 *            a decoded request
+	 * @param out
+	 *            buffer with room for frame.resultLength() bytes
+	 * @throws Exception
+	 */
+	public void handleFrame(EcallFrame frame, ByteBuffer out) throws Exception
+	{
+		switch (frame.getOpcode())
+		{
+		case EcallFrame.OP_AUTH_AND_LAUNCH:
+			RosterEntry general = getGeneral(frame.getGeneralId());
+			EcallStatus status = authorize(general, frame.getSignatures(), frame.getSignatureOffset(0),
+					frame.getSignatureLength(0));
+			EcallFrame.encodeResult(out, frame.getRequestId(), status);
+			break;
+		case EcallFrame.OP_BATCH_AUTH_AND_LAUNCH:
+			EcallStatus[] statuses = authorizeBatch(frame);
+			EcallFrame.encodeBatchResult(out, frame.getRequestId(), statuses, frame.getEntryCount());
+			break;
+		default:
+			throw new ProtocolException("Unexpected ecall opcode " + frame.getOpcode());
+		}
+		awaitDurable();
+	}
+
+	/**
+	 * Authorizes every entry of a batch. The signatures are checked in
+	 * parallel, then the state transitions are applied one entry at a time in
+	 * the order of the batch. A state machine that is not concurrent applies
+	 * the whole batch under the enclave's lock, which single ecalls take too,
+	 * so no other ecall interleaves with it; the hardened one takes no lock,
+	 * each entry being decided atomically on its own. Logged decisions are
+	 * only appended here, the caller waits for the whole batch to be durable
+	 * once.
+	 * 
+	 * @param frame
+	 *            a decoded batch request
+	 * @return the status for each entry, in order
+	 */
+	EcallStatus[] authorizeBatch(EcallFrame frame)
+	{
+		int count = frame.getEntryCount();
+		RosterEntry[] generals = new RosterEntry[count];
+		for (int i = 0; i < count; i++)
+		{
+			generals[i] = getGeneral(frame.getGeneralId(i));
+		}
+
+		boolean[] valid = new boolean[count];
+		VERIFY_POOL.invoke(new VerifyBatch(generals, frame, valid, 0, count));
+
+		EcallStatus[] statuses = new EcallStatus[count];
+		AuthorizationStateMachine authorization = _enclave.getAuthorization();
+		if (authorization.isConcurrent())
+		{
+			transitions(authorization, generals, valid, statuses);
+		} else
+		{
+			synchronized (_enclave)
+			{
+				transitions(authorization, generals, valid, statuses);
+			}
+		}
+		return statuses;
+	}
+
+	private void transitions(AuthorizationStateMachine authorization, RosterEntry[] generals, boolean[] valid,
+			EcallStatus[] statuses)
+	{
+		for (int i = 0; i < statuses.length; i++)
+		{
+			statuses[i] = valid[i] ? transition(authorization, generals[i]) : EcallStatus.INVALID_GENERAL;
+			ECALLS[statuses[i].ordinal()].increment();
+		}
+	}
+
+	/**
+	 * Splits a batch in halves until the pieces are small enough to verify
+	 * directly
+	 */
+	private static class VerifyBatch extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private static final int DIRECT_VERIFY = 4;
+
+		private final RosterEntry[] generals;
+		private final EcallFrame frame;
+		private final boolean[] valid;
+		private final int from;
+		private final int to;
+
+		VerifyBatch(RosterEntry[] generals, EcallFrame frame, boolean[] valid, int from, int to)
+		{
+			this.generals = generals;
+			this.frame = frame;
+			this.valid = valid;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute()
+		{
+			if (to - from <= DIRECT_VERIFY)
+			{
+				for (int i = from; i < to; i++)
+				{
+					try
+					{
+						valid[i] = generals[i] != null && verify(generals[i], frame.getSignatures(),
+								frame.getSignatureOffset(i), frame.getSignatureLength(i));
+					} catch (Exception e)
+					{
+						valid[i] = false;
+					}
+				}
+				return;
+			}
+
+			int middle = (from + to) >>> 1;
+			invokeAll(new VerifyBatch(generals, frame, valid, from, middle),
+					new VerifyBatch(generals, frame, valid, middle, to));
+		}
+	}
+
+	/**
+	 * Splits a [generals-name : generals-signature] request and runs it
+	 * through authAndLaunch. A request may also be tagged with an id, as in
+	 * [request-id : generals-name : generals-signature], in which case the
+	 * response is tagged with the same id.
+	 * 
+	 * @param message
+	 *            the request line sent by the General, without the newline
+	 * @return the status of the enclave to the environment
+	 * @throws Exception
+	 */
+	public String handleRequest(String message) throws Exception
+	{
+		String[] messageInfo = message.split(":");
+
+		if (messageInfo.length == 3)
+		{
+			return messageInfo[0] + ":" + authAndLaunch(messageInfo[1], messageInfo[2]);
 		}
+
+		String generalName = messageInfo[0];
+		String signature = messageInfo[1];
+
+		return authAndLaunch(generalName, signature);
 	}
 
 	/**
@@ -76,72 +498,141 @@ public class ThreadWorker implements Runnable
 	public String authAndLaunch(String generalName, String signature) throws Exception
 	{
 		// get the general from the Enclave saved data
-		General general = getGeneral(generalName);
+		RosterEntry general = getGeneral(generalName);
 
-		// validate the generals name and signature
-		boolean validateResult = validateGeneral(generalName, signature);
+		byte[] signatureBytes = Base64.getDecoder().decode(signature);
 
-		// if the signature doesn't match, invalid general
-		if (!validateResult)
-		{
-			return INVALID_GENERAL;
-		}
+		EcallStatus status = authorize(general, signatureBytes, 0, signatureBytes.length);
+		awaitDurable();
+		return status.message();
+	}
 
-		// if the general hasn't authorized yet, let him/her do so. Otherwise
-		// report the general already authrozied once.
-		if (!general.hasAuthorized())
+	/**
+	 * The body of authAndLaunch, shared by the text and binary protocols
+	 * 
+	 * @param general
+	 *            the general from the Enclave saved data, or null if unknown
+	 * @param signature
+	 *            buffer holding the general's signature
+	 * @return the status of the enclave to the environment
+	 * @throws Exception
+	 */
+	EcallStatus authorize(RosterEntry general, byte[] signature, int offset, int length) throws Exception
+	{
+		// validate the generals name and signature, if the signature doesn't
+		// match, invalid general
+		EcallStatus status;
+		if (general == null || !verify(general, signature, offset, length))
 		{
-			_enclave.setAuthCount(_enclave.getAuthCount() + 1);
-			if (_enclave.createInterrupt())
-			{
-				_enclave.setCreateInterrupt(false);
-				return INTERRUPT;
-			}
-			general.setHasAuthorized(true);
+			status = EcallStatus.INVALID_GENERAL;
 		} else
 		{
-			return GENERAL_ALREADY_AUTHORIZED_ACTION;
+			AuthorizationStateMachine authorization = _enclave.getAuthorization();
+			if (authorization.isConcurrent())
+			{
+				status = transition(authorization, general);
+			} else
+			{
+				synchronized (_enclave)
+				{
+					status = transition(authorization, general);
+				}
+			}
 		}
+		ECALLS[status.ordinal()].increment();
+		return status;
+	}
 
-		// if two generals have authorized the launch, send the nuke!
-		if (_enclave.getAuthCount() >= 2)
+	/**
+	 * Moves the enclave state along for a General whose signature is valid,
+	 * using the enclave's vulnerable or hardened state machine. The caller
+	 * holds the enclave's lock unless the state machine is concurrent.
+	 * 
+	 * @return the status of the enclave to the environment, not to be sent
+	 *         before the decision is durable
+	 */
+	private EcallStatus transition(AuthorizationStateMachine authorization, RosterEntry general)
+	{
+		AuthorizationTransition transition = authorization.authorize(_enclave, general);
+		if (transition.isLogged())
 		{
-			return nukeTheKashbah();
+			_undurable = transition;
 		}
+		return transition.getStatus();
+	}
 
-		// otherwise we aren't ready to launch yet.
-		return PENDING_AUTHORIZATION;
+	/**
+	 * Waits until every decision made so far is durable, unless the front end
+	 * defers that to whenDurable
+	 * 
+	 * @throws IOException
+	 *             if a decision could not be logged, so it must not be sent
+	 */
+	private void awaitDurable() throws IOException
+	{
+		if (_deferDurability || _undurable == null)
+		{
+			return;
+		}
+		AuthorizationTransition last = _undurable;
+		_undurable = null;
+		last.awaitDurable();
 	}
 
-	private String nukeTheKashbah()
+	/**
+	 * @return a future completed once every decision made so far is durable,
+	 *         so that their answers can be sent
+	 */
+	CompletableFuture<Void> whenDurable()
 	{
-		return "BOOOOOOOOM!";
+		AuthorizationTransition last = _undurable;
+		_undurable = null;
+		return last != null ? last.whenDurable() : DURABLE;
 	}
 
 	public boolean validateGeneral(String generalName, String signature) throws Exception
 	{
 
-		General targetGeneral = getGeneral(generalName);
-		String plainText = targetGeneral.getName();
+		RosterEntry targetGeneral = getGeneral(generalName);
+		if (targetGeneral == null)
+		{
+			return false;
+		}
+		byte[] signatureBytes = Base64.getDecoder().decode(signature);
 
-		Signature publicSignature = Signature.getInstance("SHA256withRSA");
-		publicSignature.initVerify(targetGeneral.getPub());
-		publicSignature.update(plainText.getBytes());
+		return verify(targetGeneral, signatureBytes, 0, signatureBytes.length);
+	}
 
-		byte[] signatureBytes = Base64.getDecoder().decode(signature);
+	private static boolean verify(RosterEntry targetGeneral, byte[] signature, int offset, int length)
+			throws Exception
+	{
+		byte[] plainText = targetGeneral.getNameBytes();
 
-		return publicSignature.verify(signatureBytes);
+		long start = System.nanoTime();
+		boolean valid = SignatureVerifier.verify(SignatureVerifier.GENERAL_ALGORITHM, targetGeneral.getPublicKey(),
+				plainText, signature, offset, length);
+		VERIFY_LATENCY.recordSince(start);
+		return valid;
 	}
 
-	private General getGeneral(String generalName)
+	private static String[] statusNames()
 	{
-		for (General g : _enclave.getGeneralInfo())
+		EcallStatus[] statuses = EcallStatus.values();
+		String[] names = new String[statuses.length];
+		for (int i = 0; i < statuses.length; i++)
 		{
-			if (g.getName().equals(generalName))
-			{
-				return g;
-			}
+			names[i] = statuses[i].name();
 		}
-		return null;
+		return names;
+	}
+
+	RosterEntry getGeneral(String generalName)
+	{
+		return _enclave.getRoster().get(generalName);
+	}
+
+	private RosterEntry getGeneral(int generalId)
+	{
+		return _enclave.getRoster().get(generalId);
 	}
 }
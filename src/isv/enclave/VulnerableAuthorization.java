@@ -0,0 +1,54 @@
+package isv.enclave;
+
+/**
+ * The authorization algorithm that is vulnerable to enclave state
+ * malleability. The count is bumped with an unsynchronized read-modify-write
+ * before the General is marked as authorized, so an interrupt between the two
+ * leaves the enclave counting an authorization it never recorded, and the same
+ * General can authorize twice. Ecalls are run one at a time, so the
+ * interrupt is the only way in.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class VulnerableAuthorization implements AuthorizationStateMachine
+{
+
+	public AuthorizationTransition authorize(Enclave enclave, RosterEntry general)
+	{
+		// if the general hasn't authorized yet, let him/her do so. Otherwise
+		// report the general already authrozied once.
+		int authCount;
+		if (!general.hasAuthorized())
+		{
+			authCount = enclave.getAuthCount() + 1;
+			enclave.setAuthCount(authCount);
+			if (enclave.createInterrupt())
+			{
+				enclave.setCreateInterrupt(false);
+				return AuthorizationTransition.applied(EcallStatus.INTERRUPT, false, authCount);
+			}
+			general.setHasAuthorized(true);
+		} else
+		{
+			return AuthorizationTransition.unchanged(EcallStatus.GENERAL_ALREADY_AUTHORIZED_ACTION);
+		}
+
+		// if two generals have authorized the launch, send the nuke!
+		if (enclave.getAuthCount() >= 2)
+		{
+			return AuthorizationTransition.applied(EcallStatus.LAUNCHED, true, authCount);
+		}
+
+		// otherwise we aren't ready to launch yet.
+		return AuthorizationTransition.applied(EcallStatus.PENDING_AUTHORIZATION, true, authCount);
+	}
+
+	/**
+	 * @return false, ecalls take turns so that only the interrupt can leave
+	 *         the state inconsistent
+	 */
+	public boolean isConcurrent()
+	{
+		return false;
+	}
+}
@@ -0,0 +1,119 @@
+package isv.enclave;
+
+import isv.metrics.ProtocolTracer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor that ThreadWorkers run on. The simulation originally
+ * started a new platform thread for every connection, which is still the
+ * default. A bounded pool caps the number of threads, and on a runtime that
+ * has them, virtual threads let every connection keep its blocking style code
+ * without paying for a platform thread and its stack.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public final class WorkerExecutors
+{
+
+	/**
+	 * How ThreadWorkers are scheduled
+	 */
+	public enum Kind
+	{
+		/** a new platform thread per connection */
+		THREAD,
+		/** a fixed size pool of platform threads, extra connections queue */
+		POOL,
+		/** a virtual thread per connection, falls back to POOL if unsupported */
+		VIRTUAL
+	}
+
+	private WorkerExecutors()
+	{
+	}
+
+	/**
+	 * @param kind
+	 *            how workers should be scheduled
+	 * @param poolSize
+	 *            number of threads for a bounded pool
+	 * @param name
+	 *            prefix for the names of the threads created
+	 * @return the executor to submit workers to
+	 */
+	public static Executor create(Kind kind, int poolSize, String name)
+	{
+		switch (kind)
+		{
+		case POOL:
+			return newBoundedPool(poolSize, name);
+		case VIRTUAL:
+			Executor virtual = newVirtualThreadExecutor();
+			if (virtual != null)
+			{
+				return task -> virtual.execute(releasingTracer(task));
+			}
+			System.out.println("Virtual threads are not supported by this runtime, using a pool of " + poolSize
+					+ " threads instead");
+			return newBoundedPool(poolSize, name);
+		default:
+			ThreadFactory factory = newThreadFactory(name);
+			return task -> factory.newThread(releasingTracer(task)).start();
+		}
+	}
+
+	/**
+	 * A thread that ends with its task hands its ProtocolTracer ring on, so
+	 * a thread per connection doesn't cost a new ring per connection
+	 */
+	private static Runnable releasingTracer(Runnable task)
+	{
+		return () -> {
+			try
+			{
+				task.run();
+			} finally
+			{
+				ProtocolTracer.release();
+			}
+		};
+	}
+
+	private static ExecutorService newBoundedPool(int poolSize, String name)
+	{
+		return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+				newThreadFactory(name));
+	}
+
+	/**
+	 * The project is built for Java 8, so virtual threads are looked up
+	 * reflectively and only used when the running JVM provides them
+	 *
+	 * @return a virtual thread per task executor, or null if unavailable
+	 */
+	private static ExecutorService newVirtualThreadExecutor()
+	{
+		try
+		{
+			Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e)
+		{
+			return null;
+		}
+	}
+
+	private static ThreadFactory newThreadFactory(String name)
+	{
+		AtomicInteger count = new AtomicInteger();
+		return task -> new Thread(task, name + "-" + count.incrementAndGet());
+	}
+}
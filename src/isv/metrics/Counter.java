@@ -0,0 +1,38 @@
+package isv.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up. Increments are striped over cells, as in a
+ * LongAdder, so threads counting at once don't contend on one cache line;
+ * only reading the count adds the cells up.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public final class Counter
+{
+	private final LongAdder count = new LongAdder();
+
+	Counter()
+	{
+	}
+
+	public void increment()
+	{
+		count.increment();
+	}
+
+	/**
+	 * @param amount
+	 *            how much to count, not negative
+	 */
+	public void add(long amount)
+	{
+		count.add(amount);
+	}
+
+	public long get()
+	{
+		return count.sum();
+	}
+}
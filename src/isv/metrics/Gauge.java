@@ -0,0 +1,34 @@
+package isv.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A level that goes up and down, e.g. the connections open right now. Like a
+ * Counter it is striped, so opening and closing connections on many threads
+ * doesn't contend.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public final class Gauge
+{
+	private final LongAdder level = new LongAdder();
+
+	Gauge()
+	{
+	}
+
+	public void increment()
+	{
+		level.increment();
+	}
+
+	public void decrement()
+	{
+		level.decrement();
+	}
+
+	public long get()
+	{
+		return level.sum();
+	}
+}
@@ -0,0 +1,128 @@
+package isv.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A distribution of latencies in power of two buckets: bucket i counts the
+ * latencies of i bits, from 2^(i-1) up to 2^i - 1 nanoseconds. That is coarser
+ * than the LoadGenerator's LatencyHistogram, but recording is one striped
+ * increment of the bucket and one of the sum, cheap enough for every ecall.
+ *
+ * Latencies are recorded in nanoseconds and exported in seconds.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public final class Histogram
+{
+	static final int BUCKETS = 65;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder sum = new LongAdder();
+
+	Histogram()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param nanos
+	 *            a latency in nanoseconds, negative values count as 0
+	 */
+	public void record(long nanos)
+	{
+		long value = Math.max(0, nanos);
+		buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+		sum.add(value);
+	}
+
+	/**
+	 * Records the time since start, so consecutive steps can be timed with
+	 * one clock read each: start = STEP.recordSince(start)
+	 *
+	 * @param start
+	 *            a System.nanoTime() reading
+	 * @return the time now, as System.nanoTime()
+	 */
+	public long recordSince(long start)
+	{
+		long now = System.nanoTime();
+		record(now - start);
+		return now;
+	}
+
+	/**
+	 * @return the number of latencies recorded
+	 */
+	public long count()
+	{
+		long count = 0;
+		for (LongAdder bucket : buckets)
+		{
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the sum of the latencies recorded, in nanoseconds
+	 */
+	public long sum()
+	{
+		return sum.sum();
+	}
+
+	/**
+	 * @param bucket
+	 *            0 to 64
+	 * @return the number of latencies recorded below 2^bucket nanoseconds and
+	 *         at or above 2^(bucket-1)
+	 */
+	long bucketCount(int bucket)
+	{
+		return buckets[bucket].sum();
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1, e.g. 0.99 for the 99th percentile
+	 * @return the top of the bucket holding the quantile in nanoseconds, so at
+	 *         most twice the real latency, or 0 if nothing was recorded
+	 */
+	public long percentile(double quantile)
+	{
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0)
+		{
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+			{
+				return upperBound(i);
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return the largest latency bucket i holds, in nanoseconds
+	 */
+	static long upperBound(int bucket)
+	{
+		return bucket == 64 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+}
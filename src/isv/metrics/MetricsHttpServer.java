@@ -0,0 +1,79 @@
+package isv.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a MetricsRegistry as plain text on /metrics, in the Prometheus text
+ * format, for a scraper or curl. Scrapes are answered one at a time on a
+ * daemon thread of their own, away from the ecall and attestation threads.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class MetricsHttpServer
+{
+	public static final String PATH = "/metrics";
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final HttpServer server;
+
+	/**
+	 * Starts serving the registry
+	 *
+	 * @param registry
+	 *            the metrics to serve
+	 * @param port
+	 *            port to listen on
+	 * @throws IOException
+	 */
+	public MetricsHttpServer(MetricsRegistry registry, int port) throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext(PATH, exchange -> {
+			try
+			{
+				if (!exchange.getRequestMethod().equals("GET"))
+				{
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+				StringBuilder text = new StringBuilder(4096);
+				registry.writeText(text);
+				byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody())
+				{
+					out.write(body);
+				}
+			} finally
+			{
+				exchange.close();
+			}
+		});
+		server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+			Thread thread = new Thread(task, "metrics-http");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		server.start();
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+
+	public void close()
+	{
+		server.stop(0);
+	}
+}
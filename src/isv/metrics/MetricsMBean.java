@@ -0,0 +1,83 @@
+package isv.metrics;
+
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes a MetricsRegistry over JMX, one read only attribute per value of
+ * MetricsRegistry.snapshot(). Metrics registered later show up the next time
+ * a JMX client asks for the attributes.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+class MetricsMBean implements DynamicMBean
+{
+	private final MetricsRegistry registry;
+
+	MetricsMBean(MetricsRegistry registry)
+	{
+		this.registry = registry;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException
+	{
+		Number value = registry.snapshot().get(attribute);
+		if (value == null)
+		{
+			throw new AttributeNotFoundException("No metric " + attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes)
+	{
+		Map<String, Number> values = registry.snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes)
+		{
+			Number value = values.get(attribute);
+			if (value != null)
+			{
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException("Metric " + attribute.getName() + " is read only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+	{
+		throw new ReflectionException(new NoSuchMethodException(actionName), "No operation " + actionName);
+	}
+
+	public MBeanInfo getMBeanInfo()
+	{
+		Map<String, Number> values = registry.snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+		int i = 0;
+		for (Map.Entry<String, Number> value : values.entrySet())
+		{
+			attributes[i++] = new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+					value.getKey(), true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "Enclave simulator metrics", attributes, null,
+				new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,287 @@
+package isv.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The simulator's metrics: counters, gauges and latency histograms, each
+ * named and optionally labelled, as in
+ *
+ * <pre>
+ * isv_ecalls_total{status="LAUNCHED"}
+ * </pre>
+ *
+ * Code that records a metric looks it up once, typically into a static field,
+ * and from then on only touches the metric itself, which is striped so that
+ * recording never contends. The registry is only locked to register metrics
+ * and to read them all out.
+ *
+ * The metrics can be read in the Prometheus text format, served over HTTP by
+ * MetricsHttpServer, or over JMX once registerMBean has been called.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class MetricsRegistry
+{
+	public static final String OBJECT_NAME = "isv:type=Metrics";
+
+	// exported histogram buckets, from about a microsecond to about a minute
+	private static final int FIRST_EXPORTED_BUCKET = 10;
+	private static final int LAST_EXPORTED_BUCKET = 36;
+
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+	// metrics of one name, and so one type, by their labels
+	private final Map<String, Family> families = new LinkedHashMap<>();
+
+	private static final class Family
+	{
+		private final String type;
+		private final String help;
+		private final Map<String, Object> metrics = new LinkedHashMap<>();
+
+		Family(String type, String help)
+		{
+			this.type = type;
+			this.help = help;
+		}
+	}
+
+	/**
+	 * @return the registry every part of the simulator records into
+	 */
+	public static MetricsRegistry getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * @param name
+	 *            the metric's name, ending in _total by convention
+	 * @param help
+	 *            what it counts
+	 * @param labels
+	 *            label names and values, alternating
+	 * @return the counter, the same one every time for the same name and labels
+	 */
+	public Counter counter(String name, String help, String... labels)
+	{
+		return register("counter", name, help, labels, Counter::new);
+	}
+
+	/**
+	 * @see #counter(String, String, String...)
+	 */
+	public Gauge gauge(String name, String help, String... labels)
+	{
+		return register("gauge", name, help, labels, Gauge::new);
+	}
+
+	/**
+	 * @see #counter(String, String, String...)
+	 */
+	public Histogram histogram(String name, String help, String... labels)
+	{
+		return register("histogram", name, help, labels, Histogram::new);
+	}
+
+	/**
+	 * Registers one counter for each value of a label, e.g. one per ecall
+	 * status, so the right one can be picked by index
+	 *
+	 * @param label
+	 *            the label told apart by values
+	 * @param values
+	 *            its values
+	 * @return the counters, in the order of the values
+	 */
+	public Counter[] counters(String name, String help, String label, String... values)
+	{
+		Counter[] counters = new Counter[values.length];
+		for (int i = 0; i < values.length; i++)
+		{
+			counters[i] = counter(name, help, label, values[i]);
+		}
+		return counters;
+	}
+
+	/**
+	 * Registers one histogram for each value of a label
+	 *
+	 * @param labels
+	 *            label names and values the histograms share, then the label
+	 *            told apart by values
+	 * @param values
+	 *            its values
+	 * @return the histograms, in the order of the values
+	 * @see #counters(String, String, String, String...)
+	 */
+	public Histogram[] histograms(String name, String help, String[] labels, String... values)
+	{
+		Histogram[] histograms = new Histogram[values.length];
+		String[] withValue = new String[labels.length + 1];
+		System.arraycopy(labels, 0, withValue, 0, labels.length);
+		for (int i = 0; i < values.length; i++)
+		{
+			withValue[labels.length] = values[i];
+			histograms[i] = histogram(name, help, withValue);
+		}
+		return histograms;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized <T> T register(String type, String name, String help, String[] labels, Supplier<T> create)
+	{
+		if (labels.length % 2 != 0)
+		{
+			throw new IllegalArgumentException("Labels of " + name + " are not name and value pairs");
+		}
+		Family family = families.get(name);
+		if (family == null)
+		{
+			family = new Family(type, help);
+			families.put(name, family);
+		} else if (!family.type.equals(type))
+		{
+			throw new IllegalArgumentException(name + " is already a " + family.type);
+		}
+		return (T) family.metrics.computeIfAbsent(labelString(labels), key -> create.get());
+	}
+
+	private static String labelString(String[] labels)
+	{
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2)
+		{
+			if (i > 0)
+			{
+				text.append(',');
+			}
+			text.append(labels[i]).append("=\"");
+			text.append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
+			text.append('"');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text format, version 0.0.4
+	 *
+	 * @param out
+	 *            where to write them
+	 * @throws IOException
+	 */
+	public synchronized void writeText(Appendable out) throws IOException
+	{
+		for (Map.Entry<String, Family> entry : families.entrySet())
+		{
+			String name = entry.getKey();
+			Family family = entry.getValue();
+			out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+			for (Map.Entry<String, Object> metric : family.metrics.entrySet())
+			{
+				String labels = metric.getKey();
+				Object value = metric.getValue();
+				if (value instanceof Histogram)
+				{
+					writeHistogram(out, name, labels, (Histogram) value);
+				} else
+				{
+					long level = value instanceof Counter ? ((Counter) value).get() : ((Gauge) value).get();
+					out.append(name).append(braces(labels)).append(' ').append(Long.toString(level)).append('\n');
+				}
+			}
+		}
+	}
+
+	private static void writeHistogram(Appendable out, String name, String labels, Histogram histogram)
+			throws IOException
+	{
+		String prefix = labels.isEmpty() ? "" : labels + ",";
+		long cumulative = 0;
+		for (int i = 0; i < Histogram.BUCKETS; i++)
+		{
+			cumulative += histogram.bucketCount(i);
+			if (i >= FIRST_EXPORTED_BUCKET && i <= LAST_EXPORTED_BUCKET)
+			{
+				out.append(name).append("_bucket{").append(prefix).append("le=\"")
+						.append(Double.toString(seconds(Histogram.upperBound(i)))).append("\"} ")
+						.append(Long.toString(cumulative)).append('\n');
+			}
+		}
+		out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(Long.toString(cumulative))
+				.append('\n');
+		out.append(name).append("_sum").append(braces(labels)).append(' ')
+				.append(Double.toString(seconds(histogram.sum()))).append('\n');
+		out.append(name).append("_count").append(braces(labels)).append(' ').append(Long.toString(cumulative))
+				.append('\n');
+	}
+
+	/**
+	 * @return every metric's current value by name and labels, histograms as
+	 *         their count, sum and 50th and 99th percentiles in seconds
+	 */
+	public synchronized Map<String, Number> snapshot()
+	{
+		Map<String, Number> values = new LinkedHashMap<>();
+		for (Map.Entry<String, Family> entry : families.entrySet())
+		{
+			for (Map.Entry<String, Object> metric : entry.getValue().metrics.entrySet())
+			{
+				String key = entry.getKey() + braces(metric.getKey());
+				Object value = metric.getValue();
+				if (value instanceof Counter)
+				{
+					values.put(key, ((Counter) value).get());
+				} else if (value instanceof Gauge)
+				{
+					values.put(key, ((Gauge) value).get());
+				} else
+				{
+					Histogram histogram = (Histogram) value;
+					values.put(key + " count", histogram.count());
+					values.put(key + " sum", seconds(histogram.sum()));
+					values.put(key + " p50", seconds(histogram.percentile(0.5)));
+					values.put(key + " p99", seconds(histogram.percentile(0.99)));
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Makes the metrics readable over JMX, under isv:type=Metrics. Registering
+	 * again does nothing.
+	 *
+	 * @throws JMException
+	 */
+	public void registerMBean() throws JMException
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this),
+					new ObjectName(OBJECT_NAME));
+		} catch (InstanceAlreadyExistsException e)
+		{
+			// already readable
+		}
+	}
+
+	private static String braces(String labels)
+	{
+		return labels.isEmpty() ? "" : "{" + labels + "}";
+	}
+
+	private static double seconds(long nanos)
+	{
+		return nanos / 1e9;
+	}
+}
@@ -0,0 +1,480 @@
+package isv.metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * An always on flight recorder for the attestation and ecall protocols. Every
+ * message sent or received is traced as a fixed size event: the session it
+ * belongs to, which message it is, its length in bytes, when it happened in
+ * System.nanoTime() and how it went.
+ *
+ * Each thread writes its events into a ring of its own, a long[] it takes the
+ * first time it traces, so tracing takes no lock, allocates nothing and costs
+ * about one clock read. When a ring is full the oldest events are
+ * overwritten. A thread that ends with its task hands its ring back with
+ * release, and the ring of a thread that died without doing so is handed back
+ * once the thread is collected. The next new thread takes a ring that was
+ * handed back before a new one is allocated, and a dump still shows what the
+ * previous owner was doing. There are never more rings than the
+ * isv.tracer.rings system property allows, 1024 by default; threads beyond
+ * that are not traced until a ring is handed back.
+ *
+ * The rings can be dumped to a compact binary file on demand, with dump or
+ * over JMX as isv:type=ProtocolTracer, and on errors with dumpOnError if the
+ * isv.tracer.dumpDir system property names a directory to dump into. Read a
+ * dump with
+ *
+ * <pre>
+ * java isv.metrics.ProtocolTracer trace.bin
+ * </pre>
+ *
+ * The isv.tracer.events system property sets the events kept per thread, 0
+ * turning tracing off.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public final class ProtocolTracer implements ProtocolTracerMBean
+{
+	public static final String OBJECT_NAME = "isv:type=ProtocolTracer";
+
+	/**
+	 * What was traced
+	 */
+	public enum Message
+	{
+		MSG0, MSG1, MSG2, MSG3, MSG4, RESUME, ECALL, ECALL_FRAME, SECURE_HELLO
+	}
+
+	/**
+	 * How it went
+	 */
+	public enum Outcome
+	{
+		SENT, RECEIVED, FAILED, TIMED_OUT
+	}
+
+	private static final int MAGIC = 0x49535654;
+	private static final int VERSION = 1;
+	// longs per event: time, then session and length, then message and outcome
+	private static final int EVENT_LONGS = 3;
+	// at most one dump on error per interval, however many sessions fail
+	private static final long ERROR_DUMP_INTERVAL_NANOS = 10000000000L;
+
+	private static final int EVENTS = eventsPerThread(Integer.getInteger("isv.tracer.events", 1024));
+	private static final int MAX_RINGS = Math.max(1, Integer.getInteger("isv.tracer.rings", 1024));
+	private static final String DUMP_DIR = System.getProperty("isv.tracer.dumpDir");
+
+	private static final ThreadLocal<Ring> RINGS = new ThreadLocal<>();
+	private static final ConcurrentLinkedQueue<Ring> ALL_RINGS = new ConcurrentLinkedQueue<>();
+	// rings handed back, the longest unused first
+	private static final ConcurrentLinkedQueue<Ring> FREE_RINGS = new ConcurrentLinkedQueue<>();
+	// owners collected without handing their rings back
+	private static final ReferenceQueue<Thread> DEAD_OWNERS = new ReferenceQueue<>();
+	private static final AtomicInteger RING_COUNT = new AtomicInteger();
+	private static final LongAdder UNTRACED = new LongAdder();
+	private static final AtomicLong LAST_ERROR_DUMP = new AtomicLong(System.nanoTime() - ERROR_DUMP_INTERVAL_NANOS);
+	private static final ProtocolTracer MBEAN = new ProtocolTracer();
+
+	private ProtocolTracer()
+	{
+	}
+
+	/**
+	 * The thread a ring's events belong to, from the given event on, and the
+	 * one before it. Replaced whole when the ring changes hands, so a dump
+	 * never sees half of an owner.
+	 */
+	private static final class Owner
+	{
+		private final long threadId;
+		private final String threadName;
+		private final long since;
+		private final Owner previous;
+
+		Owner(long threadId, String threadName, long since, Owner previous)
+		{
+			this.threadId = threadId;
+			this.threadName = threadName;
+			this.since = since;
+			this.previous = previous;
+		}
+	}
+
+	/**
+	 * Queued once the owning thread is collected, so its ring can be taken
+	 * without scanning for dead threads
+	 */
+	private static final class OwnerReference extends WeakReference<Thread>
+	{
+		private final Ring ring;
+
+		OwnerReference(Thread thread, Ring ring)
+		{
+			super(thread, DEAD_OWNERS);
+			this.ring = ring;
+		}
+	}
+
+	/**
+	 * One thread's events. Only the owning thread writes, and it publishes
+	 * each event by bumping the count with a lazy set, so a dump running on
+	 * another thread knows which events are whole. A ring changing hands goes
+	 * on counting, so the events before the handover stay readable.
+	 */
+	private static final class Ring
+	{
+		private final long[] events = new long[EVENTS * EVENT_LONGS];
+		private final AtomicLong published = new AtomicLong();
+		private long next;
+		private volatile Owner owner;
+		// strongly held, or it would be collected before it is queued
+		private OwnerReference reference;
+
+		void claim(Thread thread)
+		{
+			next = published.get();
+			Owner last = owner;
+			owner = new Owner(thread.getId(), thread.getName(), next,
+					last == null ? null : new Owner(last.threadId, last.threadName, last.since, null));
+			reference = new OwnerReference(thread, this);
+		}
+
+		void unclaim()
+		{
+			// a cleared reference is never queued
+			reference.clear();
+			reference = null;
+		}
+
+		void add(long nanos, int session, int message, int length, int outcome)
+		{
+			int slot = (int) (next & (EVENTS - 1)) * EVENT_LONGS;
+			events[slot] = nanos;
+			events[slot + 1] = ((long) session << 32) | (length & 0xFFFFFFFFL);
+			events[slot + 2] = (message << 8) | outcome;
+			published.lazySet(++next);
+		}
+
+		/**
+		 * Writes the events no writer can be overwriting, split between the
+		 * owner and the previous owner, if there was one
+		 *
+		 * @param owner
+		 *            the ring's owner when the dump started
+		 * @return the number of events written
+		 */
+		int writeTo(DataOutputStream out, Owner owner) throws IOException
+		{
+			long end = published.get();
+			long start = Math.max(0, end - EVENTS);
+			long[] copy = new long[(int) (end - start) * EVENT_LONGS];
+			for (long i = start; i < end; i++)
+			{
+				System.arraycopy(events, (int) (i & (EVENTS - 1)) * EVENT_LONGS, copy, (int) (i - start) * EVENT_LONGS,
+						EVENT_LONGS);
+			}
+			// the writer may have lapped the copy, and be part way into the
+			// slot after the last event it published
+			long first = Math.max(start, published.get() - EVENTS + 1);
+
+			int written = 0;
+			if (owner.previous != null)
+			{
+				written += writeSection(out, owner.previous, copy, start, Math.max(first, owner.previous.since),
+						Math.min(end, owner.since));
+			}
+			return written + writeSection(out, owner, copy, start, Math.max(first, owner.since), end);
+		}
+
+		private static int writeSection(DataOutputStream out, Owner owner, long[] copy, long start, long from,
+				long to) throws IOException
+		{
+			int count = (int) Math.max(0, to - from);
+			out.writeLong(owner.threadId);
+			out.writeUTF(owner.threadName);
+			out.writeInt(count);
+			for (long i = from; i < from + count; i++)
+			{
+				int slot = (int) (i - start) * EVENT_LONGS;
+				out.writeLong(copy[slot]);
+				out.writeInt((int) (copy[slot + 1] >>> 32));
+				out.writeInt((int) copy[slot + 1]);
+				out.writeByte((int) (copy[slot + 2] >>> 8));
+				out.writeByte((int) copy[slot + 2]);
+			}
+			return count;
+		}
+	}
+
+	private static int eventsPerThread(int events)
+	{
+		if (events <= 0)
+		{
+			return 0;
+		}
+		// a power of two, so the ring index is a mask
+		int size = Integer.highestOneBit(Math.max(2, Math.min(events, 1 << 24)));
+		return size < events ? size << 1 : size;
+	}
+
+	/**
+	 * Traces one message on the calling thread
+	 *
+	 * @param session
+	 *            the attestation session, enclave id or connection the
+	 *            message belongs to
+	 * @param message
+	 *            which message
+	 * @param length
+	 *            its length in bytes, 0 if unknown
+	 * @param outcome
+	 *            what happened to it
+	 */
+	public static void trace(int session, Message message, int length, Outcome outcome)
+	{
+		if (EVENTS == 0)
+		{
+			return;
+		}
+		Ring ring = RINGS.get();
+		if (ring == null && (ring = takeRing()) == null)
+		{
+			UNTRACED.increment();
+			return;
+		}
+		ring.add(System.nanoTime(), session, message.ordinal(), length, outcome.ordinal());
+	}
+
+	/**
+	 * @return a ring handed back or a new one for the calling thread, or null
+	 *         if every ring allowed is taken
+	 */
+	private static Ring takeRing()
+	{
+		Reference<? extends Thread> dead;
+		while ((dead = DEAD_OWNERS.poll()) != null)
+		{
+			FREE_RINGS.add(((OwnerReference) dead).ring);
+		}
+
+		Ring ring = FREE_RINGS.poll();
+		boolean allocated = false;
+		if (ring == null)
+		{
+			int count = RING_COUNT.get();
+			if (count >= MAX_RINGS || !RING_COUNT.compareAndSet(count, count + 1))
+			{
+				return null;
+			}
+			ring = new Ring();
+			allocated = true;
+		}
+		ring.claim(Thread.currentThread());
+		if (allocated)
+		{
+			ALL_RINGS.add(ring);
+		}
+		RINGS.set(ring);
+		return ring;
+	}
+
+	/**
+	 * Hands the calling thread's ring to the next thread that traces. For
+	 * threads that end with their task, like a thread or virtual thread per
+	 * connection; a pooled thread keeps its ring. The events stay in dumps
+	 * until the ring's next owner overwrites them.
+	 */
+	public static void release()
+	{
+		Ring ring = RINGS.get();
+		if (ring == null)
+		{
+			return;
+		}
+		RINGS.remove();
+		ring.unclaim();
+		FREE_RINGS.add(ring);
+	}
+
+	/**
+	 * Writes every thread's events to a file
+	 *
+	 * <pre>
+	 * [magic, 4 bytes] [version, 4] [wall clock ms, 8] [nanoTime, 8] [rings, 4]
+	 * then per ring: [thread id, 8] [thread name, UTF] [events, 4]
+	 * then per event: [nanoTime, 8] [session, 4] [length, 4] [message, 1] [outcome, 1]
+	 * </pre>
+	 *
+	 * A ring that changed hands is written as two rings, one for the previous
+	 * owner's events and one for the owner's. The clock readings taken together
+	 * at the start let event times be turned into wall clock times.
+	 *
+	 * @param file
+	 *            the file to write, replaced if it exists
+	 * @return the number of events written
+	 * @throws IOException
+	 */
+	public static long dump(File file) throws IOException
+	{
+		Ring[] rings = ALL_RINGS.toArray(new Ring[0]);
+		Owner[] owners = new Owner[rings.length];
+		int sections = 0;
+		for (int i = 0; i < rings.length; i++)
+		{
+			owners[i] = rings[i].owner;
+			sections += owners[i].previous != null ? 2 : 1;
+		}
+		long events = 0;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(System.currentTimeMillis());
+			out.writeLong(System.nanoTime());
+			out.writeInt(sections);
+			for (int i = 0; i < rings.length; i++)
+			{
+				events += rings[i].writeTo(out, owners[i]);
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Dumps the events into the isv.tracer.dumpDir directory, if it is set,
+	 * after something went wrong. Dumps are at most one every ten seconds, so
+	 * a burst of failures doesn't fill the disk.
+	 *
+	 * @param reason
+	 *            what went wrong, for the log
+	 */
+	public static void dumpOnError(String reason)
+	{
+		if (DUMP_DIR == null || EVENTS == 0)
+		{
+			return;
+		}
+		long last = LAST_ERROR_DUMP.get();
+		long now = System.nanoTime();
+		if (now - last < ERROR_DUMP_INTERVAL_NANOS || !LAST_ERROR_DUMP.compareAndSet(last, now))
+		{
+			return;
+		}
+		File file = new File(DUMP_DIR, "trace-" + System.currentTimeMillis() + ".bin");
+		try
+		{
+			dump(file);
+			System.out.println("Traced protocol messages written to " + file + " after " + reason);
+		} catch (IOException e)
+		{
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Makes the tracer dumpable over JMX, under isv:type=ProtocolTracer.
+	 * Registering again does nothing.
+	 *
+	 * @throws JMException
+	 */
+	public static void registerMBean() throws JMException
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(MBEAN, new ObjectName(OBJECT_NAME));
+		} catch (InstanceAlreadyExistsException e)
+		{
+			// already registered
+		}
+	}
+
+	public long dumpTo(String path) throws IOException
+	{
+		return dump(new File(path));
+	}
+
+	public int getEventsPerThread()
+	{
+		return EVENTS;
+	}
+
+	public int getThreads()
+	{
+		return RING_COUNT.get();
+	}
+
+	public long getUntracedEvents()
+	{
+		return UNTRACED.sum();
+	}
+
+	/**
+	 * Prints a dump, one event per line, in time order per thread
+	 *
+	 * @param args
+	 *            the dump file
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 1)
+		{
+			System.out.println("Usage: java isv.metrics.ProtocolTracer trace.bin");
+			return;
+		}
+		Message[] messages = Message.values();
+		Outcome[] outcomes = Outcome.values();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]))))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				throw new IOException(args[0] + " is not a protocol trace");
+			}
+			long wallMillis = in.readLong();
+			long dumpNanos = in.readLong();
+			int rings = in.readInt();
+			for (int r = 0; r < rings; r++)
+			{
+				long threadId = in.readLong();
+				String threadName = in.readUTF();
+				int events = in.readInt();
+				System.out.println("Thread " + threadId + " " + threadName + ", " + events + " events");
+				for (int e = 0; e < events; e++)
+				{
+					long nanos = in.readLong();
+					int session = in.readInt();
+					int length = in.readInt();
+					int message = in.readUnsignedByte();
+					int outcome = in.readUnsignedByte();
+					// milliseconds since the epoch, to the microsecond
+					double millis = wallMillis - (dumpNanos - nanos) / 1e6;
+					System.out.println(String.format("  %.3f session %d %s %s %d bytes", millis, session,
+							message < messages.length ? messages[message] : message,
+							outcome < outcomes.length ? outcomes[outcome] : outcome, length));
+				}
+			}
+		} catch (EOFException e)
+		{
+			System.out.println("The dump ends early");
+		}
+	}
+}
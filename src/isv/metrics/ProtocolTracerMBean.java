@@ -0,0 +1,32 @@
+package isv.metrics;
+
+import java.io.IOException;
+
+/**
+ * The ProtocolTracer's JMX interface
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public interface ProtocolTracerMBean
+{
+	/**
+	 * Dumps every thread's events to a file on the traced JVM's machine
+	 *
+	 * @param path
+	 *            the file to write
+	 * @return the number of events written
+	 */
+	long dumpTo(String path) throws IOException;
+
+	int getEventsPerThread();
+
+	/**
+	 * @return the rings allocated, at most one per thread that traced
+	 */
+	int getThreads();
+
+	/**
+	 * @return events not traced because every ring allowed was taken
+	 */
+	long getUntracedEvents();
+}
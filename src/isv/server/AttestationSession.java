@@ -0,0 +1,377 @@
+package isv.server;
+
+import isv.attestation.AttestationChannel;
+import isv.enclave.FfdheKeyExchange;
+import isv.enclave.KeyExchange;
+import isv.enclave.QuoteSigner;
+import isv.enclave.ResumptionTicket;
+import isv.metrics.Counter;
+import isv.metrics.Gauge;
+import isv.metrics.Histogram;
+import isv.metrics.MetricsRegistry;
+import isv.metrics.ProtocolTracer;
+import isv.metrics.ProtocolTracer.Message;
+import isv.metrics.ProtocolTracer.Outcome;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One enclave's remote attestation, msg0 to msg4, with all of the state the
+ * exchange needs so that any number of sessions can run at once. Messages are
+ * framed on an AttestationChannel.
+ *
+ * An enclave may send msg1 for its preferred key exchange along with msg0,
+ * marking msg0 with early=[key exchange]. If the server negotiates that key
+ * exchange it answers msg0 and msg1 in one flight, "Continue [name] early"
+ * then msg2, saving a round trip; otherwise it drops the early msg1 and asks
+ * for msg1 again with a plain "Continue [name]".
+ *
+ * "Continue" is followed by the service provider's public key, or by an empty
+ * frame if msg0 named its fingerprint with sp=[fingerprint] because the
+ * enclave already holds it. msg2 is signed with the key.
+ *
+ * An enclave that attested recently can instead present a resumption ticket
+ * and get its verdict back in one round trip, see ResumptionTicket.
+ *
+ * The verdict and ticket are for the enclave msg3's quote is signed for. A
+ * quote naming another enclave is rejected, and so is one whose signature
+ * does not check out against the attestation key, if the server has it.
+ *
+ * The whole exchange has to finish within the session timeout, so an enclave
+ * that stalls or disappears only holds its own session up.
+ *
+ * Each message's time is recorded in isv_attestation_phase_seconds: msg0 from
+ * the connection to the answer, msg1 waiting for an msg1 that didn't come
+ * early, msg2 computing, signing and sending it, msg3 waiting for the quote
+ * and msg4 deciding and sending the verdict. Every message is also traced by
+ * the ProtocolTracer under the session id, and a failed session dumps the
+ * trace if dumps on error are turned on.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class AttestationSession implements Runnable
+{
+
+	/**
+	 * The message the session is waiting for
+	 */
+	enum Phase
+	{
+		MSG0, MSG1, MSG3, DONE
+	}
+
+	// the status for a quote that is not the enclave's own
+	static final String QUOTE_REJECTED = "raQuoteRejected";
+
+	private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+	static final Counter CONNECTIONS_ACCEPTED = MetricsRegistry.getDefault()
+			.counter("isv_connections_accepted_total", "Connections accepted", "server", "attestation");
+	private static final Gauge CONNECTIONS_ACTIVE = MetricsRegistry.getDefault().gauge("isv_connections_active",
+			"Connections open", "server", "attestation");
+	// indexed by message number
+	private static final Histogram[] PHASES = MetricsRegistry.getDefault().histograms(
+			"isv_attestation_phase_seconds", "Time spent on each attestation message",
+			new String[] { "side", "server", "message" }, "msg0", "msg1", "msg2", "msg3", "msg4");
+
+	private final int id = NEXT_ID.incrementAndGet();
+	private final Socket socket;
+	private final long timeoutMillis;
+	private final List<KeyExchange> keyExchanges;
+	private final TicketIssuer tickets;
+	private final boolean acceptEarly;
+	private final ServiceProviderKey spKey;
+	private final File attestationKey;
+	private Phase phase = Phase.MSG0;
+
+	private AttestationChannel channel;
+	private KeyExchange keyExchange;
+	private KeyPair kexKeyPair;
+	// final shared key
+	private byte[] sharedKeyBytes;
+
+	/**
+	 * @param socket
+	 *            the connection from the enclave's RemoteAttestation
+	 * @param timeoutMillis
+	 *            how long the whole exchange may take
+	 * @param keyExchanges
+	 *            the key exchanges the server accepts, most preferred first
+	 * @param tickets
+	 *            issues and redeems resumption tickets, or null if enclaves
+	 *            always attest in full
+	 * @param acceptEarly
+	 *            use an msg1 sent along with msg0 if it is for the negotiated
+	 *            key exchange
+	 * @param spKey
+	 *            signs msg2
+	 * @param attestationKey
+	 *            the exported attestation public key to check quotes against,
+	 *            or null to only check that a quote names its enclave
+	 */
+	public AttestationSession(Socket socket, long timeoutMillis, List<KeyExchange> keyExchanges,
+			TicketIssuer tickets, boolean acceptEarly, ServiceProviderKey spKey, File attestationKey)
+	{
+		this.socket = socket;
+		this.timeoutMillis = timeoutMillis;
+		this.keyExchanges = keyExchanges;
+		this.tickets = tickets;
+		this.acceptEarly = acceptEarly;
+		this.spKey = spKey;
+		this.attestationKey = attestationKey;
+	}
+
+	public void run()
+	{
+		CONNECTIONS_ACTIVE.increment();
+		try
+		{
+			attest();
+		} catch (SocketTimeoutException e)
+		{
+			ProtocolTracer.trace(id, tracedMessage(), 0, Outcome.TIMED_OUT);
+			System.out.println("Session " + id + " timed out waiting for " + phase);
+			ProtocolTracer.dumpOnError("session " + id + " timed out");
+		} catch (Exception e)
+		{
+			ProtocolTracer.trace(id, tracedMessage(), 0, Outcome.FAILED);
+			System.out.println("Session " + id + " failed in " + phase + ": " + e);
+			ProtocolTracer.dumpOnError("session " + id + " failed");
+		} finally
+		{
+			try
+			{
+				socket.close();
+			} catch (IOException e)
+			{
+				System.out.println(e.getMessage());
+			}
+			CONNECTIONS_ACTIVE.decrement();
+		}
+	}
+
+	private void attest() throws Exception
+	{
+		channel = new AttestationChannel(socket);
+		channel.setDeadline(System.currentTimeMillis() + timeoutMillis);
+
+		long mark = System.nanoTime();
+		String message = channel.readText();
+		if (message.startsWith(ResumptionTicket.RESUME + " "))
+		{
+			ProtocolTracer.trace(id, Message.RESUME, message.length(), Outcome.RECEIVED);
+			boolean resumed = resume(message);
+			channel.flush();
+			ProtocolTracer.trace(id, Message.RESUME, 0, resumed ? Outcome.SENT : Outcome.FAILED);
+			if (resumed)
+			{
+				phase = Phase.DONE;
+				return;
+			}
+			// the enclave falls back to a full attestation
+			mark = System.nanoTime();
+			message = channel.readText();
+		}
+
+		// get protocol code, the extended group id, the key exchanges the
+		// enclave offers, the one any early msg1 is for and the service
+		// provider key the enclave holds
+		String[] m0 = message.split(" ");
+		String early = null;
+		String fingerprint = null;
+		for (int i = 2; i < m0.length; i++)
+		{
+			if (m0[i].startsWith("early="))
+			{
+				early = m0[i].substring("early=".length());
+			} else if (m0[i].startsWith("sp="))
+			{
+				fingerprint = m0[i].substring("sp=".length());
+			}
+		}
+		ProtocolTracer.trace(id, Message.MSG0, message.length(), Outcome.RECEIVED);
+		// the early msg1 is already on its way, so read it whatever happens
+		byte[] m1 = early != null ? channel.readBinary() : null;
+		if (m1 != null)
+		{
+			ProtocolTracer.trace(id, Message.MSG1, m1.length, Outcome.RECEIVED);
+		}
+		if (!m0[0].equals("0"))
+		{
+			reply("Unsupported attestation provider " + m0[0]);
+			return;
+		}
+		// an enclave that offers nothing gets the finite field group
+		List<String> offered = Arrays
+				.asList(m0.length > 1 ? m0[1].split(",") : new String[] { FfdheKeyExchange.NAME });
+		keyExchange = KeyExchange.negotiate(keyExchanges, offered);
+		if (keyExchange == null)
+		{
+			reply("Unsupported key exchanges " + offered);
+			return;
+		}
+
+		phase = Phase.MSG1;
+		boolean earlyAccepted = acceptEarly && keyExchange.getName().equals(early);
+		// answer msg0 and msg1 in the same flight if the early msg1 will do
+		String answer = "Continue " + keyExchange.getName() + (earlyAccepted ? " early" : "");
+		byte[] sentKey = spKey.getFingerprint().equals(fingerprint) ? new byte[0] : spKey.getEncodedPublicKey();
+		channel.writeText(answer);
+		channel.writeBinary(sentKey);
+		ProtocolTracer.trace(id, Message.MSG0, answer.length() + sentKey.length, Outcome.SENT);
+		mark = PHASES[0].recordSince(mark);
+		if (!earlyAccepted)
+		{
+			channel.flush();
+			m1 = channel.readBinary();
+			ProtocolTracer.trace(id, Message.MSG1, m1.length, Outcome.RECEIVED);
+			mark = PHASES[1].recordSince(mark);
+		}
+		sharedKeyBytes = computeSharedKey(m1);
+
+		// send over servers key exchange value, signed together with the
+		// enclave's
+		byte[] serverKey = kexKeyPair.getPublic().getEncoded();
+		byte[] signature = spKey.signMsg2(serverKey, m1);
+		channel.writeBinary(serverKey);
+		channel.writeBinary(signature);
+		channel.flush();
+		ProtocolTracer.trace(id, Message.MSG2, serverKey.length + signature.length, Outcome.SENT);
+		mark = PHASES[2].recordSince(mark);
+
+		// get the enclave's quote and id
+		phase = Phase.MSG3;
+		byte[] quote = channel.readBinary();
+		int eid = Integer.parseInt(channel.readText().trim());
+		ProtocolTracer.trace(id, Message.MSG3, quote.length, Outcome.RECEIVED);
+		mark = PHASES[3].recordSince(mark);
+
+		// send over the attestation status, with a ticket to resume with if
+		// the enclave is trusted. The ticket is for the enclave the quote is
+		// signed for, so a quote has to name the enclave that sent it and,
+		// when the attestation key is known, carry a good signature
+		String status = checkQuote(quote, eid) ? ISVServer.attestationStatus() : QUOTE_REJECTED;
+		String m4 = status;
+		if (tickets != null && ISVServer.isTrusted(status) && !tickets.isRevokedPermanently(eid))
+		{
+			byte[] ticket = tickets.issue(eid, status, sharedKeyBytes);
+			m4 = status + " " + Base64.getEncoder().encodeToString(ticket) + " " + tickets.getLifetimeMillis() / 1000;
+		}
+		reply(m4);
+		ProtocolTracer.trace(id, Message.MSG4, m4.length(), Outcome.SENT);
+		PHASES[4].recordSince(mark);
+		phase = Phase.DONE;
+	}
+
+	/**
+	 * @return true if the quote is signed for the enclave id sent with it and,
+	 *         if an attestation key is configured, the signature is good
+	 */
+	private boolean checkQuote(byte[] quote, int eid) throws GeneralSecurityException, IOException
+	{
+		int quoted = QuoteSigner.quotedEnclave(quote);
+		if (quoted != eid)
+		{
+			System.out.println("Session " + id + " rejected a quote for enclave " + quoted + " sent by enclave " + eid);
+			return false;
+		}
+		if (attestationKey != null && !QuoteSigner.verify(QuoteSigner.readPublicKey(attestationKey), quote))
+		{
+			System.out.println("Session " + id + " rejected a badly signed quote from enclave " + eid);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Answers a resume message with the verdict in its ticket, or rejects it
+	 *
+	 * @return true if the ticket was accepted
+	 */
+	private boolean resume(String message) throws GeneralSecurityException, IOException
+	{
+		if (tickets == null)
+		{
+			channel.writeText(ResumptionTicket.REJECTED + " tickets are disabled");
+			return false;
+		}
+
+		TicketIssuer.Ticket ticket;
+		try
+		{
+			ticket = tickets.redeem(message);
+		} catch (GeneralSecurityException | RuntimeException e)
+		{
+			channel.writeText(ResumptionTicket.REJECTED + " " + e.getMessage());
+			return false;
+		}
+		byte[] nonce = Base64.getDecoder().decode(message.split(" ")[3]);
+		String verdict = ticket.getVerdict();
+		channel.writeText(verdict + " " + Base64.getEncoder()
+				.encodeToString(ResumptionTicket.verdictMac(ticket.getSecret(), nonce, verdict)));
+		return true;
+	}
+
+	/**
+	 * Sends a text message on its own
+	 */
+	private void reply(String message) throws IOException
+	{
+		channel.writeText(message);
+		channel.flush();
+	}
+
+	/**
+	 * Takes the server's half of the negotiated exchange and agrees on the
+	 * shared key
+	 */
+	private byte[] computeSharedKey(byte[] enclaveKey) throws GeneralSecurityException
+	{
+		PublicKey peerKey = keyExchange.decodePublicKey(enclaveKey);
+		kexKeyPair = keyExchange.generateKeyPair();
+		return keyExchange.agree(kexKeyPair.getPrivate(), peerKey);
+	}
+
+	/**
+	 * @return the message the session was on, as the ProtocolTracer names it
+	 */
+	private Message tracedMessage()
+	{
+		switch (phase)
+		{
+		case MSG0:
+			return Message.MSG0;
+		case MSG1:
+			return Message.MSG1;
+		case MSG3:
+			return Message.MSG3;
+		default:
+			return Message.MSG4;
+		}
+	}
+
+	public int getId()
+	{
+		return id;
+	}
+
+	Phase getPhase()
+	{
+		return phase;
+	}
+
+	byte[] getSharedKey()
+	{
+		return sharedKeyBytes;
+	}
+}
@@ -1,22 +1,22 @@
 package isv.server;
 
+import isv.enclave.KeyExchange;
+import isv.enclave.WorkerExecutors;
+import isv.metrics.MetricsHttpServer;
+import isv.metrics.MetricsRegistry;
+import isv.metrics.ProtocolTracer;
+
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.PublicKey;
-import java.security.SecureRandom;
-import java.math.BigInteger;
-import javax.crypto.spec.DHParameterSpec;
-import javax.crypto.spec.DHPublicKeySpec;
-import javax.crypto.KeyAgreement;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.io.*;
 
 /**
- * 
+ * The ISV's attestation server. Every enclave that connects gets its own
+ * AttestationSession, run on a pool or on virtual threads, so many enclaves
+ * can attest at once.
  * 
  * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
  */
@@ -25,45 +25,173 @@ import java.io.*;
 public class ISVServer
 {
 
- static ServerSocket ss; // TCP socket for server
  static int DEFAULT_PORT = 1111; // default is usually 80
- static PrintWriter out;
- static BufferedReader in;
- static KeyPair dhKeyPair;
- static DHParameterSpec paramSpec;
- static KeyAgreement dhKeyAgree;
- // final shared DH key
- static byte[] sharedKeyBytes;
+ static long DEFAULT_SESSION_TIMEOUT = 30000;
+ static long DEFAULT_TICKET_LIFETIME = 3600000;
+ static String DEFAULT_SP_KEY_PATH = "sp-key.dat";
+ // room for hundreds of enclaves connecting at once at boot
+ static int ACCEPT_BACKLOG = 1024;
+
+ private final int port;
+ private final long sessionTimeout;
+ private final Executor sessions;
+ private final List<KeyExchange> keyExchanges;
+ private final TicketIssuer tickets;
+ private final boolean acceptEarly;
+ private final ServiceProviderKey spKey;
+ private final File attestationKey;
+
+ /**
+  * @param port
+  *            port to accept enclaves on
+  * @param sessionTimeout
+  *            milliseconds an attestation may take from connect to msg4
+  * @param sessions
+  *            runs each AttestationSession
+  * @param keyExchanges
+  *            the key exchanges enclaves may use, most preferred first
+  * @param tickets
+  *            issues resumption tickets, or null for none
+  * @param acceptEarly
+  *            use an msg1 sent along with msg0 when it is for the negotiated
+  *            key exchange, rather than always asking for msg1 again
+  * @param spKey
+  *            signs every msg2
+  * @param attestationKey
+  *            the exported attestation public key quotes are checked
+  *            against, or null to only check that a quote names its enclave
+  */
+ public ISVServer(int port, long sessionTimeout, Executor sessions, List<KeyExchange> keyExchanges,
+   TicketIssuer tickets, boolean acceptEarly, ServiceProviderKey spKey, File attestationKey)
+ {
+  this.port = port;
+  this.sessionTimeout = sessionTimeout;
+  this.sessions = sessions;
+  this.keyExchanges = keyExchanges;
+  this.tickets = tickets;
+  this.acceptEarly = acceptEarly;
+  this.spKey = spKey;
+  this.attestationKey = attestationKey;
+ }
+
+ /**
+  * Options, all optional: --port=1111, --executor=thread|pool|virtual,
+  * --pool-size=256, --session-timeout=milliseconds,
+  * --key-exchange=x25519,ffdhe2048 in order of preference,
+  * --ticket-lifetime=seconds, 0 to issue no resumption tickets,
+  * --revoke=eid,... enclaves that always have to attest in full,
+  * --optimistic=true, false to ignore an msg1 sent along with msg0,
+  * --sp-key=sp-key.dat, the file the service provider key is kept in,
+  * --attestation-key=file, the exported attestation public key to check
+  * quotes against, and --metrics-port=port, to serve metrics over HTTP as
+  * well as JMX
+  */
  public static void main(String[] args)
  {
-  try
+  int port = DEFAULT_PORT;
+  long sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+  WorkerExecutors.Kind kind = WorkerExecutors.Kind.VIRTUAL;
+  int poolSize = 256;
+  List<KeyExchange> keyExchanges = KeyExchange.available();
+  long ticketLifetime = DEFAULT_TICKET_LIFETIME;
+  String revoked = "";
+  boolean optimistic = true;
+  String spKeyPath = DEFAULT_SP_KEY_PATH;
+  File attestationKey = null;
+  int metricsPort = 0;
+  for (String arg : args)
   {
-   ss = new ServerSocket(DEFAULT_PORT);
-   System.out.println("Server listening on port " + DEFAULT_PORT);
-   Socket socket = ss.accept();
-   in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-   out = new PrintWriter(socket.getOutputStream(), true);
-   System.out.println("Client connected");
-   
-   //get protocol code
-   String m0 = in.readLine();
-   System.out.println(m0);
-   if(true)
-     out.print("Continue");
-   //get diffie hellman value from client
-   String m1 = in.readLine();
-   sharedKeyBytes = computeSharedKey(m1.getBytes());
-   //send over servers DH value
-   out.print(dhKeyPair.getPublic().getEncoded() + " N/A");
-   //send over the attestation status
-   out.print(attestationStatus());
+   int split = arg.indexOf('=');
+   if (!arg.startsWith("--") || split < 0)
+   {
+    throw new IllegalArgumentException("Unrecognized argument " + arg);
+   }
+   String value = arg.substring(split + 1);
+   switch (arg.substring(2, split))
+   {
+   case "port":
+    port = Integer.parseInt(value);
+    break;
+   case "executor":
+    kind = WorkerExecutors.Kind.valueOf(value.toUpperCase());
+    break;
+   case "pool-size":
+    poolSize = Integer.parseInt(value);
+    break;
+   case "session-timeout":
+    sessionTimeout = Long.parseLong(value);
+    break;
+   case "key-exchange":
+    keyExchanges = KeyExchange.forNames(value);
+    break;
+   case "ticket-lifetime":
+    ticketLifetime = Long.parseLong(value) * 1000;
+    break;
+   case "revoke":
+    revoked = value;
+    break;
+   case "optimistic":
+    optimistic = Boolean.parseBoolean(value);
+    break;
+   case "sp-key":
+    spKeyPath = value;
+    break;
+   case "attestation-key":
+    attestationKey = new File(value);
+    break;
+   case "metrics-port":
+    metricsPort = Integer.parseInt(value);
+    break;
+   default:
+    throw new IllegalArgumentException("Unrecognized option " + arg);
+   }
+  }
 
+  try
+  {
+   TicketIssuer tickets = ticketLifetime > 0 ? new TicketIssuer(ticketLifetime) : null;
+   for (String eid : revoked.split(","))
+   {
+    if (tickets != null && !eid.isEmpty())
+    {
+     tickets.revokePermanently(Integer.parseInt(eid.trim()));
+    }
+   }
+   MetricsRegistry.getDefault().registerMBean();
+   ProtocolTracer.registerMBean();
+   if (metricsPort > 0)
+   {
+    new MetricsHttpServer(MetricsRegistry.getDefault(), metricsPort);
+    System.out.println("Serving metrics on port " + metricsPort + MetricsHttpServer.PATH);
+   }
+   new ISVServer(port, sessionTimeout, WorkerExecutors.create(kind, poolSize, "attestation"), keyExchanges,
+     tickets, optimistic, ProvisionPrivateKeys(new File(spKeyPath)), attestationKey).run();
   } catch (Exception e)
   {
    System.out.println(e);
   }
  }
 
+ /**
+  * Accepts enclaves until the process is stopped, attesting each one in its
+  * own session
+  */
+ public void run() throws IOException
+ {
+  try (ServerSocket ss = new ServerSocket(port, ACCEPT_BACKLOG))
+  {
+   System.out.println("Server listening on port " + port);
+   while (true)
+   {
+    Socket socket = ss.accept();
+    AttestationSession.CONNECTIONS_ACCEPTED.increment();
+    socket.setTcpNoDelay(true);
+    sessions.execute(new AttestationSession(socket, sessionTimeout, keyExchanges, tickets, acceptEarly, spKey,
+      attestationKey));
+   }
+  }
+ }
+
  public static void ProvisionResponse()
  {
    //Left blank for now as this is up to the ISV and client to negotiate handshakes
@@ -82,30 +210,27 @@ public class ISVServer
    //return "no trust";
  }
  
- public static void ProvisionPrivateKeys() throws NoSuchAlgorithmException, NoSuchProviderException
+ /**
+  * @return true if the attestation status vouches for the enclave
+  */
+ public static boolean isTrusted(String status)
  {
-  //this public key needs to be sent to the client somehow, ideally during the handshake
-  KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DSA", "SUN");
-  SecureRandom random = SecureRandom.getInstance("SHA1PRNG", "SUN");
-  keyGen.initialize(1024, random);
-  KeyPair pair = keyGen.generateKeyPair();
-  PublicKey spPub = pair.getPublic();
+  return status.equals("raTrustAll") || status.equals("raTrustEnclaveOnly");
  }
- 
- public static byte[] computeSharedKey(byte[] pubKeyBytes) {
 
-  try {
-   KeyFactory keyFactory = KeyFactory.getInstance("DiffieHellman");
-   BigInteger pubKeyBI = new BigInteger(1, pubKeyBytes);
-   PublicKey pubKey = keyFactory
-     .generatePublic(new DHPublicKeySpec(pubKeyBI, paramSpec.getP(), paramSpec.getG()));
-   dhKeyAgree.doPhase(pubKey, true);
-   byte[] sharedKeyBytes = dhKeyAgree.generateSecret();
-   return sharedKeyBytes;
-  } catch (Exception e) {
-   System.out.println(e.getMessage());
-   return null;
-  }
+ /**
+  * Loads the service provider's signing key, generating and saving it the
+  * first time the server runs
+  *
+  * @param file
+  *            where the key is kept
+  * @return the key
+  */
+ public static ServiceProviderKey ProvisionPrivateKeys(File file) throws IOException, GeneralSecurityException
+ {
+  ServiceProviderKey key = ServiceProviderKey.loadOrCreate(file);
+  System.out.println("Service provider key " + key.getFingerprint());
+  return key;
  }
  
-}
+}
\ No newline at end of file
@@ -0,0 +1,152 @@
+package isv.server;
+
+import isv.enclave.ServiceProviderKeys;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * The service provider's long lived signing key. It is generated once, the
+ * first time the server starts, and kept in a local file so that every later
+ * start signs with the same key and enclaves that cached it by fingerprint
+ * never need it sent again. The server signs every msg2 with it, see
+ * ServiceProviderKeys for what the signature covers.
+ *
+ * The file holds the private key unencrypted and is only readable by its
+ * owner.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class ServiceProviderKey
+{
+	private static final int KEY_SIZE = 2048;
+	private static final int MAGIC = 0x53504B31;
+
+	private final PrivateKey privateKey;
+	private final byte[] encodedPublicKey;
+	private final String fingerprint;
+	// Signatures aren't thread safe, and are reset after every sign, so each
+	// session thread keeps one initialized with the key
+	private final ThreadLocal<Signature> signers = new ThreadLocal<>();
+
+	private ServiceProviderKey(KeyPair pair)
+	{
+		this.privateKey = pair.getPrivate();
+		this.encodedPublicKey = pair.getPublic().getEncoded();
+		this.fingerprint = ServiceProviderKeys.fingerprint(encodedPublicKey);
+	}
+
+	/**
+	 * Reads the key from the file, or generates it and writes the file if
+	 * there is none yet
+	 *
+	 * @param file
+	 *            where the key is kept
+	 * @return the key
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public static ServiceProviderKey loadOrCreate(File file) throws IOException, GeneralSecurityException
+	{
+		if (file.isFile())
+		{
+			return new ServiceProviderKey(read(file));
+		}
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(ServiceProviderKeys.KEY_ALGORITHM);
+		generator.initialize(KEY_SIZE);
+		KeyPair pair = generator.generateKeyPair();
+		write(file, pair);
+		return new ServiceProviderKey(pair);
+	}
+
+	private static KeyPair read(File file) throws IOException, GeneralSecurityException
+	{
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+		{
+			if (in.readInt() != MAGIC)
+			{
+				throw new IOException(file + " is not a service provider key file");
+			}
+			byte[] publicKey = new byte[in.readInt()];
+			in.readFully(publicKey);
+			byte[] privateKey = new byte[in.readInt()];
+			in.readFully(privateKey);
+
+			KeyFactory factory = KeyFactory.getInstance(ServiceProviderKeys.KEY_ALGORITHM);
+			return new KeyPair(factory.generatePublic(new X509EncodedKeySpec(publicKey)),
+					factory.generatePrivate(new PKCS8EncodedKeySpec(privateKey)));
+		}
+	}
+
+	private static void write(File file, KeyPair pair) throws IOException
+	{
+		File absolute = file.getAbsoluteFile();
+		File temp = File.createTempFile(absolute.getName(), ".tmp", absolute.getParentFile());
+		temp.setReadable(false, false);
+		temp.setReadable(true, true);
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp)))
+		{
+			byte[] publicKey = pair.getPublic().getEncoded();
+			byte[] privateKey = pair.getPrivate().getEncoded();
+			out.writeInt(MAGIC);
+			out.writeInt(publicKey.length);
+			out.write(publicKey);
+			out.writeInt(privateKey.length);
+			out.write(privateKey);
+		}
+		// a server killed while writing leaves no half written key behind
+		Files.move(temp.toPath(), absolute.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the X.509 encoded public key, as sent to enclaves
+	 */
+	public byte[] getEncodedPublicKey()
+	{
+		return encodedPublicKey;
+	}
+
+	/**
+	 * @return the public key's fingerprint, as enclaves name it in msg0
+	 */
+	public String getFingerprint()
+	{
+		return fingerprint;
+	}
+
+	/**
+	 * @param spKey
+	 *            the server's X.509 encoded key exchange value
+	 * @param enclaveKey
+	 *            the enclave's X.509 encoded key exchange value, from msg1
+	 * @return the msg2 signature
+	 * @throws GeneralSecurityException
+	 */
+	public byte[] signMsg2(byte[] spKey, byte[] enclaveKey) throws GeneralSecurityException
+	{
+		Signature signer = signers.get();
+		if (signer == null)
+		{
+			signer = Signature.getInstance(ServiceProviderKeys.SIGNATURE_ALGORITHM);
+			signer.initSign(privateKey);
+			signers.set(signer);
+		}
+		ServiceProviderKeys.updateMsg2(signer, spKey, enclaveKey);
+		return signer.sign();
+	}
+}
@@ -0,0 +1,228 @@
+package isv.server;
+
+import isv.enclave.ResumptionTicket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Issues and redeems the resumption tickets that let an enclave that has
+ * attested get a verdict again without a full attestation. A ticket is the
+ * enclave id, the verdict, the resumption secret and the time it was issued,
+ * encrypted with AES-GCM under a key only this server knows, so the server
+ * keeps no per-ticket state.
+ *
+ * Tickets expire after the configured lifetime. Revoking an enclave rejects
+ * every ticket issued to it so far, and revoking everything rejects every
+ * ticket issued so far; either way the enclave's next attestation is a full
+ * one. An enclave can also be revoked permanently, so it always attests in
+ * full.
+ *
+ * @author Madeline MacDonald & Benjamin Kargul & Jen Simons & Makenzie Elliott
+ */
+public class TicketIssuer
+{
+	private static final String CIPHER = "AES/GCM/NoPadding";
+	private static final int NONCE_LENGTH = 12;
+	private static final int TAG_BITS = 128;
+	// bound into every ticket so nothing else encrypted under the key passes
+	private static final byte[] ASSOCIATED_DATA = "isv ticket v1".getBytes(StandardCharsets.UTF_8);
+
+	private final SecretKey key;
+	private final long lifetimeMillis;
+	private final SecureRandom random = new SecureRandom();
+	// enclave id to the time its tickets were revoked
+	private final ConcurrentHashMap<Integer, Long> revokedEnclaves = new ConcurrentHashMap<>();
+	private volatile long revokedBefore;
+
+	/**
+	 * A ticket the server has decrypted and accepted
+	 */
+	public static class Ticket
+	{
+		private final int eid;
+		private final String verdict;
+		private final byte[] secret;
+
+		Ticket(int eid, String verdict, byte[] secret)
+		{
+			this.eid = eid;
+			this.verdict = verdict;
+			this.secret = secret;
+		}
+
+		public int getEid()
+		{
+			return eid;
+		}
+
+		public String getVerdict()
+		{
+			return verdict;
+		}
+
+		public byte[] getSecret()
+		{
+			return secret;
+		}
+	}
+
+	/**
+	 * @param lifetimeMillis
+	 *            how long a ticket is accepted for after it is issued
+	 * @throws GeneralSecurityException
+	 */
+	public TicketIssuer(long lifetimeMillis) throws GeneralSecurityException
+	{
+		KeyGenerator generator = KeyGenerator.getInstance("AES");
+		generator.init(256);
+		this.key = generator.generateKey();
+		this.lifetimeMillis = lifetimeMillis;
+	}
+
+	public long getLifetimeMillis()
+	{
+		return lifetimeMillis;
+	}
+
+	/**
+	 * @param eid
+	 *            the enclave that attested
+	 * @param verdict
+	 *            the attestation status it was given
+	 * @param sharedKey
+	 *            the attestation's shared key
+	 * @return the encrypted ticket
+	 * @throws GeneralSecurityException
+	 */
+	public byte[] issue(int eid, String verdict, byte[] sharedKey) throws GeneralSecurityException
+	{
+		byte[] secret = ResumptionTicket.resumptionSecret(sharedKey);
+		byte[] verdictBytes = verdict.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer plain = ByteBuffer.allocate(4 + 8 + 4 + verdictBytes.length + secret.length);
+		plain.putInt(eid).putLong(System.currentTimeMillis());
+		plain.putInt(verdictBytes.length).put(verdictBytes);
+		plain.put(secret);
+
+		byte[] nonce = new byte[NONCE_LENGTH];
+		random.nextBytes(nonce);
+		Cipher cipher = Cipher.getInstance(CIPHER);
+		cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+		cipher.updateAAD(ASSOCIATED_DATA);
+		byte[] sealed = cipher.doFinal(plain.array());
+
+		return ByteBuffer.allocate(NONCE_LENGTH + sealed.length).put(nonce).put(sealed).array();
+	}
+
+	/**
+	 * Checks a resume message and the ticket in it
+	 *
+	 * @param message
+	 *            resume [eid] [ticket] [nonce] [mac]
+	 * @return the accepted ticket
+	 * @throws GeneralSecurityException
+	 *             saying why the ticket was rejected
+	 */
+	public Ticket redeem(String message) throws GeneralSecurityException
+	{
+		String[] parts = message.split(" ");
+		if (parts.length != 5 || !parts[0].equals(ResumptionTicket.RESUME))
+		{
+			throw new GeneralSecurityException("malformed resume message");
+		}
+		Base64.Decoder base64 = Base64.getDecoder();
+		int claimedEid = Integer.parseInt(parts[1]);
+		ByteBuffer sealed = ByteBuffer.wrap(base64.decode(parts[2]));
+		if (sealed.remaining() < NONCE_LENGTH + TAG_BITS / 8)
+		{
+			throw new GeneralSecurityException("malformed ticket");
+		}
+
+		byte[] nonce = new byte[NONCE_LENGTH];
+		sealed.get(nonce);
+		Cipher cipher = Cipher.getInstance(CIPHER);
+		cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+		cipher.updateAAD(ASSOCIATED_DATA);
+		ByteBuffer plain;
+		try
+		{
+			plain = ByteBuffer.wrap(cipher.doFinal(sealed.array(), NONCE_LENGTH, sealed.remaining()));
+		} catch (AEADBadTagException e)
+		{
+			throw new GeneralSecurityException("ticket was not issued by this server");
+		}
+
+		int eid = plain.getInt();
+		long issuedAt = plain.getLong();
+		byte[] verdict = new byte[plain.getInt()];
+		plain.get(verdict);
+		byte[] secret = new byte[plain.remaining()];
+		plain.get(secret);
+
+		if (eid != claimedEid)
+		{
+			throw new GeneralSecurityException("ticket belongs to another enclave");
+		}
+		if (System.currentTimeMillis() - issuedAt > lifetimeMillis)
+		{
+			throw new GeneralSecurityException("ticket expired");
+		}
+		Long revokedAt = revokedEnclaves.get(eid);
+		if (issuedAt <= revokedBefore || (revokedAt != null && issuedAt <= revokedAt))
+		{
+			throw new GeneralSecurityException("ticket revoked");
+		}
+		// only the enclave holding the attestation's shared key can make the
+		// mac, so a stolen ticket is useless on its own
+		String signed = parts[1] + " " + parts[2] + " " + parts[3];
+		if (!MessageDigest.isEqual(base64.decode(parts[4]), ResumptionTicket.mac(secret, signed)))
+		{
+			throw new GeneralSecurityException("bad ticket proof");
+		}
+		return new Ticket(eid, new String(verdict, StandardCharsets.UTF_8), secret);
+	}
+
+	/**
+	 * Rejects every ticket issued to the enclave until now
+	 */
+	public void revoke(int eid)
+	{
+		revokedEnclaves.put(eid, System.currentTimeMillis());
+	}
+
+	/**
+	 * Rejects every ticket of the enclave, now and later, so it always has
+	 * to attest in full
+	 */
+	public void revokePermanently(int eid)
+	{
+		revokedEnclaves.put(eid, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @return true if tickets for the enclave would be rejected anyway
+	 */
+	public boolean isRevokedPermanently(int eid)
+	{
+		return revokedEnclaves.getOrDefault(eid, 0L) == Long.MAX_VALUE;
+	}
+
+	/**
+	 * Rejects every ticket issued until now
+	 */
+	public void revokeAll()
+	{
+		revokedBefore = System.currentTimeMillis();
+	}
+}